@@ -0,0 +1,183 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole collection pass over a broker-shaped registry, the metric index rebuild and the encoding of the result.
+ * <p/>
+ * Run with {@code java -jar target/benchmarks.jar CollectionBenchmark -prof gc} for allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CollectionBenchmark {
+    static final ExpandedMetric.ExpandedMetricConfig EXPANSIONS = new ExpandedMetric.ExpandedMetricConfig(EnumSet.of(
+            ExpandedMetric.MEDIAN,
+            ExpandedMetric.PCT_95,
+            ExpandedMetric.PCT_99,
+            ExpandedMetric.PCT_999,
+            ExpandedMetric.COUNT,
+            ExpandedMetric.RATE_1_MINUTE));
+
+    @Param({"100", "1000"})
+    int topics;
+
+    @Param({"10"})
+    int partitions;
+
+    @Param({"1"})
+    int collectionThreads;
+
+    private SyntheticRegistry synthetic;
+    private ReporterStats stats;
+    private PayloadSender sender;
+    private Reporter reporter;
+    private DeltaTracker deltaTracker;
+    private SamplingCache samplingCache;
+    private GaugeSuppressor gaugeSuppressor;
+    private ReportableMetrics reportable;
+    private MeasurementsEncoder encoder;
+    private KafkaMetricsBatch batch;
+    private KafkaMetricsBatch collected;
+    private MetricName someName;
+    private Metric someMetric;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // the reporter reads the default registry
+        synthetic = SyntheticRegistry.populate(Metrics.defaultRegistry(), topics, partitions);
+        stats = new ReporterStats();
+        sender = newSender(stats);
+        reporter = new Reporter(
+                Collections.singletonList(new AppopticsSink(sender, Collections.emptyList(), false,
+                        MeasurementsEncoder.DEFAULT_BATCH_SIZE, stats)),
+                EXPANSIONS,
+                DeltaTracker.DEFAULT_MAX_IDLE_CYCLES,
+                collectionThreads,
+                new SamplingCache(SamplingCache.Mode.REPORT, SamplingCache.DEFAULT_HEARTBEAT_INTERVALS,
+                        DeltaTracker.DEFAULT_MAX_IDLE_CYCLES),
+                new GaugeSuppressor(false, 0, GaugeSuppressor.DEFAULT_HEARTBEAT_INTERVALS,
+                        DeltaTracker.DEFAULT_MAX_IDLE_CYCLES, Reporter.collectionStripes(collectionThreads)),
+                MetricFilter.ALL,
+                Rollup.NONE,
+                CardinalityLimiter.NONE,
+                Collections.emptyList(),
+                new JvmMetrics(JvmMetrics.DEFAULT_SLOW_INTERVALS),
+                stats,
+                false);
+        deltaTracker = new DeltaTracker(Collections::emptyMap, DeltaTracker.DEFAULT_MAX_IDLE_CYCLES, collectionThreads);
+        samplingCache = new SamplingCache(SamplingCache.Mode.REPORT, SamplingCache.DEFAULT_HEARTBEAT_INTERVALS,
+                DeltaTracker.DEFAULT_MAX_IDLE_CYCLES);
+        gaugeSuppressor = new GaugeSuppressor(false, 0, GaugeSuppressor.DEFAULT_HEARTBEAT_INTERVALS,
+                DeltaTracker.DEFAULT_MAX_IDLE_CYCLES, Reporter.collectionStripes(collectionThreads));
+
+        reportable = new ReportableMetrics(MetricPredicate.ALL);
+        Metrics.defaultRegistry().addListener(reportable);
+        final Map.Entry<MetricName, Metric> some = Metrics.defaultRegistry().allMetrics().entrySet().iterator().next();
+        someName = some.getKey();
+        someMetric = some.getValue();
+
+        encoder = new MeasurementsEncoder(sender.pool(), Collections.emptyList(), false,
+                MeasurementsEncoder.DEFAULT_BATCH_SIZE, stats);
+        collected = collect();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Metrics.defaultRegistry().removeListener(reportable);
+        reporter.shutdown();
+        // the reporter closes its sink, but the sender is ours, so do not leave it to the reporter
+        sender.shutdown();
+        synthetic.clear();
+    }
+
+    @Setup(Level.Iteration)
+    public void tick() {
+        synthetic.tick();
+    }
+
+    /**
+     * One collection pass, from the metric index to a filled batch.
+     */
+    @Benchmark
+    public Object reportRegularMetrics() {
+        return collect();
+    }
+
+    /**
+     * Regrouping the registry and dropping the null-scope aggregates after a metric is added, which replaced
+     * the per-poll {@code filterAggregates}.
+     */
+    @Benchmark
+    public Object rebuildReportable() {
+        reportable.onMetricAdded(someName, someMetric);
+        return reportable.entries();
+    }
+
+    /**
+     * Serializing a collected batch into payloads, which replaced the conversion to client measures.
+     */
+    @Benchmark
+    public void encode(Blackhole blackhole) {
+        encoder.encode(collected, 0, 30, payload -> {
+            blackhole.consume(payload.size());
+            encoder.release(payload);
+        });
+    }
+
+    private KafkaMetricsBatch collect() {
+        // reused like the reporter's own batches, so that the steady state is measured
+        if (batch == null) {
+            batch = new KafkaMetricsBatch(
+                    EXPANSIONS, deltaTracker, samplingCache, gaugeSuppressor, Rollup.NONE, CardinalityLimiter.NONE);
+        } else {
+            batch.reset();
+        }
+        reporter.reportRegularMetrics(new KafkaMetricsBatch[]{batch});
+        batch.flushRollups(stats);
+        deltaTracker.endCycle();
+        return batch;
+    }
+
+    /**
+     * @return a sender that is never handed a payload
+     */
+    static PayloadSender newSender(ReporterStats stats) throws Exception {
+        final PayloadSender.SenderConfig config = new PayloadSender.SenderConfig(1, 1, PayloadSender.Overflow.DROP_OLDEST, 0, 1, 0);
+        return new PayloadSender(
+                new HttpPoster(new URL("http://localhost:9/"), "benchmark", 1000, 1000,
+                        PayloadCompressor.CompressionConfig.NONE),
+                new PayloadBufferPool(128 * 1024, 4, 1024 * 1024),
+                config,
+                new RetryPolicy(1, 0, 0),
+                new CircuitBreaker(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD, CircuitBreaker.DEFAULT_OPEN_MILLIS),
+                null,
+                stats);
+    }
+}
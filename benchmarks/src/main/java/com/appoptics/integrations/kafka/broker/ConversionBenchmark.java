@@ -0,0 +1,143 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Metered;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-metric steps of a collection: parsing names and tags, delta tracking, and expanding meters, histograms
+ * and timers into measurements.
+ * <p/>
+ * Run with {@code java -jar target/benchmarks.jar ConversionBenchmark -prof gc} for allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ConversionBenchmark {
+    @Param({"100"})
+    int topics;
+
+    @Param({"10"})
+    int partitions;
+
+    private SyntheticRegistry synthetic;
+    private MetricName[] names;
+    private NameAndTags[] parsed;
+    private DeltaTracker deltaTracker;
+    private SamplingCache samplingCache;
+    private GaugeSuppressor gaugeSuppressor;
+    // reused for every invocation, like the batch of a tier
+    private KafkaMetricsBatch batch;
+    private final List<NameAndTags> meterNames = new ArrayList<>();
+    private final List<Metered> meters = new ArrayList<>();
+    private final List<NameAndTags> samplingNames = new ArrayList<>();
+    private final List<Metric> samplings = new ArrayList<>();
+    private int next;
+    private long count;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final MetricsRegistry registry = new MetricsRegistry();
+        synthetic = SyntheticRegistry.populate(registry, topics, partitions);
+        final Map<MetricName, Metric> metrics = registry.allMetrics();
+        names = metrics.keySet().toArray(new MetricName[0]);
+        parsed = new NameAndTags[names.length];
+        for (int i = 0; i < names.length; i++) {
+            parsed[i] = new NameAndTags(names[i]);
+            final Metric metric = metrics.get(names[i]);
+            if (metric instanceof Histogram || metric instanceof Timer) {
+                samplingNames.add(parsed[i]);
+                samplings.add(metric);
+            } else if (metric instanceof Metered) {
+                meterNames.add(parsed[i]);
+                meters.add((Metered) metric);
+            }
+        }
+        deltaTracker = new DeltaTracker(Collections::emptyMap);
+        samplingCache = new SamplingCache(SamplingCache.Mode.REPORT, SamplingCache.DEFAULT_HEARTBEAT_INTERVALS,
+                DeltaTracker.DEFAULT_MAX_IDLE_CYCLES);
+        gaugeSuppressor = new GaugeSuppressor(false, 0, GaugeSuppressor.DEFAULT_HEARTBEAT_INTERVALS,
+                DeltaTracker.DEFAULT_MAX_IDLE_CYCLES, 1);
+        batch = new KafkaMetricsBatch(CollectionBenchmark.EXPANSIONS, deltaTracker, samplingCache, gaugeSuppressor,
+                Rollup.NONE, CardinalityLimiter.NONE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        synthetic.clear();
+    }
+
+    /**
+     * Parsing a metric name into a name and tags, including the JSON fragments the encoder writes.
+     */
+    @Benchmark
+    public Object parseNameAndTags() {
+        final NameAndTags nameAndTags = new NameAndTags(names[nextIndex()]);
+        nameAndTags.jsonName();
+        return nameAndTags.jsonTags();
+    }
+
+    @Benchmark
+    public long getDelta() {
+        return deltaTracker.getDelta(parsed[nextIndex()], ++count);
+    }
+
+    /**
+     * Expanding every meter into its count and rates.
+     */
+    @Benchmark
+    public Object expandMeters() {
+        batch.reset();
+        for (int i = 0; i < meters.size(); i++) {
+            batch.addMetered(meterNames.get(i), meters.get(i));
+        }
+        return batch;
+    }
+
+    /**
+     * Expanding every histogram and timer, including their snapshots and percentiles.
+     */
+    @Benchmark
+    public Object expandSamplings() {
+        batch.reset();
+        for (int i = 0; i < samplings.size(); i++) {
+            final Metric metric = samplings.get(i);
+            if (metric instanceof Timer) {
+                batch.addTimer(samplingNames.get(i), (Timer) metric);
+            } else {
+                batch.addHistogram(samplingNames.get(i), (Histogram) metric);
+            }
+        }
+        return batch;
+    }
+
+    private int nextIndex() {
+        next = next + 1 == names.length ? 0 : next + 1;
+        return next;
+    }
+}
@@ -0,0 +1,214 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * A local stand-in for the AppOptics {@code /v1/measurements} endpoint. Every post waits {@code latencyMillis},
+ * then fails with a 500 with probability {@code errorRate}, and is rejected like the real API when it is larger
+ * than {@code maxPayloadBytes} (413) or holds more than {@code maxMeasurements} measurements (400). Accepted
+ * measurements are counted per measurement time, so that intervals that never arrived can be told apart.
+ */
+class FakeAppOptics {
+    static final String PATH = "/v1/measurements";
+
+    private static final byte[] TIME = "{\"time\":".getBytes(US_ASCII);
+    private static final byte[] NAME = "{\"name\":".getBytes(US_ASCII);
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMillis;
+    private final double errorRate;
+    private final int maxPayloadBytes;
+    private final int maxMeasurements;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder measurements = new LongAdder();
+    private final Map<Long, LongAdder> measurementsByTime = new ConcurrentHashMap<>();
+
+    /**
+     * @param latencyMillis   how long each post takes
+     * @param errorRate       the fraction of posts that fail with a 500
+     * @param maxPayloadBytes the largest accepted payload after decompression, zero for no limit
+     * @param maxMeasurements the most measurements accepted in one payload, zero for no limit
+     * @param threads         the number of posts served concurrently
+     */
+    FakeAppOptics(long latencyMillis, double errorRate, int maxPayloadBytes, int maxMeasurements, int threads) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.errorRate = errorRate;
+        this.maxPayloadBytes = maxPayloadBytes;
+        this.maxMeasurements = maxMeasurements;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "fake-appoptics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext(PATH, this::handle);
+        server.setExecutor(executor);
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    String url() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + PATH;
+    }
+
+    long getRequests() {
+        return requests.sum();
+    }
+
+    long getAccepted() {
+        return accepted.sum();
+    }
+
+    long getFailed() {
+        return failed.sum();
+    }
+
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return bytes received, as sent on the wire
+     */
+    long getBytes() {
+        return bytes.sum();
+    }
+
+    long getMeasurements() {
+        return measurements.sum();
+    }
+
+    /**
+     * @return the number of accepted measurements for each measurement time
+     */
+    Map<Long, LongAdder> getMeasurementsByTime() {
+        return measurementsByTime;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.increment();
+            final byte[] wire = readFully(exchange.getRequestBody());
+            bytes.add(wire.length);
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                failed.increment();
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            final byte[] body = decode(wire, exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            final int count = count(body, NAME);
+            if (maxPayloadBytes > 0 && body.length > maxPayloadBytes) {
+                rejected.increment();
+                exchange.sendResponseHeaders(413, -1);
+                return;
+            }
+            if (maxMeasurements > 0 && count > maxMeasurements) {
+                rejected.increment();
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            accepted.increment();
+            measurements.add(count);
+            measurementsByTime.computeIfAbsent(time(body), time -> new LongAdder()).add(count);
+            exchange.sendResponseHeaders(202, -1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.sendResponseHeaders(503, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static byte[] decode(byte[] wire, String contentEncoding) throws IOException {
+        if ("gzip".equals(contentEncoding)) {
+            return readFully(new GZIPInputStream(new ByteArrayInputStream(wire)));
+        }
+        if ("deflate".equals(contentEncoding)) {
+            return readFully(new InflaterInputStream(new ByteArrayInputStream(wire)));
+        }
+        return wire;
+    }
+
+    /**
+     * @return the {@code time} of a payload written by {@link MeasurementsEncoder}, or -1
+     */
+    private static long time(byte[] body) {
+        if (!startsWith(body, 0, TIME)) {
+            return -1;
+        }
+        long time = 0;
+        for (int i = TIME.length; i < body.length && body[i] >= '0' && body[i] <= '9'; i++) {
+            time = time * 10 + body[i] - '0';
+        }
+        return time;
+    }
+
+    private static int count(byte[] body, byte[] token) {
+        int count = 0;
+        for (int i = 0; i <= body.length - token.length; i++) {
+            if (body[i] == token[0] && startsWith(body, i, token)) {
+                count++;
+                i += token.length - 1;
+            }
+        }
+        return count;
+    }
+
+    private static boolean startsWith(byte[] body, int offset, byte[] token) {
+        if (body.length - offset < token.length) {
+            return false;
+        }
+        for (int i = 0; i < token.length; i++) {
+            if (body[offset + i] != token[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try (InputStream input = in) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.yammer.metrics.Metrics;
+import kafka.utils.VerifiableProperties;
+
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Runs the real reporter end to end against a {@link FakeAppOptics} endpoint and a {@link SyntheticRegistry} for
+ * a number of intervals, and writes a JSON report of collection and post latencies, bytes sent, the reporter's
+ * heap churn and the intervals that never arrived. Everything runs in-process on the loopback interface.
+ * <p/>
+ * {@code java -cp target/benchmarks.jar com.appoptics.integrations.kafka.broker.LoadHarness --metrics 100000
+ * --intervals 30 --latency-ms 50 --error-rate 0.01 --report report.json appoptics.collection.threads=4}
+ * <p/>
+ * Arguments of the form {@code key=value} are passed to the reporter as broker properties.
+ */
+public class LoadHarness {
+    private static final String REPORTER_THREAD_PREFIX = "kafkaappoptics";
+    // how long to wait for queued payloads once the last interval was collected
+    private static final long DRAIN_TIMEOUT_MILLIS = 60_000;
+
+    private final Options options;
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    // the most bytes seen allocated by each reporter thread, so that threads that exit are still counted
+    private final Map<Long, Long> allocatedByThread = new HashMap<>();
+
+    private LoadHarness(Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Options options = Options.parse(args);
+        final String report = new LoadHarness(options).run();
+        if ("-".equals(options.report)) {
+            System.out.println(report);
+        } else {
+            try (OutputStream out = new FileOutputStream(options.report)) {
+                out.write(report.getBytes(UTF_8));
+            }
+        }
+        System.exit(0);
+    }
+
+    private String run() throws Exception {
+        final FakeAppOptics endpoint = new FakeAppOptics(options.latencyMillis, options.errorRate,
+                options.maxPayloadBytes, options.maxMeasurements, options.serverThreads);
+        endpoint.start();
+        final int partitions = options.partitions;
+        final int topics = Math.max(1, options.metrics / (5 * partitions + 3));
+        final SyntheticRegistry synthetic = SyntheticRegistry.populate(Metrics.defaultRegistry(), topics, partitions);
+        final int metrics = Metrics.defaultRegistry().allMetrics().size();
+
+        final Properties props = new Properties();
+        props.put("appoptics.url", endpoint.url());
+        props.put("appoptics.token", "harness");
+        props.put("librato.kafka.enable", "false");
+        props.putAll(options.properties);
+        final KafkaAppopticsReporter reporter = new KafkaAppopticsReporter();
+        reporter.init(new VerifiableProperties(props));
+        final ReporterStats stats = reporter.getStats();
+
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        final long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        final long gcCountBefore = gcCount();
+        final long gcMillisBefore = gcMillis();
+        sampleAllocations();
+        final long allocatedBefore = allocated();
+
+        final long periodMillis = TimeUnit.SECONDS.toMillis(options.intervalSeconds);
+        final long start = System.nanoTime();
+        reporter.startReporter(options.intervalSeconds);
+        for (int i = 1; i <= options.intervals; i++) {
+            // halfway between two collections, so that a collection that is on time has finished
+            sleepUntil(start, i * periodMillis + periodMillis / 2);
+            synthetic.tick();
+            sampleAllocations();
+        }
+        // stop collecting, letting a collection in progress finish, but keep sending
+        reporter.getReporter().shutdown(DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        final long collected = stats.getCount(ReporterStats.Stage.COLLECT);
+        final long drainStart = System.nanoTime();
+        while (reporter.getQueuedPayloads() > 0
+                && System.nanoTime() - drainStart < TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MILLIS)) {
+            Thread.sleep(10);
+        }
+        // the payloads the senders have taken off the queue are still in flight
+        Thread.sleep(options.latencyMillis + 100);
+        sampleAllocations();
+        final long allocatedDuring = allocated() - allocatedBefore;
+        final long gcCountDuring = gcCount() - gcCountBefore;
+        final long gcMillisDuring = gcMillis() - gcMillisBefore;
+        System.gc();
+        final long heapAfter = memory.getHeapMemoryUsage().getUsed();
+
+        final Json json = new Json();
+        json.begin("config")
+                .field("metrics", metrics)
+                .field("topics", topics)
+                .field("partitions", partitions)
+                .field("intervals", options.intervals)
+                .field("intervalSeconds", options.intervalSeconds)
+                .field("latencyMillis", options.latencyMillis)
+                .field("errorRate", options.errorRate)
+                .field("maxPayloadBytes", options.maxPayloadBytes)
+                .field("maxMeasurements", options.maxMeasurements);
+        json.begin("properties");
+        for (Map.Entry<String, String> property : options.properties.entrySet()) {
+            json.field(property.getKey(), property.getValue());
+        }
+        json.end().end();
+
+        json.begin("collection")
+                .field("count", collected)
+                .field("meanMillis", collected == 0 ? 0 : (double) stats.getTotalMillis(ReporterStats.Stage.COLLECT) / collected)
+                .field("p50Millis", stats.getPercentileMillis(ReporterStats.Stage.COLLECT, 0.5))
+                .field("p99Millis", stats.getPercentileMillis(ReporterStats.Stage.COLLECT, 0.99))
+                .field("maxMillis", stats.getPercentileMillis(ReporterStats.Stage.COLLECT, 1))
+                .field("encodeP99Millis", stats.getPercentileMillis(ReporterStats.Stage.ENCODE, 0.99))
+                .field("processingErrors", stats.getProcessingErrors())
+                .field("encodingErrors", stats.getEncodingErrors())
+                .end();
+
+        json.begin("post")
+                .field("count", stats.getCount(ReporterStats.Stage.POST))
+                .field("p50Millis", stats.getPercentileMillis(ReporterStats.Stage.POST, 0.5))
+                .field("p99Millis", stats.getPercentileMillis(ReporterStats.Stage.POST, 0.99))
+                .field("maxMillis", stats.getPercentileMillis(ReporterStats.Stage.POST, 1))
+                .field("errors", stats.getPostErrors())
+                .field("retries", reporter.getRetries())
+                .field("payloadsSent", stats.getPayloads())
+                .field("bytesSent", stats.getBytes())
+                .field("payloadsDropped", reporter.getDroppedPayloads())
+                .field("payloadsQueued", reporter.getQueuedPayloads())
+                .end();
+
+        long minPerInterval = Long.MAX_VALUE;
+        long maxPerInterval = 0;
+        for (LongAdder count : endpoint.getMeasurementsByTime().values()) {
+            minPerInterval = Math.min(minPerInterval, count.sum());
+            maxPerInterval = Math.max(maxPerInterval, count.sum());
+        }
+        json.begin("endpoint")
+                .field("requests", endpoint.getRequests())
+                .field("accepted", endpoint.getAccepted())
+                .field("failed", endpoint.getFailed())
+                .field("rejected", endpoint.getRejected())
+                .field("bytes", endpoint.getBytes())
+                .field("measurements", endpoint.getMeasurements())
+                .field("minMeasurementsPerInterval", minPerInterval == Long.MAX_VALUE ? 0 : minPerInterval)
+                .field("maxMeasurementsPerInterval", maxPerInterval)
+                .end();
+
+        final long delivered = endpoint.getMeasurementsByTime().size();
+        // the reporter polls with a fixed delay, so slow collections push the later ones out of the run; on top of
+        // those, collections of which nothing arrived
+        final long missed = Math.max(0, options.intervals - collected);
+        final long undelivered = Math.max(0, collected - delivered);
+        json.begin("intervals")
+                .field("expected", options.intervals)
+                .field("collected", collected)
+                .field("delivered", delivered)
+                .field("dropped", missed + undelivered)
+                .end();
+
+        json.begin("heap")
+                .field("reporterAllocatedBytes", allocatedDuring)
+                .field("allocatedBytesPerInterval", collected == 0 ? 0 : allocatedDuring / collected)
+                .field("gcCount", gcCountDuring)
+                .field("gcMillis", gcMillisDuring)
+                .field("retainedBytes", heapAfter - heapBefore)
+                .end();
+
+        reporter.stopReporter();
+        endpoint.stop();
+        synthetic.clear();
+        return json.toString();
+    }
+
+    private static void sleepUntil(long startNanos, long offsetMillis) throws InterruptedException {
+        final long remaining = TimeUnit.NANOSECONDS.toMillis(startNanos - System.nanoTime()) + offsetMillis;
+        if (remaining > 0) {
+            Thread.sleep(remaining);
+        }
+    }
+
+    /**
+     * Records the bytes allocated so far by the reporter's collection, sending and polling threads.
+     */
+    private void sampleAllocations() {
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(REPORTER_THREAD_PREFIX)) {
+                final long bytes = threads.getThreadAllocatedBytes(thread.getId());
+                if (bytes > 0) {
+                    allocatedByThread.merge(thread.getId(), bytes, Math::max);
+                }
+            }
+        }
+    }
+
+    private long allocated() {
+        long total = 0;
+        for (long bytes : allocatedByThread.values()) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    static final class Options {
+        int metrics = 10_000;
+        int partitions = 10;
+        int intervals = 10;
+        int intervalSeconds = 1;
+        long latencyMillis = 0;
+        double errorRate = 0;
+        int maxPayloadBytes = 0;
+        int maxMeasurements = 0;
+        int serverThreads = 4;
+        String report = "-";
+        final Map<String, String> properties = new LinkedHashMap<>();
+
+        static Options parse(String[] args) {
+            final Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                if (!arg.startsWith("--")) {
+                    final int eq = arg.indexOf('=');
+                    if (eq <= 0) {
+                        throw new IllegalArgumentException("Expected --option value or key=value: " + arg);
+                    }
+                    options.properties.put(arg.substring(0, eq), arg.substring(eq + 1));
+                    continue;
+                }
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                final String value = args[++i];
+                switch (arg) {
+                    case "--metrics":
+                        options.metrics = Integer.parseInt(value);
+                        break;
+                    case "--partitions":
+                        options.partitions = Integer.parseInt(value);
+                        break;
+                    case "--intervals":
+                        options.intervals = Integer.parseInt(value);
+                        break;
+                    case "--interval":
+                        options.intervalSeconds = Integer.parseInt(value);
+                        break;
+                    case "--latency-ms":
+                        options.latencyMillis = Long.parseLong(value);
+                        break;
+                    case "--error-rate":
+                        options.errorRate = Double.parseDouble(value);
+                        break;
+                    case "--max-payload-bytes":
+                        options.maxPayloadBytes = Integer.parseInt(value);
+                        break;
+                    case "--max-measurements":
+                        options.maxMeasurements = Integer.parseInt(value);
+                        break;
+                    case "--server-threads":
+                        options.serverThreads = Integer.parseInt(value);
+                        break;
+                    case "--report":
+                        options.report = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            return options;
+        }
+    }
+
+    /**
+     * Just enough of a JSON writer for the report: nested objects of numbers and strings.
+     */
+    private static final class Json {
+        private final StringBuilder out = new StringBuilder("{");
+        private boolean first = true;
+
+        Json begin(String name) {
+            name(name).append('{');
+            first = true;
+            return this;
+        }
+
+        Json end() {
+            out.append('}');
+            first = false;
+            return this;
+        }
+
+        Json field(String name, long value) {
+            name(name).append(value);
+            return this;
+        }
+
+        Json field(String name, double value) {
+            name(name).append(Double.isFinite(value) ? Double.toString(value) : "null");
+            return this;
+        }
+
+        Json field(String name, String value) {
+            quote(name(name), value);
+            return this;
+        }
+
+        private StringBuilder name(String name) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            return quote(out, name).append(':');
+        }
+
+        private static StringBuilder quote(StringBuilder out, String value) {
+            out.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+            return out.append('"');
+        }
+
+        @Override
+        public String toString() {
+            return out + "}";
+        }
+    }
+}
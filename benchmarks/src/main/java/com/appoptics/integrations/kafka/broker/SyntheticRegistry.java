@@ -0,0 +1,117 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills a registry with metrics shaped like a broker's: partition gauges, topic meters with their null-scope
+ * aggregates, and request histograms and timers with full reservoirs.
+ */
+class SyntheticRegistry {
+    private static final String[] REQUESTS = {"Produce", "FetchConsumer", "FetchFollower", "Metadata", "OffsetCommit"};
+    // the size of the yammer uniform and exponentially decaying reservoirs
+    private static final int RESERVOIR_SIZE = 1028;
+
+    private final MetricsRegistry registry;
+    private final List<Meter> meters = new ArrayList<>();
+    private final Random random = new Random(42);
+
+    private SyntheticRegistry(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * @param registry   the registry to fill
+     * @param topics     the number of topics
+     * @param partitions the number of partitions of each topic
+     * @return the filled registry
+     */
+    static SyntheticRegistry populate(MetricsRegistry registry, int topics, int partitions) {
+        final SyntheticRegistry synthetic = new SyntheticRegistry(registry);
+        for (int t = 0; t < topics; t++) {
+            final String topic = "topic-" + t;
+            for (int p = 0; p < partitions; p++) {
+                final String scope = "topic." + topic + ".partition." + p;
+                synthetic.gauge("kafka.log", "Log", "Size", scope);
+                synthetic.gauge("kafka.log", "Log", "LogEndOffset", scope);
+                synthetic.gauge("kafka.log", "Log", "LogStartOffset", scope);
+                synthetic.gauge("kafka.log", "Log", "NumLogSegments", scope);
+                synthetic.gauge("kafka.cluster", "Partition", "UnderReplicated", scope);
+            }
+            synthetic.meter("kafka.server", "BrokerTopicMetrics", "MessagesInPerSec", "topic." + topic);
+            synthetic.meter("kafka.server", "BrokerTopicMetrics", "BytesInPerSec", "topic." + topic);
+            synthetic.meter("kafka.server", "BrokerTopicMetrics", "BytesOutPerSec", "topic." + topic);
+        }
+        synthetic.meter("kafka.server", "BrokerTopicMetrics", "MessagesInPerSec", null);
+        synthetic.meter("kafka.server", "BrokerTopicMetrics", "BytesInPerSec", null);
+        synthetic.meter("kafka.server", "BrokerTopicMetrics", "BytesOutPerSec", null);
+
+        for (String request : REQUESTS) {
+            final String scope = "request." + request;
+            synthetic.meter("kafka.network", "RequestMetrics", "RequestsPerSec", scope);
+            synthetic.histogram("kafka.network", "RequestMetrics", "TotalTimeMs", scope);
+            synthetic.histogram("kafka.network", "RequestMetrics", "RequestQueueTimeMs", scope);
+            synthetic.histogram("kafka.network", "RequestMetrics", "ResponseSendTimeMs", scope);
+        }
+        synthetic.timer("kafka.controller", "ControllerStats", "LeaderElectionRateAndTimeMs", null);
+        synthetic.timer("kafka.log", "LogFlushStats", "LogFlushRateAndTimeMs", null);
+        return synthetic;
+    }
+
+    /**
+     * Marks every meter, so that counts move between reports.
+     */
+    void tick() {
+        for (Meter meter : meters) {
+            meter.mark(random.nextInt(1000));
+        }
+    }
+
+    /**
+     * Removes every metric from the registry.
+     */
+    void clear() {
+        for (MetricName name : new ArrayList<>(registry.allMetrics().keySet())) {
+            registry.removeMetric(name);
+        }
+    }
+
+    private void gauge(String group, String type, String name, String scope) {
+        final long value = random.nextInt(1 << 30);
+        registry.newGauge(new MetricName(group, type, name, scope), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return value;
+            }
+        });
+    }
+
+    private void meter(String group, String type, String name, String scope) {
+        final Meter meter = registry.newMeter(new MetricName(group, type, name, scope), "events", TimeUnit.SECONDS);
+        meter.mark(random.nextInt(1000));
+        meters.add(meter);
+    }
+
+    private void histogram(String group, String type, String name, String scope) {
+        final Histogram histogram = registry.newHistogram(new MetricName(group, type, name, scope), true);
+        for (int i = 0; i < RESERVOIR_SIZE; i++) {
+            histogram.update(random.nextInt(500));
+        }
+    }
+
+    private void timer(String group, String type, String name, String scope) {
+        final Timer timer = registry.newTimer(new MetricName(group, type, name, scope), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        for (int i = 0; i < RESERVOIR_SIZE; i++) {
+            timer.update(random.nextInt(500), TimeUnit.MILLISECONDS);
+        }
+    }
+}
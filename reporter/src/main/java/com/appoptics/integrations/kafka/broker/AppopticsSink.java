@@ -0,0 +1,40 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.appoptics.metrics.client.Tag;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Encodes batches into AppOptics measurements payloads on the polling thread and queues them on a
+ * {@link PayloadSender}, which posts them on its own threads.
+ */
+class AppopticsSink implements MeasurementSink {
+    private final PayloadSender sender;
+    private final MeasurementsEncoder encoder;
+    private final Consumer<PayloadBuffer> queue;
+    private final ReporterStats stats;
+
+    AppopticsSink(PayloadSender sender, List<Tag> tags, boolean payloadTags, int batchSize, ReporterStats stats) {
+        this.sender = sender;
+        this.encoder = new MeasurementsEncoder(sender.pool(), tags, payloadTags, batchSize, stats);
+        this.queue = sender::send;
+        this.stats = stats;
+    }
+
+    PayloadSender sender() {
+        return sender;
+    }
+
+    @Override
+    public void send(int tier, KafkaMetricsBatch batch, long epoch, int period) {
+        final long encodeStart = ReporterStats.start();
+        encoder.encode(batch, epoch, period, queue);
+        stats.stop(ReporterStats.Stage.ENCODE, encodeStart);
+    }
+
+    @Override
+    public void close() {
+        sender.shutdown();
+    }
+}
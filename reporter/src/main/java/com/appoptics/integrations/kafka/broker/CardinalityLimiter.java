@@ -0,0 +1,319 @@
+package com.appoptics.integrations.kafka.broker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the number of tagged series reported for each metric name. Series are ranked by their activity (the
+ * count delta of counters, meters, histograms and timers, the magnitude of gauges) in a Space-Saving sketch per
+ * metric name, with counts halved every interval so the ranking follows recent activity. The top K series of
+ * the previous interval are reported as they are, and the others are folded into one series with every tag set
+ * to {@code other}, aggregated like a {@link Rollup}. Folded gauges are aggregated as
+ * {@link Rollup#foldAggregation(NameAndTags)} says, so that e.g. lags are not summed.
+ * <p/>
+ * Series that are new since the last ranking are admitted while their metric name has room. Optionally the
+ * total number of tagged series is capped too, shrinking every metric name's share in proportion.
+ * Series rolled up by a {@link Rollup} rule are not limited. A series not seen for {@code maxIdleCycles}
+ * intervals leaves its sketch, and a metric name not seen for as long is dropped altogether.
+ */
+class CardinalityLimiter {
+    static final CardinalityLimiter NONE = new CardinalityLimiter(0, 0, 0);
+    static final String OTHER = "other";
+
+    // the sketch tracks more series than are reported, so that the top K are accurate
+    private static final int SKETCH_FACTOR = 4;
+    private static final double DECAY = 0.5;
+
+    private final int topK;
+    private final int maxSeries;
+    private final int maxIdleCycles;
+    private final ConcurrentHashMap<String, Sketch> sketches = new ConcurrentHashMap<>();
+    private final AtomicInteger admitted = new AtomicInteger();
+    private final LongAdder folded = new LongAdder();
+    private final LongAdder foldedTotal = new LongAdder();
+    // the other series of the series folded recently
+    private final SeriesCache<Rollup.Target> folds = new SeriesCache<>();
+    private volatile long lastFolded;
+    private int cycle;
+
+    /**
+     * @param topK          series reported per metric name, 0 to disable the limiter
+     * @param maxSeries     tagged series reported in total, 0 for no limit
+     * @param maxIdleCycles intervals after which the ranking of a metric name that is not reported is dropped
+     */
+    CardinalityLimiter(int topK, int maxSeries, int maxIdleCycles) {
+        if (topK < 0 || maxSeries < 0) {
+            throw new IllegalArgumentException("Series limits must not be negative");
+        }
+        this.topK = topK;
+        this.maxSeries = maxSeries;
+        this.maxIdleCycles = maxIdleCycles;
+    }
+
+    /**
+     * @return a limiter with the same configuration that has not ranked any series
+     */
+    CardinalityLimiter newInstance() {
+        return topK == 0 ? this : new CardinalityLimiter(topK, maxSeries, maxIdleCycles);
+    }
+
+    /**
+     * Records the activity of a series and decides whether it is folded in this interval.
+     *
+     * @param nameAndTags the series, without an expanded stat suffix
+     * @param activity    how active the series was in this interval
+     * @param rollup      the rollup rules, which say how a folded gauge is aggregated
+     * @return the series to fold it into, or null if it is reported as is
+     */
+    Rollup.Target fold(NameAndTags nameAndTags, double activity, Rollup rollup) {
+        if (topK == 0 || nameAndTags.getTags().isEmpty()) {
+            return null;
+        }
+        final Sketch sketch = sketches.computeIfAbsent(nameAndTags.getName(), k -> new Sketch(topK * SKETCH_FACTOR));
+        if (sketch.offer(nameAndTags, Math.abs(activity))) {
+            return null;
+        }
+        folded.increment();
+        Rollup.Target target = folds.get(nameAndTags);
+        if (target == null) {
+            target = new Rollup.Target(nameAndTags.withTagValues(OTHER), rollup.foldAggregation(nameAndTags), false);
+            folds.put(nameAndTags, target);
+        }
+        return target;
+    }
+
+    /**
+     * Marks the end of a reporting cycle, ranking the series for the next one.
+     */
+    void endCycle() {
+        if (topK == 0) {
+            return;
+        }
+        cycle++;
+        folds.endCycle();
+        final long foldedNow = folded.sumThenReset();
+        foldedTotal.add(foldedNow);
+        lastFolded = foldedNow;
+
+        final List<Sketch> active = new ArrayList<>(sketches.size());
+        int wanted = 0;
+        for (Iterator<Sketch> it = sketches.values().iterator(); it.hasNext(); ) {
+            final Sketch sketch = it.next();
+            if (cycle - sketch.lastSeen > maxIdleCycles) {
+                it.remove();
+            } else {
+                active.add(sketch);
+                wanted += Math.min(topK, sketch.size());
+            }
+        }
+        final double share = maxSeries > 0 && wanted > maxSeries ? (double) maxSeries / wanted : 1;
+        int total = 0;
+        for (Sketch sketch : active) {
+            total += sketch.rank((int) Math.max(1, Math.min(topK, sketch.size()) * share));
+        }
+        admitted.set(total);
+    }
+
+    /**
+     * @return the number of series folded into {@code other} series in the last interval
+     */
+    long getFoldedSeries() {
+        return lastFolded;
+    }
+
+    /**
+     * @return the number of series folded into {@code other} series since startup
+     */
+    long getFoldedSeriesTotal() {
+        return foldedTotal.sum();
+    }
+
+    /**
+     * @return the number of series ranked in all sketches
+     */
+    int getTrackedSeries() {
+        int tracked = 0;
+        for (Sketch sketch : sketches.values()) {
+            tracked += sketch.size();
+        }
+        return tracked;
+    }
+
+    /**
+     * Counts an admission towards {@code maxSeries}, unless the cap is reached.
+     */
+    private boolean admit() {
+        while (true) {
+            final int current = admitted.get();
+            if (current >= maxSeries) {
+                return false;
+            }
+            if (admitted.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * A Space-Saving sketch of the most active series of one metric name, kept as an indexed min-heap on the
+     * counts so that the least active slot can be replaced in logarithmic time.
+     */
+    private final class Sketch {
+        private final Map<NameAndTags, Slot> slots = new HashMap<>();
+        private final Slot[] heap;
+        private int size;
+        // the series reported as they are, ranked at the end of the last cycle plus newly admitted ones
+        private Set<NameAndTags> reported = new HashSet<>();
+        private int limit;
+        private volatile int lastSeen;
+
+        Sketch(int capacity) {
+            this.heap = new Slot[capacity];
+            this.limit = topK;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized boolean offer(NameAndTags series, double activity) {
+            lastSeen = cycle;
+            Slot slot = slots.get(series);
+            if (slot != null) {
+                slot.count += activity;
+                siftDown(slot.index);
+            } else if (size < heap.length) {
+                slot = new Slot(series, activity, size);
+                heap[size++] = slot;
+                slots.put(series, slot);
+                siftUp(slot.index);
+            } else {
+                // replace the least active series, inheriting its count as the overestimation error
+                slot = heap[0];
+                slots.remove(slot.series);
+                slot.series = series;
+                slot.count += activity;
+                slots.put(series, slot);
+                siftDown(0);
+            }
+            slot.lastSeen = cycle;
+
+            if (reported.contains(series)) {
+                return true;
+            }
+            if (reported.size() < limit && (maxSeries == 0 || admit())) {
+                reported.add(series);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Keeps the most active series for the next cycle and decays the counts.
+         *
+         * @return the number of series that will be reported
+         */
+        synchronized int rank(int keep) {
+            evictIdle();
+            final Slot[] ranked = Arrays.copyOf(heap, size);
+            Arrays.sort(ranked, Comparator.comparingDouble((Slot slot) -> slot.count).reversed());
+            final Set<NameAndTags> next = new HashSet<>();
+            for (int i = 0; i < Math.min(keep, ranked.length); i++) {
+                next.add(ranked[i].series);
+            }
+            for (int i = 0; i < size; i++) {
+                heap[i].count *= DECAY;
+            }
+            reported = next;
+            limit = keep;
+            return next.size();
+        }
+
+        /**
+         * Removes the series that were not offered for {@code maxIdleCycles}, e.g. partitions moved away.
+         */
+        private void evictIdle() {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                final Slot slot = heap[i];
+                if (cycle - slot.lastSeen > maxIdleCycles) {
+                    slots.remove(slot.series);
+                } else {
+                    heap[kept++] = slot;
+                }
+            }
+            if (kept == size) {
+                return;
+            }
+            Arrays.fill(heap, kept, size, null);
+            size = kept;
+            for (int i = 0; i < size; i++) {
+                heap[i].index = i;
+            }
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        private void siftUp(int i) {
+            final Slot slot = heap[i];
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (heap[parent].count <= slot.count) {
+                    break;
+                }
+                place(heap[parent], i);
+                i = parent;
+            }
+            place(slot, i);
+        }
+
+        private void siftDown(int i) {
+            final Slot slot = heap[i];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+                    child++;
+                }
+                if (slot.count <= heap[child].count) {
+                    break;
+                }
+                place(heap[child], i);
+                i = child;
+            }
+            place(slot, i);
+        }
+
+        private void place(Slot slot, int i) {
+            heap[i] = slot;
+            slot.index = i;
+        }
+    }
+
+    private static final class Slot {
+        NameAndTags series;
+        double count;
+        int index;
+        // the cycle the series was last offered in
+        int lastSeen;
+
+        Slot(NameAndTags series, double count, int index) {
+            this.series = series;
+            this.count = count;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.appoptics.integrations.kafka.broker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops posting after {@code failureThreshold} consecutive failures. While open, posts are refused until
+ * {@code openMillis} have passed, then a single probe is let through: if it succeeds the circuit closes, if it
+ * fails the circuit opens again.
+ */
+class CircuitBreaker {
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+    static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    static final long DEFAULT_OPEN_MILLIS = 30000;
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private long timesOpened;
+
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        if (failureThreshold < 1 || openMillis < 0) {
+            throw new IllegalArgumentException("Invalid circuit breaker settings");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openMillis * 1000000L;
+    }
+
+    /**
+     * @return true if a post may be attempted now
+     */
+    synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openedAt >= openNanos) {
+                    transition(State.HALF_OPEN);
+                    return true;
+                }
+                return false;
+            default:
+                // a probe is already in flight
+                return false;
+        }
+    }
+
+    synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+            transition(State.CLOSED);
+        }
+    }
+
+    synchronized void onFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            openedAt = System.nanoTime();
+            timesOpened++;
+            transition(State.OPEN);
+        }
+    }
+
+    /**
+     * Ends a post that failed for a reason that says nothing about the endpoint. A probe in flight is given back,
+     * so that the next post is let through as the probe.
+     */
+    synchronized void onAbandoned() {
+        if (state == State.HALF_OPEN) {
+            // openedAt is unchanged, the open period is already over
+            transition(State.OPEN);
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    synchronized long getTimesOpened() {
+        return timesOpened;
+    }
+
+    private void transition(State next) {
+        LOG.info("Circuit breaker for posting measurements changed from {} to {}", state, next);
+        state = next;
+    }
+}
@@ -0,0 +1,33 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.yammer.metrics.core.Metric;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Used to supply metrics to the delta tracker on initialization. Uses the metric NAME conversion
+ * to ensure that the correct names are supplied for the metric. Only the metrics of the tracker's tier are
+ * supplied.
+ */
+class DeltaMetricSupplier implements DeltaTracker.MetricSupplier {
+    private final ReportableMetrics reportable;
+    private final NameCache nameCache;
+    private final int tier;
+
+    DeltaMetricSupplier(ReportableMetrics reportable, NameCache nameCache, int tier) {
+        this.reportable = reportable;
+        this.nameCache = nameCache;
+        this.tier = tier;
+    }
+
+    public Map<NameAndTags, Metric> getMetrics() {
+        final Map<NameAndTags, Metric> map = new HashMap<>();
+        for (ReportableMetrics.Entry entry : reportable.entries()) {
+            if (entry.tier == tier) {
+                map.put(nameCache.get(entry.name), entry.metric);
+            }
+        }
+        return map;
+    }
+}
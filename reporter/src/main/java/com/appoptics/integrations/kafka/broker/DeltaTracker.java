@@ -0,0 +1,117 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Metered;
+import com.yammer.metrics.core.Metric;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Tracks the last named value.
+ * <p/>
+ * Counts are kept in a primitive array indexed by a {@link SeriesIndex} id. Series that are not reported for
+ * {@code maxIdleCycles} consecutive cycles are forgotten, so that if they come back their first delta is
+ * computed from zero.
+ * <p/>
+ * Safe for concurrent use: series are spread over {@code concurrency} independently locked stripes so that
+ * parallel collectors rarely contend.
+ */
+class DeltaTracker {
+    private static final Logger LOG = LoggerFactory.getLogger(DeltaTracker.class);
+    static final int DEFAULT_MAX_IDLE_CYCLES = 10;
+
+    private final Stripe[] stripes;
+    private final int maxIdleCycles;
+
+    public interface MetricSupplier {
+        Map<NameAndTags, Metric> getMetrics();
+    }
+
+    DeltaTracker(MetricSupplier supplier) {
+        this(supplier, DEFAULT_MAX_IDLE_CYCLES, 1);
+    }
+
+    DeltaTracker(MetricSupplier supplier, int maxIdleCycles, int concurrency) {
+        final Map<NameAndTags, Metric> metrics = supplier.getMetrics();
+        this.stripes = new Stripe[Integer.highestOneBit(Math.max(1, concurrency) * 2 - 1)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(metrics.size() / stripes.length);
+        }
+        this.maxIdleCycles = maxIdleCycles;
+        for (Map.Entry<NameAndTags, Metric> entry : metrics.entrySet()) {
+            final NameAndTags nameAndTags = entry.getKey();
+            final Metric metric = entry.getValue();
+            if (metric instanceof Metered) {
+                getDelta(nameAndTags, ((Metered) metric).count());
+            }
+            if (metric instanceof Histogram) {
+                getDelta(nameAndTags, ((Histogram) metric).count());
+            }
+        }
+    }
+
+    /**
+     * Calculates the delta.  If this is a new value that has not been seen before, zero will be assumed to be the
+     * initial value.
+     *
+     * @param nameAndTags  the nameAndTags of the counter
+     * @param count the counter value
+     * @return the delta
+     */
+    long getDelta(NameAndTags nameAndTags, long count) {
+        final int hash = nameAndTags.hashCode();
+        final long delta = stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)].getDelta(nameAndTags, count);
+        if (delta < 0) {
+            LOG.error("Saw a non-monotonically increasing value for metric {}", nameAndTags);
+            return 0L;
+        }
+        return delta;
+    }
+
+    /**
+     * Marks the end of a reporting cycle, evicting the series that have not been reported recently.
+     */
+    void endCycle() {
+        int evicted = 0;
+        int remaining = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                evicted += stripe.index.advance(maxIdleCycles);
+                remaining += stripe.index.size();
+            }
+        }
+        if (evicted > 0) {
+            LOG.debug("Evicted {} idle series from the delta tracker, {} remain", evicted, remaining);
+        }
+    }
+
+    private static final class Stripe {
+        private final SeriesIndex index;
+        private long[] counts;
+
+        Stripe(int expectedSize) {
+            this.index = new SeriesIndex(expectedSize);
+            this.counts = new long[index.capacity()];
+        }
+
+        synchronized long getDelta(NameAndTags nameAndTags, long count) {
+            int id = index.get(nameAndTags);
+            final long previous;
+            if (id == SeriesIndex.ABSENT) {
+                // this is the first time we have seen this count
+                id = index.add(nameAndTags);
+                if (counts.length < index.capacity()) {
+                    counts = Arrays.copyOf(counts, index.capacity());
+                }
+                previous = 0L;
+            } else {
+                previous = counts[id];
+            }
+            counts[id] = count;
+            return count - previous;
+        }
+    }
+}
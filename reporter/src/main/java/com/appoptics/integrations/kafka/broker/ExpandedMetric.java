@@ -1,5 +1,7 @@
 package com.appoptics.integrations.kafka.broker;
 
+import com.appoptics.metrics.client.Sanitizer;
+
 import java.util.EnumSet;
 import java.util.Set;
 
@@ -19,6 +21,8 @@ public enum ExpandedMetric {
     RATE_15_MINUTE("15MinuteRate");
 
     public final String displayName;
+    // sanitized once, appended to metric names when the stat is reported
+    final String suffix;
 
     public String buildMetricName(String metric) {
         return metric + "." + displayName;
@@ -26,6 +30,7 @@ public enum ExpandedMetric {
 
     ExpandedMetric(String displayName) {
         this.displayName = displayName;
+        this.suffix = Sanitizer.METRIC_NAME_SANITIZER.apply(displayName);
     }
 
     /**
@@ -42,5 +47,14 @@ public enum ExpandedMetric {
         boolean isSet(ExpandedMetric metric) {
             return enabled.contains(metric);
         }
+
+        boolean isAnySet(ExpandedMetric... metrics) {
+            for (ExpandedMetric metric : metrics) {
+                if (enabled.contains(metric)) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 }
@@ -0,0 +1,115 @@
+package com.appoptics.integrations.kafka.broker;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Skips gauges whose value has not changed since it was last sent. A value is unchanged if it differs from the
+ * last sent value by at most {@code epsilon}; zero means only identical values are skipped. Every series is
+ * still sent at least every {@code heartbeatIntervals} intervals so that it does not go stale.
+ * <p/>
+ * The last sent values are kept in primitive arrays indexed by {@link SeriesIndex} ids, spread over
+ * independently locked stripes like {@link DeltaTracker}.
+ */
+class GaugeSuppressor {
+    static final int DEFAULT_HEARTBEAT_INTERVALS = 10;
+
+    private final boolean enabled;
+    private final double epsilon;
+    private final int heartbeatIntervals;
+    private final int maxIdleCycles;
+    private final int concurrency;
+    private final Stripe[] stripes;
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+
+    GaugeSuppressor(boolean enabled, double epsilon, int heartbeatIntervals, int maxIdleCycles, int concurrency) {
+        if (epsilon < 0 || heartbeatIntervals < 1) {
+            throw new IllegalArgumentException("Epsilon must not be negative and the heartbeat interval must be positive");
+        }
+        this.enabled = enabled;
+        this.epsilon = epsilon;
+        this.heartbeatIntervals = heartbeatIntervals;
+        this.maxIdleCycles = maxIdleCycles;
+        this.concurrency = concurrency;
+        this.stripes = new Stripe[enabled ? Integer.highestOneBit(Math.max(1, concurrency) * 2 - 1) : 0];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * @return a suppressor with the same configuration that has not seen any gauge
+     */
+    GaugeSuppressor newInstance() {
+        return new GaugeSuppressor(enabled, epsilon, heartbeatIntervals, maxIdleCycles, concurrency);
+    }
+
+    /**
+     * @param nameAndTags the gauge
+     * @param value       its current value
+     * @return true if the value should not be sent in this interval
+     */
+    boolean isSuppressed(NameAndTags nameAndTags, double value) {
+        if (!enabled) {
+            return false;
+        }
+        checked.increment();
+        final int hash = nameAndTags.hashCode();
+        if (stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)].isSuppressed(nameAndTags, value)) {
+            suppressed.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the fraction of gauge values that were not sent, since startup
+     */
+    double getSuppressionRatio() {
+        final long total = getChecked();
+        return total == 0 ? 0 : (double) getSuppressed() / total;
+    }
+
+    long getChecked() {
+        return checked.sum();
+    }
+
+    long getSuppressed() {
+        return suppressed.sum();
+    }
+
+    /**
+     * Marks the end of a reporting cycle, forgetting the gauges that have not been reported recently.
+     */
+    void endCycle() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.index.advance(maxIdleCycles);
+            }
+        }
+    }
+
+    private final class Stripe {
+        private final SeriesIndex index = new SeriesIndex();
+        private double[] lastSent = new double[index.capacity()];
+        private int[] skipped = new int[index.capacity()];
+
+        synchronized boolean isSuppressed(NameAndTags nameAndTags, double value) {
+            int id = index.get(nameAndTags);
+            if (id == SeriesIndex.ABSENT) {
+                id = index.add(nameAndTags);
+                if (lastSent.length < index.capacity()) {
+                    lastSent = Arrays.copyOf(lastSent, index.capacity());
+                    skipped = Arrays.copyOf(skipped, index.capacity());
+                }
+            } else if (Math.abs(value - lastSent[id]) <= epsilon && skipped[id] + 1 < heartbeatIntervals) {
+                skipped[id]++;
+                return true;
+            }
+            lastSent[id] = value;
+            skipped[id] = 0;
+            return false;
+        }
+    }
+}
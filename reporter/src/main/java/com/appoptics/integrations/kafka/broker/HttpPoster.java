@@ -0,0 +1,205 @@
+package com.appoptics.integrations.kafka.broker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Posts encoded measurement payloads to the AppOptics measurements API. Responses are read fully so that the
+ * underlying connection can be kept alive and reused for the next post.
+ */
+class HttpPoster {
+    private static final String USER_AGENT = "kafka-appoptics-reporter";
+    private static final String RATE_LIMIT_HEADER_PREFIX = "x-librato-ratelimit";
+    private static final int COMPRESSED_INITIAL_CAPACITY = 32 * 1024;
+
+    private final URL url;
+    private final String authorization;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final PayloadCompressor.CompressionConfig compression;
+    // one per sender thread, closed by the thread when it exits
+    private final ThreadLocal<PayloadCompressor> compressors = new ThreadLocal<>();
+
+    HttpPoster(URL url,
+               String token,
+               int connectTimeoutMillis,
+               int readTimeoutMillis,
+               PayloadCompressor.CompressionConfig compression) {
+        this.url = url;
+        this.authorization = "Basic " + Base64.getEncoder().encodeToString((token + ":").getBytes(UTF_8));
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.compression = compression;
+    }
+
+    /**
+     * @return the longest a single post can block, connecting and waiting for the response
+     */
+    long timeoutMillis() {
+        return (long) connectTimeoutMillis + readTimeoutMillis;
+    }
+
+    /**
+     * Posts a payload, compressing it first if configured to.
+     *
+     * @param payload the JSON payload
+     * @return the response
+     * @throws IOException if the request could not be completed
+     */
+    Response post(PayloadBuffer payload) throws IOException {
+        PayloadBuffer body = payload;
+        String contentEncoding = null;
+        if (compression.shouldCompress(payload.size())) {
+            body = compressor().compress(payload);
+            contentEncoding = compression.encoding.contentEncoding;
+        }
+
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        connection.setFixedLengthStreamingMode(body.size());
+        connection.setRequestProperty("Authorization", authorization);
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setRequestProperty("User-Agent", USER_AGENT);
+        if (contentEncoding != null) {
+            connection.setRequestProperty("Content-Encoding", contentEncoding);
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.array(), 0, body.size());
+        }
+        final int code = connection.getResponseCode();
+        final InputStream in = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+        final byte[] responseBody = readFully(in);
+        return new Response(code, responseBody, code < 400 ? 0 : retryAfterMillis(connection), body.size());
+    }
+
+    /**
+     * Frees the calling thread's compressor, if it has one. Called by each sender thread before it exits.
+     */
+    void closeCompressor() {
+        final PayloadCompressor compressor = compressors.get();
+        if (compressor != null) {
+            compressors.remove();
+            compressor.close();
+        }
+    }
+
+    private PayloadCompressor compressor() {
+        PayloadCompressor compressor = compressors.get();
+        if (compressor == null) {
+            compressor = new PayloadCompressor(compression, COMPRESSED_INITIAL_CAPACITY);
+            compressors.set(compressor);
+        }
+        return compressor;
+    }
+
+    /**
+     * Reads the delay requested by the endpoint from {@code Retry-After} (seconds or an HTTP date), or from an
+     * exhausted AppOptics rate limit header ({@code limit=..,remaining=0,reset=<epoch seconds>}).
+     *
+     * @return the delay in milliseconds, zero if none was requested
+     */
+    private static long retryAfterMillis(HttpURLConnection connection) {
+        final long now = System.currentTimeMillis();
+        final String retryAfter = connection.getHeaderField("Retry-After");
+        if (retryAfter != null) {
+            try {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+            } catch (NumberFormatException e) {
+                final long date = connection.getHeaderFieldDate("Retry-After", 0);
+                if (date > 0) {
+                    return Math.max(0, date - now);
+                }
+            }
+        }
+        long delay = 0;
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            if (header.getKey() != null && header.getKey().toLowerCase().startsWith(RATE_LIMIT_HEADER_PREFIX)) {
+                for (String value : header.getValue()) {
+                    delay = Math.max(delay, rateLimitResetMillis(value, now));
+                }
+            }
+        }
+        return delay;
+    }
+
+    private static long rateLimitResetMillis(String value, long now) {
+        long remaining = -1;
+        long reset = 0;
+        for (String part : value.split(",")) {
+            final String[] kv = part.trim().split("=", 2);
+            if (kv.length == 2) {
+                try {
+                    if (kv[0].equals("remaining")) {
+                        remaining = Long.parseLong(kv[1].trim());
+                    } else if (kv[0].equals("reset")) {
+                        reset = Long.parseLong(kv[1].trim());
+                    }
+                } catch (NumberFormatException e) {
+                    // not a header we understand
+                    return 0;
+                }
+            }
+        }
+        return remaining == 0 && reset > 0 ? Math.max(0, TimeUnit.SECONDS.toMillis(reset) - now) : 0;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        if (in == null) {
+            return new byte[0];
+        }
+        try (InputStream stream = in) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] chunk = new byte[4096];
+            int read;
+            while ((read = stream.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    static final class Response {
+        final int code;
+        final byte[] body;
+        // delay requested by the endpoint before trying again, zero if none
+        final long retryAfterMillis;
+        // the size of the request body as written, after compression
+        final int sentBytes;
+
+        Response(int code, byte[] body, long retryAfterMillis, int sentBytes) {
+            this.code = code;
+            this.body = body;
+            this.retryAfterMillis = retryAfterMillis;
+            this.sentBytes = sentBytes;
+        }
+
+        boolean isError() {
+            return code < 200 || code >= 300;
+        }
+
+        /**
+         * @return true if the same payload may succeed when posted again later
+         */
+        boolean isRetryable() {
+            return code >= 500 || code == 429;
+        }
+
+        @Override
+        public String toString() {
+            return "response code " + code + ", response body " + new String(body, UTF_8);
+        }
+    }
+}
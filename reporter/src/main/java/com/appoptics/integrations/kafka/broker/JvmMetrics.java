@@ -0,0 +1,261 @@
+package com.appoptics.integrations.kafka.broker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.RuntimeMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * Reads the JVM's metrics straight from the platform MXBeans: memory and its pools, the direct and mapped buffer
+ * pools Kafka's zero-copy and index files live in, threads, garbage collection, allocation rate and, where the JVM
+ * exposes them, safepoints.
+ * <p/>
+ * Probes that walk every thread or every open file (thread states, file descriptor usage and, on JVMs without a
+ * total allocation counter, the allocated bytes) only run every {@code slowIntervals} reports. Names are built
+ * once, the pools and collectors of a JVM do not change.
+ */
+class JvmMetrics {
+    private static final Logger LOG = LoggerFactory.getLogger(JvmMetrics.class);
+    static final int DEFAULT_SLOW_INTERVALS = 10;
+    private static final String PREFIX = "kafka.server.jvm.";
+
+    private static final NameAndTags HEAP_USAGE = new NameAndTags(PREFIX + "memory.heap_usage");
+    private static final NameAndTags NON_HEAP_USAGE = new NameAndTags(PREFIX + "memory.non_heap_usage");
+    private static final NameAndTags ALLOCATION_RATE = new NameAndTags(PREFIX + "memory.allocation_rate");
+    private static final NameAndTags DAEMON_THREAD_COUNT = new NameAndTags(PREFIX + "daemon_thread_count");
+    private static final NameAndTags THREAD_COUNT = new NameAndTags(PREFIX + "thread_count");
+    private static final NameAndTags UPTIME = new NameAndTags(PREFIX + "uptime");
+    private static final NameAndTags FD_USAGE = new NameAndTags(PREFIX + "fd_usage");
+    private static final NameAndTags SAFEPOINT_COUNT = new NameAndTags(PREFIX + "safepoint.count");
+    private static final NameAndTags SAFEPOINT_TIME = new NameAndTags(PREFIX + "safepoint.time");
+    private static final NameAndTags SAFEPOINT_SYNC_TIME = new NameAndTags(PREFIX + "safepoint.sync_time");
+    private static final Thread.State[] THREAD_STATES = Thread.State.values();
+
+    private final int slowIntervals;
+    private int reports;
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+    private final List<MemoryPoolMXBean> memoryPools = ManagementFactory.getMemoryPoolMXBeans();
+    private final NameAndTags[] memoryPoolNames = new NameAndTags[memoryPools.size()];
+
+    private final List<BufferPoolMXBean> bufferPools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+    private final NameAndTags[] bufferPoolNames = new NameAndTags[bufferPools.size() * 3];
+
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private final NameAndTags[] collectorNames = new NameAndTags[collectors.size() * 3];
+    private final long[] collectorRuns = new long[collectors.size()];
+
+    private final NameAndTags[] threadStateNames = new NameAndTags[THREAD_STATES.length];
+    private final int[] threadStateCounts = new int[THREAD_STATES.length];
+
+    // reads the total bytes allocated by all threads, if the JVM counts them, otherwise they are summed over the
+    // live threads
+    private final Method totalAllocatedBytes;
+    private long lastAllocatedBytes = -1;
+    private long lastAllocatedNanos;
+
+    // the HotSpot runtime MBean, only reachable on JVMs that do not encapsulate sun.management
+    private final Object hotspotRuntime;
+    private final Method safepointCount;
+    private final Method safepointTime;
+    private final Method safepointSyncTime;
+
+    JvmMetrics(int slowIntervals) {
+        this.slowIntervals = Math.max(1, slowIntervals);
+        for (int i = 0; i < memoryPools.size(); i++) {
+            memoryPoolNames[i] = new NameAndTags(PREFIX + "memory.memory_pool_usages." + memoryPools.get(i).getName());
+        }
+        for (int i = 0; i < bufferPools.size(); i++) {
+            final String name = PREFIX + "buffers." + bufferPools.get(i).getName();
+            bufferPoolNames[i * 3] = new NameAndTags(name + ".count");
+            bufferPoolNames[i * 3 + 1] = new NameAndTags(name + ".used");
+            bufferPoolNames[i * 3 + 2] = new NameAndTags(name + ".capacity");
+        }
+        for (int i = 0; i < collectors.size(); i++) {
+            final String name = PREFIX + "gc." + collectors.get(i).getName();
+            collectorNames[i * 3] = new NameAndTags(name + ".time");
+            collectorNames[i * 3 + 1] = new NameAndTags(name + ".runs");
+            collectorNames[i * 3 + 2] = new NameAndTags(name + ".last_pause");
+        }
+        for (Thread.State state : THREAD_STATES) {
+            threadStateNames[state.ordinal()] = new NameAndTags(PREFIX + "thread-states." + state.toString().toLowerCase());
+        }
+
+        // added to the interface after Java 8
+        this.totalAllocatedBytes = threads instanceof com.sun.management.ThreadMXBean
+                ? method("com.sun.management.ThreadMXBean", "getTotalThreadAllocatedBytes")
+                : null;
+
+        Object hotspot = null;
+        try {
+            hotspot = Class.forName("sun.management.ManagementFactoryHelper").getMethod("getHotspotRuntimeMBean").invoke(null);
+        } catch (Throwable e) {
+            LOG.debug("Safepoint metrics are not available on this JVM", e);
+        }
+        this.safepointCount = method("sun.management.HotspotRuntimeMBean", "getSafepointCount");
+        this.safepointTime = method("sun.management.HotspotRuntimeMBean", "getTotalSafepointTime");
+        this.safepointSyncTime = method("sun.management.HotspotRuntimeMBean", "getSafepointSyncTime");
+        this.hotspotRuntime = safepointCount != null && safepointTime != null && safepointSyncTime != null ? hotspot : null;
+    }
+
+    /**
+     * Adds the JVM's metrics to the batch, including the slow probes if they are due.
+     */
+    void report(KafkaMetricsBatch batch) {
+        final boolean slow = reports++ % slowIntervals == 0;
+
+        // memory
+        batch.addGaugeMeasurement(HEAP_USAGE, usage(memory.getHeapMemoryUsage()));
+        batch.addGaugeMeasurement(NON_HEAP_USAGE, usage(memory.getNonHeapMemoryUsage()));
+        for (int i = 0; i < memoryPools.size(); i++) {
+            final MemoryUsage usage = memoryPools.get(i).getUsage();
+            if (usage != null) {
+                batch.addGaugeMeasurement(memoryPoolNames[i], usage(usage));
+            }
+        }
+        for (int i = 0; i < bufferPools.size(); i++) {
+            final BufferPoolMXBean pool = bufferPools.get(i);
+            batch.addGaugeMeasurement(bufferPoolNames[i * 3], pool.getCount());
+            batch.addGaugeMeasurement(bufferPoolNames[i * 3 + 1], pool.getMemoryUsed());
+            batch.addGaugeMeasurement(bufferPoolNames[i * 3 + 2], pool.getTotalCapacity());
+        }
+        if (totalAllocatedBytes != null || slow) {
+            reportAllocationRate(batch);
+        }
+
+        // threads
+        batch.addGaugeMeasurement(DAEMON_THREAD_COUNT, threads.getDaemonThreadCount());
+        batch.addGaugeMeasurement(THREAD_COUNT, threads.getThreadCount());
+        batch.addGaugeMeasurement(UPTIME, runtime.getUptime() / 1000);
+        if (slow) {
+            reportThreadStates(batch);
+            reportFileDescriptorUsage(batch);
+        }
+
+        // garbage collection
+        for (int i = 0; i < collectors.size(); i++) {
+            final GarbageCollectorMXBean collector = collectors.get(i);
+            final long runs = collector.getCollectionCount();
+            batch.addGaugeMeasurement(collectorNames[i * 3], collector.getCollectionTime());
+            batch.addGaugeMeasurement(collectorNames[i * 3 + 1], runs);
+            if (runs != collectorRuns[i] && collector instanceof com.sun.management.GarbageCollectorMXBean) {
+                final com.sun.management.GcInfo info = ((com.sun.management.GarbageCollectorMXBean) collector).getLastGcInfo();
+                if (info != null) {
+                    batch.addGaugeMeasurement(collectorNames[i * 3 + 2], info.getDuration());
+                }
+            }
+            collectorRuns[i] = runs;
+        }
+        reportSafepoints(batch);
+    }
+
+    private static double usage(MemoryUsage usage) {
+        final long max = usage.getMax() > 0 ? usage.getMax() : usage.getCommitted();
+        return max > 0 ? (double) usage.getUsed() / max : 0;
+    }
+
+    /**
+     * Reports the bytes allocated per second since the last report. Summed over the live threads, the allocations
+     * of threads that ended in between are missing, and a negative difference is not reported.
+     */
+    private void reportAllocationRate(KafkaMetricsBatch batch) {
+        final long allocated = allocatedBytes();
+        final long now = System.nanoTime();
+        if (allocated >= 0 && lastAllocatedBytes >= 0 && allocated >= lastAllocatedBytes && now > lastAllocatedNanos) {
+            batch.addGaugeMeasurement(ALLOCATION_RATE, (allocated - lastAllocatedBytes) * 1e9 / (now - lastAllocatedNanos));
+        }
+        lastAllocatedBytes = allocated;
+        lastAllocatedNanos = now;
+    }
+
+    private long allocatedBytes() {
+        if (totalAllocatedBytes != null) {
+            try {
+                return (Long) totalAllocatedBytes.invoke(threads);
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        final com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+        if (!counting.isThreadAllocatedMemorySupported() || !counting.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long total = 0;
+        for (long bytes : counting.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Reports the fraction of threads in each state, from thread infos without stack traces.
+     */
+    private void reportThreadStates(KafkaMetricsBatch batch) {
+        final ThreadInfo[] infos = threads.getThreadInfo(threads.getAllThreadIds(), 0);
+        int alive = 0;
+        for (ThreadInfo info : infos) {
+            if (info != null) {
+                threadStateCounts[info.getThreadState().ordinal()]++;
+                alive++;
+            }
+        }
+        for (int i = 0; i < THREAD_STATES.length; i++) {
+            batch.addGaugeMeasurement(threadStateNames[i], alive == 0 ? 0 : (double) threadStateCounts[i] / alive);
+            threadStateCounts[i] = 0;
+        }
+    }
+
+    private void reportFileDescriptorUsage(KafkaMetricsBatch batch) {
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            final com.sun.management.UnixOperatingSystemMXBean unix = (com.sun.management.UnixOperatingSystemMXBean) os;
+            final long max = unix.getMaxFileDescriptorCount();
+            if (max > 0) {
+                batch.addGaugeMeasurement(FD_USAGE, (double) unix.getOpenFileDescriptorCount() / max);
+            }
+        }
+    }
+
+    private void reportSafepoints(KafkaMetricsBatch batch) {
+        if (hotspotRuntime == null) {
+            return;
+        }
+        try {
+            batch.addGaugeMeasurement(SAFEPOINT_COUNT, (Long) safepointCount.invoke(hotspotRuntime));
+            batch.addGaugeMeasurement(SAFEPOINT_TIME, (Long) safepointTime.invoke(hotspotRuntime));
+            batch.addGaugeMeasurement(SAFEPOINT_SYNC_TIME, (Long) safepointSyncTime.invoke(hotspotRuntime));
+        } catch (Exception e) {
+            LOG.debug("Unable to read safepoint metrics", e);
+        }
+    }
+
+    /**
+     * @return a method of an MXBean interface, or null if the JVM does not have it
+     */
+    private static Method method(String interfaceName, String name) {
+        try {
+            return Class.forName(interfaceName).getMethod(name);
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.appoptics.integrations.kafka.broker;
+
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.KafkaMetric;
+import org.apache.kafka.common.metrics.MetricsReporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reports the metrics of Kafka's own metrics library, such as the socket server, quota and request channel metrics,
+ * through the pipeline of {@link KafkaAppopticsReporter}. Configured with {@code metric.reporters}; the Yammer
+ * reporter must be configured too, as it does the polling and posting, with the same settings.
+ * <p/>
+ * Metrics are handed over as Kafka adds and removes them, their tags become AppOptics tags as they are.
+ */
+@SuppressWarnings("unused")
+public class KafkaAppopticsMetricsReporter implements MetricsReporter {
+    private static final Logger LOG = LoggerFactory.getLogger(KafkaAppopticsMetricsReporter.class);
+
+    // the metrics added through this instance, removed from the shared metrics when it is closed
+    private final Set<MetricName> added = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public void configure(Map<String, ?> configs) {
+        // the settings are read by KafkaAppopticsReporter
+    }
+
+    @Override
+    public void init(List<KafkaMetric> metrics) {
+        for (KafkaMetric metric : metrics) {
+            metricChange(metric);
+        }
+        LOG.info("reporting {} Kafka metrics to appoptics", metrics.size());
+    }
+
+    @Override
+    public void metricChange(KafkaMetric metric) {
+        added.add(metric.metricName());
+        NativeMetrics.SHARED.add(metric);
+    }
+
+    @Override
+    public void metricRemoval(KafkaMetric metric) {
+        added.remove(metric.metricName());
+        NativeMetrics.SHARED.remove(metric.metricName());
+    }
+
+    @Override
+    public void close() {
+        for (MetricName name : added) {
+            NativeMetrics.SHARED.remove(name);
+        }
+        added.clear();
+    }
+}
@@ -0,0 +1,509 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.appoptics.metrics.client.Sanitizer;
+import com.appoptics.metrics.client.Tag;
+import kafka.metrics.KafkaMetricsReporter;
+import kafka.utils.VerifiableProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+@SuppressWarnings("unused")
+public class KafkaAppopticsReporter implements KafkaMetricsReporter, KafkaAppopticsReporterMBean {
+
+    private final Logger LOG = LoggerFactory.getLogger(KafkaAppopticsReporter.class);
+    private Reporter reporter;
+    private PayloadCompressor.CompressionStats compressionStats;
+    private PayloadSender sender;
+    private ReporterStats stats;
+
+    private static final String URL = "appoptics.url";
+    private static final String TOKEN = "appoptics.token";
+    private static final String AGENT_IDENTIFIER = "appoptics.agent.identifier";
+    private static final String TAGS = "appoptics.tags";
+    private static final String PAYLOAD_TAGS = "appoptics.tags.payload";
+    private static final String BATCH_SIZE = "appoptics.batch.size";
+    private static final String COMPRESSION = "appoptics.compression";
+    private static final String COMPRESSION_LEVEL = "appoptics.compression.level";
+    private static final String COMPRESSION_MIN_BYTES = "appoptics.compression.min.bytes";
+    private static final String SENDER_THREADS = "appoptics.sender.threads";
+    private static final String SENDER_QUEUE_SIZE = "appoptics.sender.queue.size";
+    private static final String SENDER_OVERFLOW = "appoptics.sender.overflow";
+    private static final String SENDER_BLOCK_TIMEOUT_MS = "appoptics.sender.block.timeout.ms";
+    private static final String SENDER_DRAIN_TIMEOUT_MS = "appoptics.sender.drain.timeout.ms";
+    private static final String SPOOL_DIR = "appoptics.spool.dir";
+    private static final String SPOOL_SIZE_MB = "appoptics.spool.size.mb";
+    private static final String SPOOL_REPLAY_PER_SECOND = "appoptics.spool.replay.per.second";
+    private static final String RETRY_MAX_ATTEMPTS = "appoptics.retry.max.attempts";
+    private static final String RETRY_BACKOFF_MS = "appoptics.retry.backoff.ms";
+    private static final String RETRY_BACKOFF_MAX_MS = "appoptics.retry.backoff.max.ms";
+    private static final String CIRCUIT_FAILURE_THRESHOLD = "appoptics.circuit.failure.threshold";
+    private static final String CIRCUIT_OPEN_MS = "appoptics.circuit.open.ms";
+    private static final String COLLECTION_THREADS = "appoptics.collection.threads";
+    private static final String IDLE_SAMPLING = "appoptics.idle.sampling";
+    private static final String IDLE_HEARTBEAT_INTERVALS = "appoptics.idle.heartbeat.intervals";
+    private static final String GAUGE_SUPPRESS = "appoptics.gauge.suppress";
+    private static final String GAUGE_EPSILON = "appoptics.gauge.epsilon";
+    private static final String GAUGE_HEARTBEAT_INTERVALS = "appoptics.gauge.heartbeat.intervals";
+    private static final String METRICS_INCLUDE = "appoptics.metrics.include";
+    private static final String METRICS_EXCLUDE = "appoptics.metrics.exclude";
+    private static final String ROLLUP_RULES = "appoptics.rollup.rules";
+    private static final String ROLLUP_MODE = "appoptics.rollup.mode";
+    private static final String CARDINALITY_TOP_K = "appoptics.cardinality.top.k";
+    private static final String CARDINALITY_MAX_SERIES = "appoptics.cardinality.max.series";
+    private static final String TIERS = "appoptics.tiers";
+    private static final String TIER_PREFIX = "appoptics.tier.";
+    private static final String SELF_METRICS = "appoptics.self.metrics";
+    private static final String JVM_SLOW_INTERVALS = "appoptics.jvm.slow.intervals";
+    private static final String DELTA_IDLE_CYCLES = "appoptics.delta.idle.cycles";
+    private static final String SINKS = "appoptics.sinks";
+    private static final String STATSD_HOST = "appoptics.statsd.host";
+    private static final String STATSD_PORT = "appoptics.statsd.port";
+    private static final String STATSD_FORMAT = "appoptics.statsd.format";
+    private static final String STATSD_MAX_PACKET_BYTES = "appoptics.statsd.max.packet.bytes";
+    private static final String FILE_DIR = "appoptics.file.dir";
+    private static final String FILE_FORMAT = "appoptics.file.format";
+    private static final String FILE_SEGMENT_MB = "appoptics.file.segment.mb";
+    private static final String FILE_SEGMENT_SECONDS = "appoptics.file.segment.seconds";
+    private static final String FILE_RETENTION_SEGMENTS = "appoptics.file.retention.segments";
+    private static final String FILE_RETENTION_MB = "appoptics.file.retention.mb";
+    private static final String PROMETHEUS_PORT = "appoptics.prometheus.port";
+    private static final String PROMETHEUS_HOST = "appoptics.prometheus.host";
+    private static final String PROMETHEUS_PATH = "appoptics.prometheus.path";
+    private static final String PROMETHEUS_GZIP = "appoptics.prometheus.gzip";
+    private static final String DEFAULT_URL = "https://api.appoptics.com/v1/measurements";
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int PAYLOAD_INITIAL_CAPACITY = 128 * 1024;
+    private static final int PAYLOAD_MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+    @Override
+    public void init(VerifiableProperties props) {
+        List<Tag> tags = new ArrayList<>();
+
+        String source = props.getString(AGENT_IDENTIFIER, "");
+        if (!source.isEmpty()) {
+            tags.add(new Tag("source", Sanitizer.TAG_VALUE_SANITIZER.apply(source)));
+        }
+
+        String customTags = props.getString(TAGS, "");
+        if (!customTags.isEmpty()) {
+           tags.addAll(TagProcessor.process(customTags));
+        }
+
+        int deltaIdleCycles = props.getInt(DELTA_IDLE_CYCLES, DeltaTracker.DEFAULT_MAX_IDLE_CYCLES);
+        int collectionThreads = props.getInt(COLLECTION_THREADS, 1);
+
+        Set<ExpandedMetric> metrics = new HashSet<>();
+        maybeEnableMetric(props, metrics, ExpandedMetric.MEDIAN, true);
+        maybeEnableMetric(props, metrics, ExpandedMetric.PCT_75, false);
+        maybeEnableMetric(props, metrics, ExpandedMetric.PCT_95, true);
+        maybeEnableMetric(props, metrics, ExpandedMetric.PCT_98, false);
+        maybeEnableMetric(props, metrics, ExpandedMetric.PCT_99, true);
+        maybeEnableMetric(props, metrics, ExpandedMetric.PCT_999, true);
+
+        maybeEnableMetric(props, metrics, ExpandedMetric.COUNT, true);
+        maybeEnableMetric(props, metrics, ExpandedMetric.RATE_MEAN, false);
+        maybeEnableMetric(props, metrics, ExpandedMetric.RATE_1_MINUTE, true);
+        maybeEnableMetric(props, metrics, ExpandedMetric.RATE_5_MINUTE, false);
+        maybeEnableMetric(props, metrics, ExpandedMetric.RATE_15_MINUTE, false);
+
+        stats = new ReporterStats();
+        List<Tier> tiers = parseTiers(props);
+        reporter = new Reporter(
+                openSinks(props, tags, tiers.size() + 1),
+                new ExpandedMetric.ExpandedMetricConfig(metrics),
+                deltaIdleCycles,
+                collectionThreads,
+                new SamplingCache(
+                        SamplingCache.Mode.valueOf(props.getString(IDLE_SAMPLING, "report").toUpperCase()),
+                        props.getInt(IDLE_HEARTBEAT_INTERVALS, SamplingCache.DEFAULT_HEARTBEAT_INTERVALS),
+                        deltaIdleCycles),
+                new GaugeSuppressor(
+                        props.getBoolean(GAUGE_SUPPRESS, false),
+                        props.getDouble(GAUGE_EPSILON, 0),
+                        props.getInt(GAUGE_HEARTBEAT_INTERVALS, GaugeSuppressor.DEFAULT_HEARTBEAT_INTERVALS),
+                        deltaIdleCycles,
+                        Reporter.collectionStripes(collectionThreads)),
+                MetricFilter.compile(props.getString(METRICS_INCLUDE, ""), props.getString(METRICS_EXCLUDE, "")),
+                Rollup.parse(props.getString(ROLLUP_RULES, ""), props.getString(ROLLUP_MODE, "replace")),
+                new CardinalityLimiter(
+                        props.getInt(CARDINALITY_TOP_K, 0),
+                        props.getInt(CARDINALITY_MAX_SERIES, 0),
+                        deltaIdleCycles),
+                tiers,
+                new JvmMetrics(props.getInt(JVM_SLOW_INTERVALS, JvmMetrics.DEFAULT_SLOW_INTERVALS)),
+                stats,
+                props.getBoolean(SELF_METRICS, false));
+
+        if (props.getBoolean("librato.kafka.enable", true)) {
+            startReporter(props.getInt("librato.kafka.interval", 30));
+        }
+    }
+
+    private static List<Tier> parseTiers(VerifiableProperties props) {
+        List<Tier> tiers = new ArrayList<>();
+        for (String name : props.getString(TIERS, "").split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            String metrics = props.getString(TIER_PREFIX + name + ".metrics", "");
+            if (metrics.trim().isEmpty()) {
+                throw new IllegalArgumentException("No metrics configured for tier " + name);
+            }
+            tiers.add(new Tier(name, props.getLong(TIER_PREFIX + name + ".interval"), MetricFilter.compile(metrics, "")));
+        }
+        return tiers;
+    }
+
+    private PayloadSpool openSpool(VerifiableProperties props) {
+        String directory = props.getString(SPOOL_DIR, "");
+        if (directory.isEmpty()) {
+            return null;
+        }
+        try {
+            return PayloadSpool.open(new File(directory), props.getLong(SPOOL_SIZE_MB, 64) * 1024 * 1024);
+        } catch (IOException e) {
+            LOG.error("Unable to open the payload spool in " + directory + ", failed payloads will not be spooled", e);
+            return null;
+        }
+    }
+
+    private List<MeasurementSink> openSinks(VerifiableProperties props, List<Tag> tags, int tiers) {
+        List<MeasurementSink> sinks = new ArrayList<>();
+        for (String name : props.getString(SINKS, "appoptics").split(",")) {
+            name = name.trim();
+            MeasurementSink sink = null;
+            if (name.equals("appoptics")) {
+                sink = openAppoptics(props, tags);
+            } else if (name.equals("statsd")) {
+                sink = openStatsd(props, tags);
+            } else if (name.equals("file")) {
+                sink = openFile(props, tags);
+            } else if (!name.isEmpty()) {
+                throw new IllegalArgumentException("Unknown sink " + name + " in " + SINKS);
+            }
+            if (sink != null) {
+                sinks.add(sink);
+            }
+        }
+        PrometheusEndpoint prometheus = openPrometheus(props, tags, tiers);
+        if (prometheus != null) {
+            sinks.add(prometheus);
+        }
+        if (sinks.isEmpty()) {
+            LOG.warn("No sinks configured, metrics will be collected but not reported");
+        }
+        return sinks;
+    }
+
+    private AppopticsSink openAppoptics(VerifiableProperties props, List<Tag> tags) {
+        String apiUrl = props.getString(URL, DEFAULT_URL);
+        String token = props.getString(TOKEN);
+        int timeout = props.getInt("librato.timeout", 20);
+
+        PayloadCompressor.CompressionConfig compression = new PayloadCompressor.CompressionConfig(
+                PayloadCompressor.Encoding.valueOf(props.getString(COMPRESSION, "none").toUpperCase()),
+                props.getInt(COMPRESSION_LEVEL, Deflater.DEFAULT_COMPRESSION),
+                props.getInt(COMPRESSION_MIN_BYTES, 1024));
+        compressionStats = compression.stats;
+
+        HttpPoster poster;
+        try {
+            poster = new HttpPoster(
+                    new URL(apiUrl),
+                    token,
+                    CONNECT_TIMEOUT_MILLIS,
+                    (int) TimeUnit.SECONDS.toMillis(timeout),
+                    compression);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid " + URL + ": " + apiUrl, e);
+        }
+
+        PayloadSender.SenderConfig senderConfig = new PayloadSender.SenderConfig(
+                props.getInt(SENDER_THREADS, PayloadSender.SenderConfig.DEFAULT_THREADS),
+                props.getInt(SENDER_QUEUE_SIZE, PayloadSender.SenderConfig.DEFAULT_QUEUE_SIZE),
+                PayloadSender.Overflow.valueOf(props.getString(SENDER_OVERFLOW, "drop_oldest").toUpperCase()),
+                props.getLong(SENDER_BLOCK_TIMEOUT_MS, PayloadSender.SenderConfig.DEFAULT_BLOCK_TIMEOUT_MILLIS),
+                props.getInt(SPOOL_REPLAY_PER_SECOND, PayloadSender.SenderConfig.DEFAULT_REPLAY_PER_SECOND),
+                props.getLong(SENDER_DRAIN_TIMEOUT_MS, PayloadSender.SenderConfig.DEFAULT_DRAIN_TIMEOUT_MILLIS));
+        // enough pooled buffers for a full queue plus one in flight per sender and one being encoded
+        PayloadBufferPool pool = new PayloadBufferPool(
+                PAYLOAD_INITIAL_CAPACITY,
+                senderConfig.queueSize + senderConfig.threads + 1,
+                PAYLOAD_MAX_RETAINED_CAPACITY);
+        RetryPolicy retryPolicy = new RetryPolicy(
+                props.getInt(RETRY_MAX_ATTEMPTS, RetryPolicy.DEFAULT_MAX_ATTEMPTS),
+                props.getLong(RETRY_BACKOFF_MS, RetryPolicy.DEFAULT_BASE_DELAY_MILLIS),
+                props.getLong(RETRY_BACKOFF_MAX_MS, RetryPolicy.DEFAULT_MAX_DELAY_MILLIS));
+        CircuitBreaker breaker = new CircuitBreaker(
+                props.getInt(CIRCUIT_FAILURE_THRESHOLD, CircuitBreaker.DEFAULT_FAILURE_THRESHOLD),
+                props.getLong(CIRCUIT_OPEN_MS, CircuitBreaker.DEFAULT_OPEN_MILLIS));
+        sender = new PayloadSender(poster, pool, senderConfig, retryPolicy, breaker, openSpool(props), stats);
+        return new AppopticsSink(
+                sender,
+                tags,
+                props.getBoolean(PAYLOAD_TAGS, false),
+                props.getInt(BATCH_SIZE, MeasurementsEncoder.DEFAULT_BATCH_SIZE),
+                stats);
+    }
+
+    private StatsdSink openStatsd(VerifiableProperties props, List<Tag> tags) {
+        InetSocketAddress address = new InetSocketAddress(
+                props.getString(STATSD_HOST, "localhost"),
+                props.getInt(STATSD_PORT, StatsdSink.DEFAULT_PORT));
+        try {
+            return new StatsdSink(
+                    address,
+                    StatsdSink.Format.valueOf(props.getString(STATSD_FORMAT, "dogstatsd").toUpperCase()),
+                    props.getInt(STATSD_MAX_PACKET_BYTES, StatsdSink.DEFAULT_MAX_PACKET_BYTES),
+                    tags);
+        } catch (IOException e) {
+            LOG.error("Unable to open a datagram channel to " + address + ", metrics will not be sent to StatsD", e);
+            return null;
+        }
+    }
+
+    private MappedFileSink openFile(VerifiableProperties props, List<Tag> tags) {
+        String directory = props.getString(FILE_DIR, "");
+        if (directory.isEmpty()) {
+            throw new IllegalArgumentException(FILE_DIR + " is required by the file sink");
+        }
+        // a segment is a single mapping, which cannot be larger than 2 GB
+        long segmentBytes = props.getLong(FILE_SEGMENT_MB, 64) * 1024 * 1024;
+        if (segmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(FILE_SEGMENT_MB + " must be less than 2048");
+        }
+        try {
+            return new MappedFileSink(
+                    new File(directory),
+                    MappedFileSink.Format.valueOf(props.getString(FILE_FORMAT, "ndjson").toUpperCase()),
+                    (int) segmentBytes,
+                    TimeUnit.SECONDS.toMillis(props.getLong(FILE_SEGMENT_SECONDS, 3600)),
+                    props.getInt(FILE_RETENTION_SEGMENTS, 24),
+                    props.getLong(FILE_RETENTION_MB, 0) * 1024 * 1024,
+                    tags);
+        } catch (IOException e) {
+            LOG.error("Unable to open the measurement segments in " + directory
+                    + ", metrics will not be written to files", e);
+            return null;
+        }
+    }
+
+    private PrometheusEndpoint openPrometheus(VerifiableProperties props, List<Tag> tags, int tiers) {
+        int port = props.getInt(PROMETHEUS_PORT, -1);
+        if (port < 0) {
+            return null;
+        }
+        String host = props.getString(PROMETHEUS_HOST, "");
+        InetSocketAddress address = host.isEmpty() ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+        try {
+            return new PrometheusEndpoint(
+                    address,
+                    props.getString(PROMETHEUS_PATH, "/metrics"),
+                    new PrometheusExposition(tiers, tags, props.getBoolean(PROMETHEUS_GZIP, true),
+                            suppressedIntervals(props)),
+                    stats);
+        } catch (IOException e) {
+            LOG.error("Unable to listen on " + address + ", Prometheus metrics will not be served", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the most intervals a series may go unreported while it is still there, until its next heartbeat
+     */
+    private static int suppressedIntervals(VerifiableProperties props) {
+        int intervals = 0;
+        if (props.getBoolean(GAUGE_SUPPRESS, false)) {
+            intervals = props.getInt(GAUGE_HEARTBEAT_INTERVALS, GaugeSuppressor.DEFAULT_HEARTBEAT_INTERVALS);
+        }
+        if (props.getString(IDLE_SAMPLING, "report").equalsIgnoreCase(SamplingCache.Mode.SUPPRESS.name())) {
+            intervals = Math.max(intervals,
+                    props.getInt(IDLE_HEARTBEAT_INTERVALS, SamplingCache.DEFAULT_HEARTBEAT_INTERVALS));
+        }
+        return intervals;
+    }
+
+    private static void maybeEnableMetric(
+            VerifiableProperties props,
+            Set<ExpandedMetric> metrics,
+            ExpandedMetric metric,
+            boolean defaultValue) {
+
+        if (props.getBoolean(metric.buildMetricName("librato.kafka.metrics"), defaultValue)) {
+            metrics.add(metric);
+        }
+    }
+
+    @Override
+    public String getMBeanName() {
+        return "kafka:type=" + KafkaAppopticsReporter.class.getCanonicalName();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return compressionStats == null ? 0 : compressionStats.getRatio();
+    }
+
+    @Override
+    public long getCompressedPayloads() {
+        return compressionStats == null ? 0 : compressionStats.getPayloads();
+    }
+
+    @Override
+    public long getCompressionCpuTimeMillis() {
+        return compressionStats == null ? 0 : TimeUnit.NANOSECONDS.toMillis(compressionStats.getCpuNanos());
+    }
+
+    @Override
+    public long getDroppedPayloads() {
+        return sender == null ? 0 : sender.getDropped();
+    }
+
+    @Override
+    public int getQueuedPayloads() {
+        return sender == null ? 0 : sender.getQueued();
+    }
+
+    @Override
+    public long getSpooledBytes() {
+        return sender == null ? 0 : sender.getSpooledBytes();
+    }
+
+    @Override
+    public long getRetries() {
+        return sender == null ? 0 : sender.getRetries();
+    }
+
+    @Override
+    public String getCircuitState() {
+        return sender == null ? CircuitBreaker.State.CLOSED.name() : sender.getCircuitBreaker().getState().name();
+    }
+
+    @Override
+    public long getCircuitOpenCount() {
+        return sender == null ? 0 : sender.getCircuitBreaker().getTimesOpened();
+    }
+
+    @Override
+    public double getGaugeSuppressionRatio() {
+        Reporter current = reporter;
+        return current == null ? 0 : current.getGaugeSuppressionRatio();
+    }
+
+    @Override
+    public long getFoldedSeries() {
+        Reporter current = reporter;
+        return current == null ? 0 : current.getFoldedSeries();
+    }
+
+    @Override
+    public long getFoldedSeriesTotal() {
+        Reporter current = reporter;
+        return current == null ? 0 : current.getFoldedSeriesTotal();
+    }
+
+    @Override
+    public double getLastCollectionMillis() {
+        return stats == null ? 0 : stats.getLastMillis(ReporterStats.Stage.COLLECT);
+    }
+
+    @Override
+    public long getProcessingTimeMillis() {
+        if (stats == null) {
+            return 0;
+        }
+        return stats.getTotalMillis(ReporterStats.Stage.GAUGE)
+                + stats.getTotalMillis(ReporterStats.Stage.COUNTER)
+                + stats.getTotalMillis(ReporterStats.Stage.HISTOGRAM)
+                + stats.getTotalMillis(ReporterStats.Stage.METER)
+                + stats.getTotalMillis(ReporterStats.Stage.TIMER);
+    }
+
+    @Override
+    public long getSnapshotTimeMillis() {
+        return stats == null ? 0 : stats.getTotalMillis(ReporterStats.Stage.SNAPSHOT);
+    }
+
+    @Override
+    public double getLastEncodingMillis() {
+        return stats == null ? 0 : stats.getLastMillis(ReporterStats.Stage.ENCODE);
+    }
+
+    @Override
+    public double getPostLatency99thMillis() {
+        return stats == null ? 0 : stats.getPercentileMillis(ReporterStats.Stage.POST, 0.99);
+    }
+
+    @Override
+    public long getPayloadsSent() {
+        return stats == null ? 0 : stats.getPayloads();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return stats == null ? 0 : stats.getBytes();
+    }
+
+    @Override
+    public long getPostErrors() {
+        return stats == null ? 0 : stats.getPostErrors();
+    }
+
+    @Override
+    public long getProcessingErrors() {
+        return stats == null ? 0 : stats.getProcessingErrors();
+    }
+
+    @Override
+    public long getEncodingErrors() {
+        return stats == null ? 0 : stats.getEncodingErrors();
+    }
+
+    /**
+     * @return the reporter's own stats, null until configured
+     */
+    ReporterStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return the polling reporter, null until configured or once stopped
+     */
+    Reporter getReporter() {
+        return reporter;
+    }
+
+    @Override
+    public void startReporter(long interval) {
+        if (reporter == null) {
+            throw new IllegalStateException("reporter not configured");
+        }
+
+        LOG.info("starting appoptics metrics reporter");
+        reporter.start(interval, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void stopReporter() {
+        if (reporter != null) {
+            LOG.info("stopping appoptics metrics reporter");
+            reporter.shutdown();
+            reporter = null;
+        }
+    }
+
+
+}
\ No newline at end of file
@@ -0,0 +1,77 @@
+package com.appoptics.integrations.kafka.broker;
+
+import kafka.metrics.KafkaMetricsReporterMBean;
+
+public interface KafkaAppopticsReporterMBean extends KafkaMetricsReporterMBean {
+    /**
+     * @return uncompressed bytes divided by compressed bytes over all compressed payloads
+     */
+    double getCompressionRatio();
+
+    long getCompressedPayloads();
+
+    long getCompressionCpuTimeMillis();
+
+    /**
+     * @return payloads dropped because the send queue was full
+     */
+    long getDroppedPayloads();
+
+    int getQueuedPayloads();
+
+    /**
+     * @return bytes of failed payloads waiting in the spool to be replayed
+     */
+    long getSpooledBytes();
+
+    long getRetries();
+
+    /**
+     * @return CLOSED while posting normally, OPEN while posting is suspended after repeated failures, HALF_OPEN
+     * while probing the endpoint
+     */
+    String getCircuitState();
+
+    long getCircuitOpenCount();
+
+    /**
+     * @return the fraction of gauge values that were not sent because they had not changed
+     */
+    double getGaugeSuppressionRatio();
+
+    /**
+     * @return the number of series folded into "other" series by the cardinality limit in the last interval
+     */
+    long getFoldedSeries();
+
+    long getFoldedSeriesTotal();
+
+    /**
+     * @return how long the latest collection pass over the registry took
+     */
+    double getLastCollectionMillis();
+
+    /**
+     * @return the time spent processing metrics since startup, summed over all metric types
+     */
+    long getProcessingTimeMillis();
+
+    long getSnapshotTimeMillis();
+
+    double getLastEncodingMillis();
+
+    /**
+     * @return the 99th percentile of the latest post latencies
+     */
+    double getPostLatency99thMillis();
+
+    long getPayloadsSent();
+
+    long getBytesSent();
+
+    long getPostErrors();
+
+    long getProcessingErrors();
+
+    long getEncodingErrors();
+}
@@ -0,0 +1,497 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.yammer.metrics.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * a AppopticsBatch that understands Metrics-specific types
+ * <p/>
+ * Measurements are stored in columns of primitives, one row per measurement: its series, its type, and either
+ * a value or the count, sum, min and max of its samples. A batch is reused for every report of its tier, so once
+ * the columns have grown to the size of a report, collecting and encoding it allocates next to nothing. The
+ * series are the long-lived {@link NameAndTags} of the name cache and their memoized expansions.
+ */
+class KafkaMetricsBatch {
+    private static final Logger LOG = LoggerFactory.getLogger(KafkaMetricsBatch.class);
+    static final byte LONG = 0;
+    static final byte DOUBLE = 1;
+    static final byte SAMPLES = 2;
+    // a LONG row holding the change of a count over the period
+    static final byte COUNT = 3;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private NameAndTags[] names = new NameAndTags[INITIAL_CAPACITY];
+    private byte[] types = new byte[INITIAL_CAPACITY];
+    // the value of a LONG or COUNT row, the sample count of a SAMPLES row
+    private long[] counts = new long[INITIAL_CAPACITY];
+    // the value of a DOUBLE row, the sample sum of a SAMPLES row
+    private double[] values = new double[INITIAL_CAPACITY];
+    private double[] mins = new double[INITIAL_CAPACITY];
+    private double[] maxes = new double[INITIAL_CAPACITY];
+    private int size;
+
+    private final ExpandedMetric.ExpandedMetricConfig expansionConfig;
+    private final DeltaTracker deltaTracker;
+    private final SamplingCache samplingCache;
+    private final GaugeSuppressor gaugeSuppressor;
+    private final Rollup rollup;
+    private final CardinalityLimiter limiter;
+    // where the series roll up to, shared with the worker batches and swept by flushRollups; null without rules
+    private final SeriesCache<Rollup.Target> targets;
+    // rolled up series of this batch, emitted by flushRollups and kept for the next reports
+    private final Map<NameAndTags, Rollup.Aggregate> rollups = new HashMap<>();
+    // scratch space for percentiles, batches are confined to one thread
+    private final double[] percentiles = new double[SamplingCache.PERCENTILES.length];
+    // the time spent on this batch's metrics since it was last recorded
+    private final ReporterStats.Tally tally = new ReporterStats.Tally();
+    // batches for collectors running on other threads, reused like this one
+    private KafkaMetricsBatch[] workers = new KafkaMetricsBatch[0];
+
+    /**
+     * Public constructor.
+     */
+    KafkaMetricsBatch(ExpandedMetric.ExpandedMetricConfig expansionConfig,
+                      DeltaTracker deltaTracker,
+                      SamplingCache samplingCache,
+                      GaugeSuppressor gaugeSuppressor,
+                      Rollup rollup,
+                      CardinalityLimiter limiter) {
+        this(expansionConfig, deltaTracker, samplingCache, gaugeSuppressor, rollup, limiter,
+                rollup.hasRules() ? new SeriesCache<>() : null);
+    }
+
+    private KafkaMetricsBatch(ExpandedMetric.ExpandedMetricConfig expansionConfig,
+                              DeltaTracker deltaTracker,
+                              SamplingCache samplingCache,
+                              GaugeSuppressor gaugeSuppressor,
+                              Rollup rollup,
+                              CardinalityLimiter limiter,
+                              SeriesCache<Rollup.Target> targets) {
+        this.expansionConfig = Preconditions.checkNotNull(expansionConfig);
+        this.deltaTracker = deltaTracker;
+        this.samplingCache = Preconditions.checkNotNull(samplingCache);
+        this.gaugeSuppressor = Preconditions.checkNotNull(gaugeSuppressor);
+        this.rollup = Preconditions.checkNotNull(rollup);
+        this.limiter = Preconditions.checkNotNull(limiter);
+        this.targets = targets;
+    }
+
+    /**
+     * Empties the batch for the next report, keeping its columns. Rolled up series that received nothing since
+     * the previous reset are forgotten, here and by the rollup.
+     */
+    void reset() {
+        Arrays.fill(names, 0, size, null);
+        size = 0;
+        final Iterator<Map.Entry<NameAndTags, Rollup.Aggregate>> aggregates = rollups.entrySet().iterator();
+        while (aggregates.hasNext()) {
+            final Map.Entry<NameAndTags, Rollup.Aggregate> entry = aggregates.next();
+            if (entry.getValue().isEmpty()) {
+                aggregates.remove();
+                rollup.forget(entry.getKey());
+            } else {
+                entry.getValue().reset();
+            }
+        }
+    }
+
+    ReporterStats.Tally tally() {
+        return tally;
+    }
+
+    /**
+     * @param index the index of the collector, from zero
+     * @return an empty batch with the same configuration, for a collector running on another thread
+     */
+    KafkaMetricsBatch workerBatch(int index) {
+        if (index >= workers.length) {
+            workers = Arrays.copyOf(workers, index + 1);
+        }
+        KafkaMetricsBatch worker = workers[index];
+        if (worker == null) {
+            worker = new KafkaMetricsBatch(expansionConfig, deltaTracker, samplingCache, gaugeSuppressor, rollup, limiter,
+                    targets);
+            workers[index] = worker;
+        } else {
+            worker.reset();
+        }
+        return worker;
+    }
+
+    /**
+     * Appends the measurements of a worker batch to this one.
+     */
+    void merge(KafkaMetricsBatch worker) {
+        ensureCapacity(size + worker.size);
+        System.arraycopy(worker.names, 0, names, size, worker.size);
+        System.arraycopy(worker.types, 0, types, size, worker.size);
+        System.arraycopy(worker.counts, 0, counts, size, worker.size);
+        System.arraycopy(worker.values, 0, values, size, worker.size);
+        System.arraycopy(worker.mins, 0, mins, size, worker.size);
+        System.arraycopy(worker.maxes, 0, maxes, size, worker.size);
+        size += worker.size;
+        for (Map.Entry<NameAndTags, Rollup.Aggregate> entry : worker.rollups.entrySet()) {
+            final Rollup.Aggregate aggregate = entry.getValue();
+            if (!aggregate.isEmpty()) {
+                rollUp(entry.getKey(), aggregate.aggregation()).merge(aggregate);
+            }
+        }
+    }
+
+    /**
+     * Adds the rolled up series to the measurements, once all the metrics have been added and merged, and forgets
+     * where the series that were not reported this time roll up to.
+     *
+     * @param stats where series that cannot be sent are counted as processing errors
+     */
+    void flushRollups(ReporterStats stats) {
+        for (Map.Entry<NameAndTags, Rollup.Aggregate> entry : rollups.entrySet()) {
+            final Rollup.Aggregate aggregate = entry.getValue();
+            if (aggregate.isEmpty()) {
+                continue;
+            }
+            try {
+                aggregate.addTo(this, entry.getKey());
+            } catch (IllegalArgumentException e) {
+                // e.g. a sum that overflowed to infinity
+                stats.processingFailed();
+                LOG.debug("Unable to report rolled up series {}", entry.getKey(), e);
+            }
+        }
+        if (targets != null) {
+            targets.endCycle();
+        }
+    }
+
+    /**
+     * @return the number of measurements
+     */
+    int size() {
+        return size;
+    }
+
+    NameAndTags name(int index) {
+        return names[index];
+    }
+
+    /**
+     * @return {@link #LONG}, {@link #DOUBLE}, {@link #SAMPLES} or {@link #COUNT}
+     */
+    byte type(int index) {
+        return types[index];
+    }
+
+    /**
+     * @return the value of a LONG or COUNT row, the sample count of a SAMPLES row
+     */
+    long count(int index) {
+        return counts[index];
+    }
+
+    /**
+     * @return the value of a DOUBLE row, the sample sum of a SAMPLES row
+     */
+    double value(int index) {
+        return values[index];
+    }
+
+    double min(int index) {
+        return mins[index];
+    }
+
+    double max(int index) {
+        return maxes[index];
+    }
+
+    /**
+     * Writes the value members of a measurement as JSON, e.g. {@code "value":1.5}
+     *
+     * @param index the measurement
+     * @param out   the payload being written
+     */
+    void writeValues(int index, PayloadBuffer out) {
+        switch (types[index]) {
+            case LONG:
+            case COUNT:
+                out.writeAscii("\"value\":").writeLong(counts[index]);
+                break;
+            case DOUBLE:
+                out.writeAscii("\"value\":").writeDouble(values[index]);
+                break;
+            default:
+                out.writeAscii("\"sum\":").writeDouble(values[index]);
+                out.writeAscii(",\"count\":").writeLong(counts[index]);
+                out.writeAscii(",\"min\":").writeDouble(mins[index]);
+                out.writeAscii(",\"max\":").writeDouble(maxes[index]);
+        }
+    }
+
+    private Rollup.Aggregate rollUp(NameAndTags rolled, Rollup.Aggregation aggregation) {
+        Rollup.Aggregate aggregate = rollups.get(rolled);
+        if (aggregate == null) {
+            aggregate = new Rollup.Aggregate(aggregation);
+            rollups.put(rolled, aggregate);
+        }
+        return aggregate;
+    }
+
+    /**
+     * @return where the series is aggregated into by a rollup rule or the cardinality limiter, null if nowhere
+     */
+    private Rollup.Target target(NameAndTags nameAndTags, double activity) {
+        Rollup.Target target = Rollup.Target.NONE;
+        if (targets != null) {
+            target = targets.get(nameAndTags);
+            if (target == null) {
+                target = rollup.target(nameAndTags);
+                targets.put(nameAndTags, target);
+            }
+        }
+        return target != Rollup.Target.NONE ? target : limiter.fold(nameAndTags, activity, rollup);
+    }
+
+    private static boolean reportsRaw(Rollup.Target target) {
+        return target == null || target.keepRaw;
+    }
+
+    private int addRow(NameAndTags nameAndTags, byte type) {
+        Preconditions.checkNotNull(nameAndTags);
+        ensureCapacity(size + 1);
+        names[size] = nameAndTags;
+        types[size] = type;
+        return size++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= names.length) {
+            return;
+        }
+        final int grown = Math.max(capacity, names.length * 2);
+        names = Arrays.copyOf(names, grown);
+        types = Arrays.copyOf(types, grown);
+        counts = Arrays.copyOf(counts, grown);
+        values = Arrays.copyOf(values, grown);
+        mins = Arrays.copyOf(mins, grown);
+        maxes = Arrays.copyOf(maxes, grown);
+    }
+
+    void addGaugeMeasurement(NameAndTags nameAndTags, long value) {
+        final int row = addRow(nameAndTags, LONG);
+        counts[row] = value;
+    }
+
+    /**
+     * Adds the change of a count over the period, which sinks that tell counters from gauges send as a counter.
+     */
+    void addCountMeasurement(NameAndTags nameAndTags, long delta) {
+        final int row = addRow(nameAndTags, COUNT);
+        counts[row] = delta;
+    }
+
+    void addGaugeMeasurement(NameAndTags nameAndTags, double value) {
+        if (!isANumber(value)) {
+            throw new IllegalArgumentException("Invalid single-gauge measurement metric=" + nameAndTags + ", "
+                    + value + " is not a numeric value");
+        }
+        final int row = addRow(nameAndTags, DOUBLE);
+        values[row] = value;
+    }
+
+    void addGaugeMeasurement(NameAndTags nameAndTags, Number value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Invalid single-gauge measurement metric=" + nameAndTags);
+        }
+        if (value instanceof Long || value instanceof Integer) {
+            addGaugeMeasurement(nameAndTags, value.longValue());
+        } else {
+            addGaugeMeasurement(nameAndTags, value.doubleValue());
+        }
+    }
+
+    void addSamplesMeasurement(NameAndTags nameAndTags, long count, double sum, double max, double min) {
+        if (count == 0) {
+            throw new IllegalArgumentException("The Librato API requires the count to be > 0 for complex metrics. See http://dev.librato.com/v1/post/metrics");
+        }
+        if (!isANumber(sum) || !isANumber(max) || !isANumber(min)) {
+            throw new IllegalArgumentException("Invalid multi-sample gauge measurement metric=" + nameAndTags);
+        }
+        final int row = addRow(nameAndTags, SAMPLES);
+        counts[row] = count;
+        values[row] = sum;
+        maxes[row] = max;
+        mins[row] = min;
+    }
+
+    // begin direct support for Coda Metrics
+
+    void addGauge(NameAndTags nameAndTags, Gauge gauge) {
+        final Object value = gauge.value();
+        if (value instanceof Number) {
+            final Number number = (Number)value;
+            if (!isANumber(number)) {
+                return;
+            }
+            final Rollup.Target target = target(nameAndTags, number.doubleValue());
+            if (target != null) {
+                // before suppression, the rolled up value needs every series
+                rollUp(target.name, target.aggregation).add(number);
+            }
+            if (reportsRaw(target) && !gaugeSuppressor.isSuppressed(nameAndTags, number.doubleValue())) {
+                addGaugeMeasurement(nameAndTags, number);
+            }
+        }
+    }
+
+    /**
+     * Adds the reading of a gauge that is not a {@link Gauge}, such as a metric of Kafka's own metrics library.
+     */
+    void addGauge(NameAndTags nameAndTags, double value) {
+        if (!isANumber(value)) {
+            return;
+        }
+        final Rollup.Target target = target(nameAndTags, value);
+        if (target != null) {
+            rollUp(target.name, target.aggregation).add(value);
+        }
+        if (reportsRaw(target) && !gaugeSuppressor.isSuppressed(nameAndTags, value)) {
+            addGaugeMeasurement(nameAndTags, value);
+        }
+    }
+
+    void addCounter(NameAndTags nameAndTags, Counter counter) {
+        final long countDelta = deltaTracker.getDelta(nameAndTags, counter.count());
+        final Rollup.Target target = target(nameAndTags, countDelta);
+        if (target != null) {
+            rollUp(target.name, Rollup.Aggregation.SUM).addCount(countDelta);
+        }
+        if (reportsRaw(target)) {
+            addCountMeasurement(nameAndTags, countDelta);
+        }
+    }
+
+    void addHistogram(NameAndTags nameAndTags, Histogram histogram) {
+        final long countDelta = deltaTracker.getDelta(nameAndTags, histogram.count());
+        if (samplingCache.isSuppressed(nameAndTags, countDelta)) {
+            return;
+        }
+        final Rollup.Target target = target(nameAndTags, countDelta);
+        maybeAdd(ExpandedMetric.COUNT, nameAndTags, target, countDelta);
+        addSummarizable(nameAndTags, target, histogram);
+        addSampling(nameAndTags, target, histogram, countDelta);
+    }
+
+    void addMetered(NameAndTags nameAndTags, Metered meter) {
+        final long countDelta = deltaTracker.getDelta(nameAndTags, meter.count());
+        addMetered(nameAndTags, target(nameAndTags, countDelta), meter, countDelta);
+    }
+
+    void addTimer(NameAndTags nameAndTags, Timer timer) {
+        final long countDelta = deltaTracker.getDelta(nameAndTags, timer.count());
+        if (samplingCache.isSuppressed(nameAndTags, countDelta)) {
+            return;
+        }
+        final Rollup.Target target = target(nameAndTags, countDelta);
+        addMetered(nameAndTags, target, timer, countDelta);
+        addSummarizable(nameAndTags, target, timer);
+        addSampling(nameAndTags, target, timer, countDelta);
+    }
+
+    private void addMetered(NameAndTags nameAndTags, Rollup.Target target, Metered meter, long deltaCount) {
+        maybeAdd(ExpandedMetric.COUNT, nameAndTags, target, deltaCount);
+        maybeAdd(ExpandedMetric.RATE_MEAN, nameAndTags, target, meter.meanRate());
+        maybeAdd(ExpandedMetric.RATE_1_MINUTE, nameAndTags, target, meter.oneMinuteRate());
+        maybeAdd(ExpandedMetric.RATE_5_MINUTE, nameAndTags, target, meter.fiveMinuteRate());
+        maybeAdd(ExpandedMetric.RATE_15_MINUTE, nameAndTags, target, meter.fifteenMinuteRate());
+    }
+
+    private void addSummarizable(NameAndTags nameAndTags, Rollup.Target target, Summarizable summarizable) {
+        // TODO: add sum_squares if/when Summarizable exposes it
+        final double sum = summarizable.sum();
+        final double countCalculation = sum / summarizable.mean();
+        final long countValue = isANumber(countCalculation) ? Math.round(countCalculation) : 0;
+        // no need to publish these additional values if they are zero, plus the API will puke
+        if (countValue > 0) {
+            final double max = summarizable.max();
+            final double min = summarizable.min();
+            if (target != null) {
+                rollUp(target.name, target.aggregation).addSamples(countValue, sum, max, min);
+            }
+            if (!reportsRaw(target)) {
+                return;
+            }
+            addSamplesMeasurement(nameAndTags, countValue, sum, max, min);
+        }
+    }
+
+    private void addSampling(NameAndTags nameAndTags, Rollup.Target target, Sampling sampling, long countDelta) {
+        if (!expansionConfig.isAnySet(SamplingCache.PERCENTILES)) {
+            return;
+        }
+        samplingCache.percentiles(nameAndTags, sampling, countDelta, percentiles, tally);
+        for (int i = 0; i < percentiles.length; i++) {
+            maybeAdd(SamplingCache.PERCENTILES[i], nameAndTags, target, percentiles[i]);
+        }
+    }
+
+    /**
+     * Adds a count delta, such as {@link ExpandedMetric#COUNT}.
+     */
+    private void maybeAdd(ExpandedMetric metric, NameAndTags nameAndTags, Rollup.Target target, long delta) {
+        if (!expansionConfig.isSet(metric)) {
+            return;
+        }
+        if (target != null) {
+            rollUp(target.name.withSuffix(metric), Rollup.aggregation(metric)).addCount(delta);
+        }
+        if (reportsRaw(target)) {
+            addCountMeasurement(nameAndTags.withSuffix(metric), delta);
+        }
+    }
+
+    private void maybeAdd(ExpandedMetric metric, NameAndTags nameAndTags, Rollup.Target target, double reading) {
+        if (!expansionConfig.isSet(metric)) {
+            return;
+        }
+        if (target != null && isANumber(reading)) {
+            rollUp(target.name.withSuffix(metric), Rollup.aggregation(metric)).add(reading);
+        }
+        if (reportsRaw(target)) {
+            addGaugeMeasurement(nameAndTags.withSuffix(metric), reading);
+        }
+    }
+
+    /**
+     * Ensures that a number's value is an actual number
+     *
+     * @param number the number
+     * @return true if the number is not NaN or infinite, false otherwise
+     */
+    private static boolean isANumber(Number number) {
+        return isANumber(number.doubleValue());
+    }
+
+    private static boolean isANumber(double value) {
+        return !(Double.isNaN(value) || Double.isInfinite(value));
+    }
+
+
+    static final class Preconditions {
+        private Preconditions() {
+            // helper class, do not instantiate
+        }
+
+        static <T> T checkNotNull(T object) {
+            if (object == null) {
+                throw new IllegalArgumentException("Parameter may not be null");
+            }
+            return object;
+        }
+    }
+}
+
@@ -0,0 +1,385 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.appoptics.metrics.client.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Appends every batch to segment files in a directory, for a sidecar to ship: one line per measurement, as JSON or
+ * InfluxDB line protocol. Segments are preallocated and memory-mapped, so appending is a copy into the mapping;
+ * nothing is forced to disk on the polling thread, a full segment is forced and then unmapped by a background thread,
+ * so that the disk space of deleted segments is freed without waiting for a garbage collection.
+ * <p/>
+ * Segments are named {@code measurements-<sequence>.<ndjson|lp>}, with a zero-padded sequence. A new segment is
+ * started when a line does not fit in the current one or the current one is older than the maximum age; the
+ * unused end of a segment is zeros. The oldest segments are deleted beyond the retention limits.
+ * <p/>
+ * The file {@value #INDEX_FILE_NAME} tells a sidecar how far to read, big-endian: a magic, the version, a
+ * generation, the sequence of the current segment, the length of its complete lines and the time of its last
+ * measurements, updated after each collection. The generation is odd while the index is being updated: a reader
+ * reads it before and after the other fields and retries unless both are the same even number.
+ */
+class MappedFileSink implements MeasurementSink {
+    private static final Logger LOG = LoggerFactory.getLogger(MappedFileSink.class);
+    static final String INDEX_FILE_NAME = "measurements.index";
+    private static final String SEGMENT_PREFIX = "measurements-";
+    private static final String SYNC_THREAD_NAME = "kafkaappoptics-file-sync";
+
+    private static final int MAGIC = 0x4b414d53;
+    private static final int VERSION = 1;
+    private static final int INDEX_SIZE = 64;
+    private static final int GENERATION_OFFSET = 8;
+    private static final int SEGMENT_OFFSET = 16;
+    private static final int LENGTH_OFFSET = 24;
+    private static final int TIME_OFFSET = 32;
+
+    private static final byte[] TIME = "{\"time\":".getBytes(US_ASCII);
+    private static final byte[] PERIOD = ",\"period\":".getBytes(US_ASCII);
+    private static final byte[] VALUE = " value=".getBytes(US_ASCII);
+    private static final byte[] COUNT = " count=".getBytes(US_ASCII);
+    private static final byte[] SUM = ",sum=".getBytes(US_ASCII);
+    private static final byte[] MIN = ",min=".getBytes(US_ASCII);
+    private static final byte[] MAX = ",max=".getBytes(US_ASCII);
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    // frees a mapping right away, null if the JVM does not let us and mappings are freed when collected
+    private static final Consumer<MappedByteBuffer> UNMAPPER = unmapper();
+
+    enum Format {
+        NDJSON("ndjson"),
+        LINE("lp");
+
+        final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    private final File directory;
+    private final Format format;
+    private final int segmentBytes;
+    private final long maxSegmentAgeMillis;
+    private final int maxSegments;
+    private final long maxBytes;
+    private final List<Tag> staticTags;
+    private final MappedByteBuffer index;
+    private final PayloadBuffer line = new PayloadBuffer(512);
+    private final ExecutorService sync;
+    private final LongAdder droppedMeasurements = new LongAdder();
+    // per tier, the line protocol keys of the series written recently
+    private final List<SeriesCache<byte[]>> lineProtocolKeys = new ArrayList<>();
+
+    private MappedByteBuffer segment;
+    private long sequence;
+    private long segmentStartMillis;
+    private long generation;
+    private long lastTime;
+
+    /**
+     * @param directory           where the segments and the index are written, created if needed
+     * @param format              the format of the lines
+     * @param segmentBytes        the size of a segment
+     * @param maxSegmentAgeMillis how long a segment is appended to at most
+     * @param maxSegments         the most segments kept, including the current one
+     * @param maxBytes            the most bytes of segments kept, 0 for no limit
+     * @param staticTags          tags added to every measurement
+     */
+    MappedFileSink(File directory, Format format, int segmentBytes, long maxSegmentAgeMillis, int maxSegments,
+                   long maxBytes, List<Tag> staticTags) throws IOException {
+        if (segmentBytes < 4096) {
+            throw new IllegalArgumentException("Segments must be at least 4096 bytes");
+        }
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("At least one segment must be kept");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        this.directory = directory;
+        this.format = format;
+        this.segmentBytes = segmentBytes;
+        this.maxSegmentAgeMillis = maxSegmentAgeMillis;
+        this.maxSegments = maxSegments;
+        this.maxBytes = maxBytes;
+        this.staticTags = staticTags;
+        this.index = map(new File(directory, INDEX_FILE_NAME), INDEX_SIZE);
+        this.sync = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, SYNC_THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        });
+        // never append to a segment of an earlier run, its last line may be torn
+        final File[] existing = segments();
+        this.sequence = existing.length == 0 ? 0 : sequenceOf(existing[existing.length - 1]) + 1;
+        index.putInt(0, MAGIC);
+        index.putInt(4, VERSION);
+        this.generation = index.getLong(GENERATION_OFFSET) & ~1L;
+        openSegment();
+        commit();
+        deleteExpired();
+    }
+
+    long getDroppedMeasurements() {
+        return droppedMeasurements.sum();
+    }
+
+    @Override
+    public void send(int tier, KafkaMetricsBatch batch, long epoch, int period) {
+        if (System.currentTimeMillis() - segmentStartMillis >= maxSegmentAgeMillis && segment.position() > 0) {
+            rotate();
+        }
+        final SeriesCache<byte[]> keys = format == Format.LINE ? lineProtocolKeys(tier) : null;
+        for (int i = 0; i < batch.size(); i++) {
+            line.reset();
+            if (format == Format.NDJSON) {
+                writeJson(batch, i, epoch, period);
+            } else {
+                writeLineProtocol(batch, i, epoch, keys);
+            }
+            line.writeByte('\n');
+            if (line.size() > segment.remaining()) {
+                if (line.size() > segmentBytes) {
+                    droppedMeasurements.increment();
+                    LOG.debug("Dropped a measurement larger than a segment: {}", batch.name(i));
+                    continue;
+                }
+                rotate();
+            }
+            segment.put(line.array(), 0, line.size());
+        }
+        lastTime = Math.max(lastTime, epoch);
+        if (keys != null) {
+            keys.endCycle();
+        }
+    }
+
+    @Override
+    public void flush() {
+        commit();
+    }
+
+    @Override
+    public void close() {
+        commit();
+        final MappedByteBuffer last = segment;
+        sync.execute(last::force);
+        sync.execute(index::force);
+        sync.shutdown();
+        try {
+            sync.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeJson(KafkaMetricsBatch batch, int i, long epoch, int period) {
+        line.write(TIME).writeLong(epoch).write(PERIOD).writeLong(period).writeByte(',');
+        MeasurementsEncoder.writeMeasurement(line, batch, i, staticTags, false);
+        line.writeByte('}');
+    }
+
+    private void writeLineProtocol(KafkaMetricsBatch batch, int i, long epoch, SeriesCache<byte[]> keys) {
+        final NameAndTags nameAndTags = batch.name(i);
+        byte[] key = keys.get(nameAndTags);
+        if (key == null) {
+            key = lineProtocolKey(nameAndTags);
+            keys.put(nameAndTags, key);
+        }
+        line.write(key);
+        // all fields are floats, so that a series never changes field type
+        switch (batch.type(i)) {
+            case KafkaMetricsBatch.LONG:
+            case KafkaMetricsBatch.COUNT:
+                line.write(VALUE).writeLong(batch.count(i));
+                break;
+            case KafkaMetricsBatch.DOUBLE:
+                line.write(VALUE).writeDouble(batch.value(i));
+                break;
+            default:
+                line.write(COUNT).writeLong(batch.count(i));
+                line.write(SUM).writeDouble(batch.value(i));
+                line.write(MIN).writeDouble(batch.min(i));
+                line.write(MAX).writeDouble(batch.max(i));
+        }
+        line.writeByte(' ').writeLong(epoch * NANOS_PER_SECOND);
+    }
+
+    /**
+     * @return the measurement and tag set of a series in line protocol, escaped
+     */
+    private byte[] lineProtocolKey(NameAndTags nameAndTags) {
+        final StringBuilder key = new StringBuilder();
+        escape(key, nameAndTags.getName(), false);
+        for (Tag tag : nameAndTags.tagsWith(staticTags)) {
+            key.append(',');
+            escape(key, tag.name, true);
+            key.append('=');
+            escape(key, tag.value, true);
+        }
+        return key.toString().getBytes(US_ASCII);
+    }
+
+    private SeriesCache<byte[]> lineProtocolKeys(int tier) {
+        while (lineProtocolKeys.size() <= tier) {
+            lineProtocolKeys.add(new SeriesCache<>());
+        }
+        return lineProtocolKeys.get(tier);
+    }
+
+    private static void escape(StringBuilder out, String s, boolean tag) {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == ',' || c == ' ' || (tag && c == '=')) {
+                out.append('\\');
+            }
+            out.append(c > 0x7f ? '_' : c);
+        }
+    }
+
+    /**
+     * Publishes the current segment and the length of its complete lines to the index.
+     */
+    private void commit() {
+        index.putLong(GENERATION_OFFSET, ++generation);
+        index.putLong(SEGMENT_OFFSET, sequence);
+        index.putLong(LENGTH_OFFSET, segment.position());
+        index.putLong(TIME_OFFSET, lastTime);
+        index.putLong(GENERATION_OFFSET, ++generation);
+    }
+
+    private void rotate() {
+        final MappedByteBuffer full = segment;
+        sequence++;
+        try {
+            openSegment();
+        } catch (IOException e) {
+            // keep appending to the full segment, lines that do not fit are dropped
+            sequence--;
+            LOG.error("Unable to start a new segment in " + directory, e);
+            return;
+        }
+        commit();
+        sync.execute(() -> release(full));
+        deleteExpired();
+    }
+
+    /**
+     * Forces a full segment to disk and unmaps it. The segment must not be touched once this is called.
+     */
+    private static void release(MappedByteBuffer full) {
+        full.force();
+        if (UNMAPPER != null) {
+            try {
+                UNMAPPER.accept(full);
+            } catch (RuntimeException e) {
+                LOG.warn("Unable to unmap a full segment", e);
+            }
+        }
+    }
+
+    private static Consumer<MappedByteBuffer> unmapper() {
+        try {
+            // Java 9 and later
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Object unsafe = theUnsafe.get(null);
+            return buffer -> invoke(invokeCleaner, unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8
+        }
+        try {
+            final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> invoke(clean, invoke(cleaner, buffer));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.warn("Unable to unmap full segments, their disk space is freed when they are garbage collected", e);
+            return null;
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to unmap a segment", e);
+        }
+    }
+
+    private void openSegment() throws IOException {
+        segment = map(segmentFile(sequence), segmentBytes);
+        segmentStartMillis = System.currentTimeMillis();
+    }
+
+    private void deleteExpired() {
+        final File[] segments = segments();
+        long bytes = 0;
+        for (File file : segments) {
+            bytes += file.length();
+        }
+        // the current segment is the last one and is never deleted
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (segments.length - i <= maxSegments && (maxBytes <= 0 || bytes <= maxBytes)) {
+                break;
+            }
+            bytes -= segments[i].length();
+            if (!segments[i].delete()) {
+                LOG.warn("Unable to delete segment {}", segments[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the segments in the directory, oldest first
+     */
+    private File[] segments() {
+        final File[] files = directory.listFiles((dir, name) ->
+                name.startsWith(SEGMENT_PREFIX) && name.endsWith("." + format.extension));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private File segmentFile(long sequence) {
+        return new File(directory, String.format("%s%020d.%s", SEGMENT_PREFIX, sequence, format.extension));
+    }
+
+    private static long sequenceOf(File segment) {
+        final String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.lastIndexOf('.')));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        // the mapping stays valid once the file is closed
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
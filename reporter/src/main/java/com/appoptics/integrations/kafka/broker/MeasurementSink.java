@@ -0,0 +1,30 @@
+package com.appoptics.integrations.kafka.broker;
+
+/**
+ * Where the reporter hands what it collects: each due tier's batch, once per collection. Sinks are called on the
+ * polling thread, one batch after the other, and must not block it; anything slow, like posting, belongs on
+ * threads of their own.
+ */
+interface MeasurementSink {
+    /**
+     * @param tier   the index of the batch's tier, 0 for the default tier
+     * @param batch  the batch, with its rollups flushed; it is reused once the call returns
+     * @param epoch  the measurement time, in seconds
+     * @param period the reporting period, in seconds
+     */
+    void send(int tier, KafkaMetricsBatch batch, long epoch, int period);
+
+    /**
+     * Called once the batches of a collection were all sent.
+     */
+    default void flush() {
+    }
+
+    /**
+     * Called when the reporter starts polling.
+     */
+    default void start() {
+    }
+
+    void close();
+}
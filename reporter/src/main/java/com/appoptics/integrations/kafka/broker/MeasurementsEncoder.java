@@ -0,0 +1,140 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.appoptics.metrics.client.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Writes a batch straight into AppOptics measurements JSON, split into payloads of at most {@code batchSize}
+ * measurements. Names and tags are written from the pre-escaped fragments cached on {@link NameAndTags}, the
+ * static tags are escaped once, and the payload buffers come from a pool so that steady-state reports do not
+ * allocate.
+ * <p/>
+ * With {@code payloadTags} the static tags are written once per payload, in its top-level {@code tags}, and only
+ * measurements with tags of their own repeat them: the API uses a measurement's own tags instead of the
+ * payload's, not in addition to them.
+ */
+class MeasurementsEncoder {
+    private static final Logger LOG = LoggerFactory.getLogger(MeasurementsEncoder.class);
+    static final int DEFAULT_BATCH_SIZE = 500;
+
+    private static final byte[] TIME = "{\"time\":".getBytes(US_ASCII);
+    private static final byte[] PERIOD = ",\"period\":".getBytes(US_ASCII);
+    private static final byte[] MEASUREMENTS = ",\"measurements\":[".getBytes(US_ASCII);
+    private static final byte[] NAME = "\"name\":".getBytes(US_ASCII);
+    private static final byte[] TAGS = ",\"tags\":{".getBytes(US_ASCII);
+    private static final byte[] END = "]}".getBytes(US_ASCII);
+
+    private final PayloadBufferPool pool;
+    private final List<Tag> staticTags;
+    // the top-level tags member of every payload, null when the static tags are written on each measurement
+    private final byte[] payloadTags;
+    private final int batchSize;
+    private final ReporterStats stats;
+
+    MeasurementsEncoder(PayloadBufferPool pool, List<Tag> staticTags, boolean payloadTags, int batchSize, ReporterStats stats) {
+        this.pool = pool;
+        this.staticTags = staticTags;
+        this.payloadTags = payloadTags && !staticTags.isEmpty()
+                ? payloadTagsMember(NameAndTags.jsonMembers(staticTags))
+                : null;
+        this.batchSize = batchSize;
+        this.stats = stats;
+    }
+
+    /**
+     * Encodes the batch, handing each payload to the consumer as soon as it is complete. The consumer owns the
+     * payload and must hand it back with {@link #release(PayloadBuffer)} once it is done with it.
+     *
+     * @param batch    the batch
+     * @param epoch    the measurement time, in seconds
+     * @param period   the reporting period, in seconds
+     * @param consumer receives the completed payloads
+     */
+    void encode(KafkaMetricsBatch batch, long epoch, int period, Consumer<PayloadBuffer> consumer) {
+        PayloadBuffer payload = null;
+        for (int i = 0; i < batch.size(); i++) {
+            if (payload == null) {
+                payload = begin(epoch, period);
+            }
+            write(payload, batch, i);
+            if (payload.count == batchSize) {
+                consumer.accept(end(payload));
+                payload = null;
+            }
+        }
+        if (payload != null) {
+            consumer.accept(end(payload));
+        }
+    }
+
+    void release(PayloadBuffer payload) {
+        pool.release(payload);
+    }
+
+    private PayloadBuffer begin(long epoch, int period) {
+        final PayloadBuffer payload = pool.acquire();
+        payload.write(TIME).writeLong(epoch);
+        payload.write(PERIOD).writeLong(period);
+        if (payloadTags != null) {
+            payload.write(payloadTags);
+        }
+        payload.write(MEASUREMENTS);
+        return payload;
+    }
+
+    private void write(PayloadBuffer payload, KafkaMetricsBatch batch, int index) {
+        final int mark = payload.size();
+        final NameAndTags nameAndTags = batch.name(index);
+        try {
+            if (payload.count > 0) {
+                payload.writeByte(',');
+            }
+            payload.writeByte('{');
+            writeMeasurement(payload, batch, index, staticTags, payloadTags != null);
+            payload.writeByte('}');
+            payload.count++;
+        } catch (RuntimeException e) {
+            payload.truncate(mark);
+            stats.encodingFailed();
+            LOG.error("Unable to encode measurement {}", nameAndTags, e);
+        }
+    }
+
+    /**
+     * Writes the members of a measurement, without the enclosing braces: its name, its tags and its values.
+     *
+     * @param staticTagsInPayload whether the static tags are in the payload's tags, so that a measurement without
+     *                            tags of its own has no tags member
+     */
+    static void writeMeasurement(PayloadBuffer out, KafkaMetricsBatch batch, int index, List<Tag> staticTags,
+                                 boolean staticTagsInPayload) {
+        final NameAndTags nameAndTags = batch.name(index);
+        out.write(NAME).write(nameAndTags.jsonName());
+        if (!staticTagsInPayload || !nameAndTags.getTags().isEmpty()) {
+            final byte[] tags = nameAndTags.jsonTagsWith(staticTags);
+            if (tags.length > 0) {
+                out.write(TAGS).write(tags).writeByte('}');
+            }
+        }
+        out.writeByte(',');
+        batch.writeValues(index, out);
+    }
+
+    private static byte[] payloadTagsMember(byte[] staticTags) {
+        final byte[] member = new byte[TAGS.length + staticTags.length + 1];
+        System.arraycopy(TAGS, 0, member, 0, TAGS.length);
+        System.arraycopy(staticTags, 0, member, TAGS.length, staticTags.length);
+        member[member.length - 1] = '}';
+        return member;
+    }
+
+    private static PayloadBuffer end(PayloadBuffer payload) {
+        return payload.write(END);
+    }
+}
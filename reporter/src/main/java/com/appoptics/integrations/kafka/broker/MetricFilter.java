@@ -0,0 +1,352 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Include and exclude rules on metric names, compiled once. A metric is reported if it matches an include rule
+ * (or there are none) and no exclude rule.
+ * <p/>
+ * A rule is a pattern on {@code group.type.name}, either a glob where {@code *} matches any run of characters
+ * and {@code ?} any single character, or a regular expression between slashes. It may be followed by
+ * conditions on the scope in brackets, for example {@code kafka.log.Log.*[topic=__consumer_*]}. Condition keys
+ * are tag names parsed from the scope, or {@code scope} for the whole scope; the values are globs on the raw,
+ * unsanitized values. Kafka's own metrics (see {@link KafkaAppopticsMetricsReporter}) are matched on
+ * {@code kafka.group.name} and their conditions on their tags.
+ * <p/>
+ * Exact names are looked up in a map, names ending in a single trailing {@code *} in a prefix trie, and all
+ * other rules without conditions are combined into a single regular expression. The result for a given
+ * {@link MetricName} is only computed once, when the metric is registered (see {@link ReportableMetrics}), and
+ * the scope is only scanned when a rule with conditions matches the name.
+ */
+class MetricFilter implements MetricPredicate {
+    static final MetricFilter ALL = compile("", "");
+
+    private final RuleSet includes;
+    private final RuleSet excludes;
+
+    private MetricFilter(RuleSet includes, RuleSet excludes) {
+        this.includes = includes;
+        this.excludes = excludes;
+    }
+
+    /**
+     * @param includes comma separated include rules, may be empty to include everything
+     * @param excludes comma separated exclude rules, may be empty
+     * @return the compiled filter
+     * @throws IllegalArgumentException if a rule cannot be parsed
+     */
+    static MetricFilter compile(String includes, String excludes) {
+        return new MetricFilter(RuleSet.compile(split(includes)), RuleSet.compile(split(excludes)));
+    }
+
+    @Override
+    public boolean matches(MetricName name, Metric metric) {
+        final String scope = name.getScope();
+        return matches(name.getGroup() + '.' + name.getType() + '.' + name.getName(), key -> scopeValue(scope, key));
+    }
+
+    /**
+     * @param name a metric of Kafka's own metrics library
+     * @return true if the metric should be reported
+     */
+    boolean matches(org.apache.kafka.common.MetricName name) {
+        return matches(NameAndTags.nativeName(name), name.tags()::get);
+    }
+
+    private boolean matches(String fullName, Function<String, String> tags) {
+        return (includes.isEmpty() || includes.matches(fullName, tags)) && !excludes.matches(fullName, tags);
+    }
+
+    /**
+     * Splits a rule list on the commas that are not inside a condition list, braces or a {@code /regex/}.
+     *
+     * @throws IllegalArgumentException if a regular expression is not terminated
+     */
+    static List<String> split(String rules) {
+        if (rules == null || rules.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<String> output = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        boolean ruleStart = true;
+        for (int i = 0; i < rules.length(); i++) {
+            final char c = rules.charAt(i);
+            if (c == '/' && ruleStart) {
+                i = regexEnd(rules, i);
+            } else if (c == '[' || c == '{') {
+                depth++;
+            } else if (c == ']' || c == '}') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                addRule(output, rules.substring(start, i));
+                start = i + 1;
+                ruleStart = true;
+                continue;
+            }
+            if (!Character.isWhitespace(c)) {
+                ruleStart = false;
+            }
+        }
+        addRule(output, rules.substring(start));
+        return output;
+    }
+
+    /**
+     * @return the index of the slash closing the regular expression opened at {@code open}
+     */
+    private static int regexEnd(String rules, int open) {
+        for (int i = open + 1; i < rules.length(); i++) {
+            final char c = rules.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '/') {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unterminated regular expression in metric filter rule "
+                + rules.substring(open));
+    }
+
+    private static void addRule(List<String> output, String rule) {
+        final String trimmed = rule.trim();
+        if (!trimmed.isEmpty()) {
+            output.add(trimmed);
+        }
+    }
+
+    /**
+     * Returns the raw value of a tag in a Kafka scope such as {@code topic.foo.partition.0}, without splitting
+     * or sanitizing it.
+     *
+     * @param scope the scope, may be null
+     * @param key   the tag name, or {@code scope} for the whole scope
+     * @return the value, null if the scope does not have the tag
+     */
+    static String scopeValue(String scope, String key) {
+        if (scope == null) {
+            return null;
+        }
+        if ("scope".equals(key)) {
+            return scope;
+        }
+        String value = null;
+        int pairs = 0;
+        int start = 0;
+        while (start < scope.length()) {
+            final int keyEnd = scope.indexOf('.', start);
+            if (keyEnd < 0) {
+                // as in NameAndTags, a scope with an odd number of segments is not a list of tags
+                return null;
+            }
+            int valueEnd = scope.indexOf('.', keyEnd + 1);
+            if (valueEnd < 0) {
+                valueEnd = scope.length();
+            }
+            if (value == null && keyEnd - start == key.length() && scope.startsWith(key, start)) {
+                value = scope.substring(keyEnd + 1, valueEnd);
+            }
+            pairs++;
+            start = valueEnd + 1;
+        }
+        return pairs > 0 ? value : null;
+    }
+
+    static Pattern globToPattern(String glob) {
+        final StringBuilder regex = new StringBuilder(glob.length() + 8);
+        int literal = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            final char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (literal < i) {
+                    regex.append(Pattern.quote(glob.substring(literal, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                literal = i + 1;
+            }
+        }
+        if (literal < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literal)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private static boolean hasWildcard(String glob) {
+        return glob.indexOf('*') >= 0 || glob.indexOf('?') >= 0;
+    }
+
+    /**
+     * A compiled list of rules.
+     */
+    private static final class RuleSet {
+        private final Map<String, List<Condition[]>> exact = new HashMap<>();
+        private final TrieNode prefixes = new TrieNode();
+        private final List<Rule> patterns = new ArrayList<>();
+        private Pattern combined;
+        private boolean empty = true;
+
+        static RuleSet compile(List<String> rules) {
+            final RuleSet set = new RuleSet();
+            final StringBuilder combined = new StringBuilder();
+            for (String rule : rules) {
+                try {
+                    set.add(rule, combined);
+                } catch (PatternSyntaxException e) {
+                    throw new IllegalArgumentException("Invalid metric filter rule " + rule, e);
+                }
+            }
+            set.combined = combined.length() == 0 ? null : Pattern.compile(combined.toString());
+            return set;
+        }
+
+        private void add(String rule, StringBuilder combined) {
+            String pattern = rule;
+            Condition[] conditions = Condition.NONE;
+            final int bracket = rule.indexOf('[', rule.startsWith("/") ? rule.lastIndexOf('/') : 0);
+            if (bracket > 0) {
+                if (!rule.endsWith("]")) {
+                    throw new IllegalArgumentException("Unterminated conditions in metric filter rule " + rule);
+                }
+                pattern = rule.substring(0, bracket).trim();
+                conditions = Condition.parse(rule, rule.substring(bracket + 1, rule.length() - 1));
+            }
+            empty = false;
+
+            final boolean regex = pattern.length() > 1 && pattern.startsWith("/") && pattern.endsWith("/");
+            if (!regex && !hasWildcard(pattern)) {
+                exact.computeIfAbsent(pattern, k -> new ArrayList<>(1)).add(conditions);
+            } else if (!regex && pattern.endsWith("*") && !hasWildcard(pattern.substring(0, pattern.length() - 1))) {
+                prefixes.insert(pattern.substring(0, pattern.length() - 1)).add(conditions);
+            } else {
+                final String expression = regex ? pattern.substring(1, pattern.length() - 1)
+                        : globToPattern(pattern).pattern();
+                // compiled on its own first so that a bad rule is reported as such, not as a bad combination
+                final Pattern compiled = Pattern.compile(expression);
+                if (conditions.length == 0) {
+                    if (combined.length() > 0) {
+                        combined.append('|');
+                    }
+                    combined.append("(?:").append(expression).append(')');
+                } else {
+                    patterns.add(new Rule(compiled, conditions));
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return empty;
+        }
+
+        boolean matches(String name, Function<String, String> tags) {
+            if (anyMatches(exact.get(name), tags) || prefixes.matches(name, tags)) {
+                return true;
+            }
+            if (combined != null && combined.matcher(name).matches()) {
+                return true;
+            }
+            for (Rule rule : patterns) {
+                if (rule.pattern.matcher(name).matches() && Condition.allMatch(rule.conditions, tags)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean anyMatches(List<Condition[]> candidates, Function<String, String> tags) {
+            if (candidates != null) {
+                for (Condition[] conditions : candidates) {
+                    if (Condition.allMatch(conditions, tags)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class TrieNode {
+        private final Map<Character, TrieNode> children = new HashMap<>();
+        private List<Condition[]> rules;
+
+        List<Condition[]> insert(String prefix) {
+            TrieNode node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.children.computeIfAbsent(prefix.charAt(i), k -> new TrieNode());
+            }
+            if (node.rules == null) {
+                node.rules = new ArrayList<>(1);
+            }
+            return node.rules;
+        }
+
+        boolean matches(String name, Function<String, String> tags) {
+            TrieNode node = this;
+            for (int i = 0; node != null; i++) {
+                if (RuleSet.anyMatches(node.rules, tags)) {
+                    return true;
+                }
+                node = i < name.length() ? node.children.get(name.charAt(i)) : null;
+            }
+            return false;
+        }
+    }
+
+    private static final class Rule {
+        final Pattern pattern;
+        final Condition[] conditions;
+
+        Rule(Pattern pattern, Condition[] conditions) {
+            this.pattern = pattern;
+            this.conditions = conditions;
+        }
+    }
+
+    private static final class Condition {
+        static final Condition[] NONE = new Condition[0];
+
+        final String key;
+        // exactly one of these is set
+        final String value;
+        final Pattern pattern;
+
+        Condition(String key, String value) {
+            this.key = key;
+            this.value = hasWildcard(value) ? null : value;
+            this.pattern = hasWildcard(value) ? globToPattern(value) : null;
+        }
+
+        static Condition[] parse(String rule, String list) {
+            final List<Condition> conditions = new ArrayList<>();
+            for (String condition : list.split(",")) {
+                final int eq = condition.indexOf('=');
+                if (eq <= 0) {
+                    throw new IllegalArgumentException("Invalid condition " + condition + " in metric filter rule " + rule);
+                }
+                conditions.add(new Condition(condition.substring(0, eq).trim(), condition.substring(eq + 1).trim()));
+            }
+            return conditions.toArray(NONE);
+        }
+
+        static boolean allMatch(Condition[] conditions, Function<String, String> tags) {
+            for (Condition condition : conditions) {
+                final String actual = tags.apply(condition.key);
+                if (actual == null || !(condition.value != null
+                        ? condition.value.equals(actual) : condition.pattern.matcher(actual).matches())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
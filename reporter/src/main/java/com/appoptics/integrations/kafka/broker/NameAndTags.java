@@ -0,0 +1,282 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.appoptics.metrics.client.Sanitizer;
+import com.appoptics.metrics.client.Tag;
+import com.yammer.metrics.core.MetricName;
+
+import java.util.*;
+
+public class NameAndTags {
+    private static final String separator = ".";
+    private final String name;
+    private final String suffix;
+    private final List<Tag> tags;
+    private final int hash;
+
+    // memoize
+    private String _name = null;
+    private byte[] _jsonName = null;
+    private byte[] _jsonTags = null;
+    private MergedTags _mergedTags = null;
+    // suffixed variants, one per ExpandedMetric, built on first use
+    private final NameAndTags[] expansions;
+
+    NameAndTags(String name) {
+        this(name, null, Collections.emptyList());
+    }
+
+    NameAndTags(MetricName metricName) {
+        this(parseName(metricName), null, parseTags(metricName));
+    }
+
+    /**
+     * @param metricName a metric of Kafka's own metrics library, whose tags are used as they are
+     */
+    NameAndTags(org.apache.kafka.common.MetricName metricName) {
+        this(Sanitizer.METRIC_NAME_SANITIZER.apply(nativeName(metricName)), null, nativeTags(metricName));
+    }
+
+    private NameAndTags(String name, String suffix, List<Tag> tags) {
+        this.name = name;
+        this.suffix = suffix;
+        this.tags = tags;
+        this.hash = Objects.hash(name, suffix, tags);
+        this.expansions = suffix == null ? new NameAndTags[ExpandedMetric.values().length] : null;
+    }
+
+    /**
+     * Returns the variant of this name for an expanded stat. The variant, including its final name, is built
+     * once and reused for as long as this instance lives, so long-lived instances (see {@link NameCache}) do not
+     * re-run the sanitizer on every report.
+     *
+     * @param metric the expanded stat
+     * @return the suffixed name and tags
+     */
+    NameAndTags withSuffix(ExpandedMetric metric) {
+        if (expansions == null) {
+            return new NameAndTags(name, metric.suffix, tags);
+        }
+        NameAndTags expansion = expansions[metric.ordinal()];
+        if (expansion == null) {
+            expansion = new NameAndTags(name, metric.suffix, tags);
+            expansion.getName();
+            expansions[metric.ordinal()] = expansion;
+        }
+        return expansion;
+    }
+
+    /**
+     * Returns the series this one rolls up into when the given tag is dropped.
+     *
+     * @param tagName    the sanitized name of the tag to drop
+     * @param nameSuffix appended to the metric name, may be null
+     * @return the rolled up name and tags, or null if this series does not have the tag
+     */
+    NameAndTags withoutTag(String tagName, String nameSuffix) {
+        final List<Tag> remaining = new ArrayList<>(tags.size());
+        for (Tag tag : tags) {
+            if (!tag.name.equals(tagName)) {
+                remaining.add(tag);
+            }
+        }
+        if (remaining.size() == tags.size()) {
+            return null;
+        }
+        return new NameAndTags(nameSuffix == null ? getName() : getName() + separator + nameSuffix, null,
+                Collections.unmodifiableList(remaining));
+    }
+
+    /**
+     * @param value the value for every tag
+     * @return this series with all its tag values replaced
+     */
+    NameAndTags withTagValues(String value) {
+        final List<Tag> replaced = new ArrayList<>(tags.size());
+        for (Tag tag : tags) {
+            replaced.add(new Tag(tag.name, value));
+        }
+        return new NameAndTags(getName(), null, Collections.unmodifiableList(replaced));
+    }
+
+    String getName() {
+        if (_name == null) {
+            StringBuilder builder = new StringBuilder();
+            builder.append(name);
+            if (notEmpty(suffix)) {
+                builder.append(separator).append(suffix);
+            }
+            _name = builder.toString();
+        }
+        return _name;
+    }
+
+    List<Tag> getTags() {
+        return tags;
+    }
+
+    /**
+     * @return the name as a quoted, escaped JSON string
+     */
+    byte[] jsonName() {
+        if (_jsonName == null) {
+            _jsonName = PayloadBuffer.quote(getName());
+        }
+        return _jsonName;
+    }
+
+    /**
+     * @return the tags as escaped JSON object members without the enclosing braces, empty if there are no tags
+     */
+    byte[] jsonTags() {
+        if (_jsonTags == null) {
+            _jsonTags = jsonMembers(tags);
+        }
+        return _jsonTags;
+    }
+
+    /**
+     * Merges the static tags of the sinks into this series' tags. The result is kept for the static tags last
+     * asked for, and the sinks are all given the same list.
+     *
+     * @param staticTags tags added to every series
+     * @return this series' tags followed by the static tags it has no tag of the same name for
+     */
+    List<Tag> tagsWith(List<Tag> staticTags) {
+        return mergedTags(staticTags).tags;
+    }
+
+    /**
+     * @return {@link #tagsWith(List)} as escaped JSON object members without the enclosing braces, empty if there
+     * are no tags
+     */
+    byte[] jsonTagsWith(List<Tag> staticTags) {
+        return mergedTags(staticTags).json;
+    }
+
+    private MergedTags mergedTags(List<Tag> staticTags) {
+        MergedTags merged = _mergedTags;
+        if (merged == null || merged.staticTags != staticTags) {
+            merged = new MergedTags(staticTags, merge(tags, staticTags));
+            _mergedTags = merged;
+        }
+        return merged;
+    }
+
+    private static List<Tag> merge(List<Tag> tags, List<Tag> staticTags) {
+        if (staticTags.isEmpty()) {
+            return tags;
+        }
+        final List<Tag> merged = new ArrayList<>(tags.size() + staticTags.size());
+        merged.addAll(tags);
+        for (Tag staticTag : staticTags) {
+            boolean overridden = false;
+            for (Tag tag : tags) {
+                overridden |= tag.name.equals(staticTag.name);
+            }
+            if (!overridden) {
+                merged.add(staticTag);
+            }
+        }
+        return Collections.unmodifiableList(merged);
+    }
+
+    static byte[] jsonMembers(List<Tag> tags) {
+        final PayloadBuffer buffer = new PayloadBuffer(32 * tags.size());
+        for (Tag tag : tags) {
+            if (buffer.size() > 0) {
+                buffer.writeByte(',');
+            }
+            buffer.writeString(tag.name).writeByte(':').writeString(tag.value);
+        }
+        return Arrays.copyOf(buffer.array(), buffer.size());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        NameAndTags that = (NameAndTags) o;
+        return Objects.equals(name, that.name) &&
+                Objects.equals(suffix, that.suffix) &&
+                Objects.equals(tags, that.tags);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "NameAndTags{" +
+                "name='" + name + '\'' +
+                ", suffix='" + suffix + '\'' +
+                ", tags=" + tags +
+                '}';
+    }
+
+    /**
+     * Tags merged with static tags, replaced as a whole so that other threads never see a torn pair.
+     */
+    private static final class MergedTags {
+        final List<Tag> staticTags;
+        final List<Tag> tags;
+        final byte[] json;
+
+        MergedTags(List<Tag> staticTags, List<Tag> tags) {
+            this.staticTags = staticTags;
+            this.tags = tags;
+            this.json = jsonMembers(tags);
+        }
+    }
+
+    private static boolean notEmpty(String s) {
+        return s != null && s.length() != 0;
+    }
+
+    private static String parseName(MetricName metricName) {
+        return Sanitizer.METRIC_NAME_SANITIZER.apply(
+                metricName.getGroup() + separator +
+                        metricName.getType() + separator +
+                        metricName.getName());
+    }
+
+    /**
+     * @return the unsanitized name of a metric of Kafka's own metrics library, {@code kafka.group.name}
+     */
+    static String nativeName(org.apache.kafka.common.MetricName metricName) {
+        return "kafka" + separator + metricName.group() + separator + metricName.name();
+    }
+
+    private static List<Tag> nativeTags(org.apache.kafka.common.MetricName metricName) {
+        List<Tag> tempList = new ArrayList<>(metricName.tags().size());
+        for (Map.Entry<String, String> tag : metricName.tags().entrySet()) {
+            // e.g. an unset client-id, the API rejects empty tag values
+            if (notEmpty(tag.getValue())) {
+                tempList.add(new Tag(Sanitizer.TAG_NAME_SANITIZER.apply(tag.getKey()),
+                        Sanitizer.TAG_VALUE_SANITIZER.apply(tag.getValue())));
+            }
+        }
+        return Collections.unmodifiableList(tempList);
+    }
+
+    private static List<Tag> parseTags(MetricName metricName) {
+        List<Tag> tempList = new ArrayList<>();
+
+        if (metricName.hasScope()) {
+            String scope = metricName.getScope();
+            String[] parts = scope.split("\\.");
+            if (parts.length % 2 == 0) {
+                for (int i = 0; i < parts.length; i += 2) {
+                    String name = Sanitizer.TAG_NAME_SANITIZER.apply(parts[i]);
+                    String value = Sanitizer.TAG_VALUE_SANITIZER.apply(parts[i+1]);
+                    tempList.add(new Tag(name, value));
+                }
+            } else {
+                tempList.add(new Tag("scope", Sanitizer.TAG_VALUE_SANITIZER.apply(scope)));
+            }
+        }
+
+        return Collections.unmodifiableList(tempList);
+    }
+}
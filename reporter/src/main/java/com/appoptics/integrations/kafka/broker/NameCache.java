@@ -0,0 +1,53 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.MetricsRegistryListener;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the parsed {@link NameAndTags} for every metric in the registry so that the scope and sanitizer work
+ * is done once per metric instead of once per report. Entries are dropped when the metric is removed from the
+ * registry.
+ */
+class NameCache implements MetricsRegistryListener {
+    private final MetricsRegistry registry;
+    private final ConcurrentMap<MetricName, NameAndTags> names = new ConcurrentHashMap<>();
+
+    NameCache(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    NameAndTags get(MetricName metricName) {
+        NameAndTags nameAndTags = names.get(metricName);
+        if (nameAndTags == null) {
+            nameAndTags = new NameAndTags(metricName);
+            final NameAndTags existing = names.putIfAbsent(metricName, nameAndTags);
+            if (existing != null) {
+                return existing;
+            }
+            // the metric may have been removed while we were parsing it
+            if (!registry.allMetrics().containsKey(metricName)) {
+                names.remove(metricName);
+            }
+        }
+        return nameAndTags;
+    }
+
+    int size() {
+        return names.size();
+    }
+
+    @Override
+    public void onMetricAdded(MetricName name, Metric metric) {
+        // parsed lazily on first report
+    }
+
+    @Override
+    public void onMetricRemoved(MetricName name) {
+        names.remove(name);
+    }
+}
@@ -0,0 +1,60 @@
+package com.appoptics.integrations.kafka.broker;
+
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.KafkaMetric;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The metrics of Kafka's own metrics library, as handed to {@link KafkaAppopticsMetricsReporter}. The broker
+ * creates that reporter separately from {@link KafkaAppopticsReporter}, so the two meet here: the former adds
+ * and removes metrics, the latter listens for them like it listens to the Yammer registry.
+ */
+class NativeMetrics {
+    static final NativeMetrics SHARED = new NativeMetrics();
+
+    private final Map<MetricName, KafkaMetric> metrics = new HashMap<>();
+    private final List<Listener> listeners = new ArrayList<>();
+
+    interface Listener {
+        void onMetricAdded(KafkaMetric metric);
+
+        void onMetricRemoved(MetricName name);
+    }
+
+    synchronized void add(KafkaMetric metric) {
+        metrics.put(metric.metricName(), metric);
+        for (Listener listener : listeners) {
+            listener.onMetricAdded(metric);
+        }
+    }
+
+    synchronized void remove(MetricName name) {
+        if (metrics.remove(name) != null) {
+            for (Listener listener : listeners) {
+                listener.onMetricRemoved(name);
+            }
+        }
+    }
+
+    /**
+     * Adds a listener and calls it for every metric already added.
+     */
+    synchronized void addListener(Listener listener) {
+        listeners.add(listener);
+        for (KafkaMetric metric : metrics.values()) {
+            listener.onMetricAdded(metric);
+        }
+    }
+
+    synchronized void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    synchronized int size() {
+        return metrics.size();
+    }
+}
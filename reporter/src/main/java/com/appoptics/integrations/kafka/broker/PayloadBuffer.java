@@ -0,0 +1,209 @@
+package com.appoptics.integrations.kafka.broker;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer with just enough JSON support to write measurement payloads without creating
+ * intermediate objects. Buffers are meant to be reused across reports, see {@link PayloadBufferPool}.
+ */
+final class PayloadBuffer {
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final long[] LONG_POWERS_OF_TEN = new long[19];
+    private static final double[] POWERS_OF_TEN = new double[21];
+    // doubles with a magnitude in this range are written as fixed point with 15 significant digits
+    private static final double MIN_FIXED = 1e-6;
+    private static final double MAX_FIXED = 1e15;
+    private static final int SIGNIFICANT_DIGITS = 15;
+
+    static {
+        LONG_POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < LONG_POWERS_OF_TEN.length; i++) {
+            LONG_POWERS_OF_TEN[i] = LONG_POWERS_OF_TEN[i - 1] * 10;
+        }
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = Math.pow(10, i);
+        }
+    }
+
+    private byte[] bytes;
+    private int size;
+    // count of items written to the payload, maintained by the encoder
+    int count;
+
+    PayloadBuffer(int initialCapacity) {
+        this.bytes = new byte[initialCapacity];
+    }
+
+    byte[] array() {
+        return bytes;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return bytes.length;
+    }
+
+    void reset() {
+        size = 0;
+        count = 0;
+    }
+
+    /**
+     * Truncates the buffer, used to drop a partially written item.
+     */
+    void truncate(int newSize) {
+        size = newSize;
+    }
+
+    PayloadBuffer writeByte(int b) {
+        ensureCapacity(1);
+        bytes[size++] = (byte) b;
+        return this;
+    }
+
+    PayloadBuffer write(byte[] fragment) {
+        return write(fragment, 0, fragment.length);
+    }
+
+    PayloadBuffer write(byte[] src, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(src, offset, bytes, size, length);
+        size += length;
+        return this;
+    }
+
+    /**
+     * Writes a string that is known to be plain ASCII without any characters that need escaping.
+     */
+    PayloadBuffer writeAscii(String s) {
+        final int length = s.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            bytes[size++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+    PayloadBuffer writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            return writeAscii(Long.toString(value));
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            bytes[size++] = '-';
+            value = -value;
+        }
+        final int digits = digitCount(value);
+        int pos = size + digits;
+        do {
+            bytes[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        size += digits;
+        return this;
+    }
+
+    /**
+     * Writes a finite double as a JSON number. Values in the common range are written as fixed point with
+     * {@value #SIGNIFICANT_DIGITS} significant digits, which is more than the backend keeps, and without
+     * going through {@link Double#toString(double)}.
+     */
+    PayloadBuffer writeDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException(value + " is not a numeric value");
+        }
+        final double abs = Math.abs(value);
+        if (abs < MAX_FIXED && value == (long) value) {
+            return writeLong((long) value);
+        }
+        if (abs < MIN_FIXED || abs >= MAX_FIXED) {
+            return writeAscii(Double.toString(value));
+        }
+        if (value < 0) {
+            writeByte('-');
+        }
+        int scale = SIGNIFICANT_DIGITS - 1 - (int) Math.floor(Math.log10(abs));
+        long digits = Math.round(abs * POWERS_OF_TEN[scale]);
+        final long integral;
+        long fraction;
+        if (scale < LONG_POWERS_OF_TEN.length) {
+            integral = digits / LONG_POWERS_OF_TEN[scale];
+            fraction = digits - integral * LONG_POWERS_OF_TEN[scale];
+        } else {
+            integral = 0;
+            fraction = digits;
+        }
+        writeLong(integral);
+        if (fraction != 0) {
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                scale--;
+            }
+            writeByte('.');
+            for (int zeros = scale - digitCount(fraction); zeros > 0; zeros--) {
+                writeByte('0');
+            }
+            writeLong(fraction);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a quoted and escaped JSON string.
+     */
+    PayloadBuffer writeString(String s) {
+        return write(quote(s));
+    }
+
+    /**
+     * Builds the quoted and escaped UTF-8 form of a string, to be cached by callers and written with
+     * {@link #write(byte[])}.
+     */
+    static byte[] quote(String s) {
+        final StringBuilder builder = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append("\\u00").append((char) HEX[c >> 4]).append((char) HEX[c & 0xF]);
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.append('"').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int digitCount(long value) {
+        int digits = 1;
+        while (digits < LONG_POWERS_OF_TEN.length && value >= LONG_POWERS_OF_TEN[digits]) {
+            digits++;
+        }
+        return digits;
+    }
+
+    /**
+     * Marks bytes written directly into {@link #array()} as part of the buffer.
+     */
+    void advance(int written) {
+        size += written;
+    }
+
+    /**
+     * Makes room for at least {@code extra} more bytes. May replace the array returned by {@link #array()}.
+     */
+    void ensureCapacity(int extra) {
+        if (size + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, size, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,33 @@
+package com.appoptics.integrations.kafka.broker;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Recycles payload buffers between reports so that a steady-state report does not allocate new byte arrays.
+ * Buffers that grew beyond {@code maxRetainedCapacity} are dropped instead of being pooled.
+ */
+final class PayloadBufferPool {
+    private final Deque<PayloadBuffer> free = new ArrayDeque<>();
+    private final int initialCapacity;
+    private final int maxPooled;
+    private final int maxRetainedCapacity;
+
+    PayloadBufferPool(int initialCapacity, int maxPooled, int maxRetainedCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.maxPooled = maxPooled;
+        this.maxRetainedCapacity = maxRetainedCapacity;
+    }
+
+    synchronized PayloadBuffer acquire() {
+        final PayloadBuffer buffer = free.pollFirst();
+        return buffer != null ? buffer : new PayloadBuffer(initialCapacity);
+    }
+
+    synchronized void release(PayloadBuffer buffer) {
+        if (free.size() < maxPooled && buffer.capacity() <= maxRetainedCapacity) {
+            buffer.reset();
+            free.addFirst(buffer);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.appoptics.integrations.kafka.broker;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses payloads with a reusable {@link Deflater} into a reusable output buffer. Instances are confined to
+ * a single thread; the output of {@link #compress(PayloadBuffer)} is only valid until the next call.
+ */
+final class PayloadCompressor {
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int DEFLATE_CHUNK = 8192;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final CompressionConfig config;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final PayloadBuffer output;
+
+    PayloadCompressor(CompressionConfig config, int initialCapacity) {
+        this.config = config;
+        // gzip framing is written by hand around a raw deflate stream, "deflate" is the zlib format
+        this.deflater = new Deflater(config.level, config.encoding == Encoding.GZIP);
+        this.output = new PayloadBuffer(initialCapacity);
+    }
+
+    /**
+     * @param payload the payload
+     * @return the compressed payload
+     */
+    PayloadBuffer compress(PayloadBuffer payload) {
+        final long start = cpuTime();
+        output.reset();
+        deflater.reset();
+        final boolean gzip = config.encoding == Encoding.GZIP;
+        if (gzip) {
+            output.write(GZIP_HEADER);
+            crc.reset();
+            crc.update(payload.array(), 0, payload.size());
+        }
+        deflater.setInput(payload.array(), 0, payload.size());
+        deflater.finish();
+        while (!deflater.finished()) {
+            output.ensureCapacity(DEFLATE_CHUNK);
+            output.advance(deflater.deflate(output.array(), output.size(), output.capacity() - output.size()));
+        }
+        if (gzip) {
+            writeIntLE(output, (int) crc.getValue());
+            writeIntLE(output, payload.size());
+        }
+        config.stats.record(payload.size(), output.size(), cpuTime() - start);
+        return output;
+    }
+
+    void close() {
+        deflater.end();
+    }
+
+    private static void writeIntLE(PayloadBuffer out, int value) {
+        out.writeByte(value).writeByte(value >>> 8).writeByte(value >>> 16).writeByte(value >>> 24);
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    enum Encoding {
+        NONE(null),
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        final String contentEncoding;
+
+        Encoding(String contentEncoding) {
+            this.contentEncoding = contentEncoding;
+        }
+    }
+
+    /**
+     * Configures compression of request bodies. Payloads smaller than {@code minBytes} are sent as is.
+     */
+    static class CompressionConfig {
+        static final CompressionConfig NONE = new CompressionConfig(Encoding.NONE, Deflater.DEFAULT_COMPRESSION, 0);
+
+        final Encoding encoding;
+        final int level;
+        final int minBytes;
+        final CompressionStats stats = new CompressionStats();
+
+        CompressionConfig(Encoding encoding, int level, int minBytes) {
+            if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+                throw new IllegalArgumentException("Invalid compression level " + level);
+            }
+            this.encoding = encoding;
+            this.level = level;
+            this.minBytes = minBytes;
+        }
+
+        boolean shouldCompress(int size) {
+            return encoding != Encoding.NONE && size >= minBytes;
+        }
+    }
+
+    /**
+     * Running totals for all compressed payloads.
+     */
+    static class CompressionStats {
+        private final LongAdder payloads = new LongAdder();
+        private final LongAdder uncompressedBytes = new LongAdder();
+        private final LongAdder compressedBytes = new LongAdder();
+        private final LongAdder cpuNanos = new LongAdder();
+
+        void record(int uncompressed, int compressed, long nanos) {
+            payloads.increment();
+            uncompressedBytes.add(uncompressed);
+            compressedBytes.add(compressed);
+            cpuNanos.add(nanos);
+        }
+
+        long getPayloads() {
+            return payloads.sum();
+        }
+
+        /**
+         * @return uncompressed bytes divided by compressed bytes, zero if nothing was compressed yet
+         */
+        double getRatio() {
+            final long compressed = compressedBytes.sum();
+            return compressed == 0 ? 0 : (double) uncompressedBytes.sum() / compressed;
+        }
+
+        long getCpuNanos() {
+            return cpuNanos.sum();
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package com.appoptics.integrations.kafka.broker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ships encoded payloads on dedicated threads so that a slow or failing endpoint never delays collection.
+ * Payloads are handed over through a bounded queue and posted by {@code threads} senders concurrently, each
+ * reusing its keep-alive connection. When the queue is full the oldest payload is dropped, or the collector
+ * waits up to {@code blockTimeoutMillis} for room, depending on the overflow policy.
+ * <p/>
+ * If a spool is configured, payloads that fail to send or are dropped from the queue are written to it, and
+ * replayed oldest-first by the sender threads, at most {@code replayPerSecond} a second, between live payloads
+ * and whenever the queue is idle.
+ * <p/>
+ * Failures that may succeed later (I/O errors, 5xx and 429 responses) are retried according to the
+ * {@link RetryPolicy}, and a {@link CircuitBreaker} stops all posting while the endpoint keeps failing.
+ * <p/>
+ * On shutdown the senders finish the queued payloads for up to {@code drainTimeoutMillis}; whatever is left
+ * after that is spooled, or dropped and counted without a spool.
+ */
+class PayloadSender {
+    private static final Logger LOG = LoggerFactory.getLogger(PayloadSender.class);
+    private static final String THREAD_NAME = "kafkaappoptics-sender-";
+    private static final long SENT = -1;
+    // how long an idle sender waits for a payload before looking at the spool again
+    private static final long IDLE_POLL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // queued once per sender on shutdown, behind the remaining payloads, to stop it
+    private static final PayloadBuffer STOP = new PayloadBuffer(0);
+
+    private final HttpPoster poster;
+    private final PayloadBufferPool pool;
+    private final SenderConfig config;
+    private final BlockingQueue<PayloadBuffer> queue;
+    private final List<Thread> threads = new ArrayList<>();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreaker breaker;
+    private final PayloadSpool spool;
+    private final ReporterStats stats;
+    private final AtomicBoolean replaying = new AtomicBoolean();
+    private final AtomicLong nextReplayNanos = new AtomicLong(System.nanoTime());
+    private volatile boolean accepting = true;
+    private volatile boolean running = true;
+
+    PayloadSender(HttpPoster poster,
+                  PayloadBufferPool pool,
+                  SenderConfig config,
+                  RetryPolicy retryPolicy,
+                  CircuitBreaker breaker,
+                  PayloadSpool spool,
+                  ReporterStats stats) {
+        this.poster = poster;
+        this.pool = pool;
+        this.config = config;
+        this.retryPolicy = retryPolicy;
+        this.breaker = breaker;
+        this.spool = spool;
+        this.stats = stats;
+        this.queue = new ArrayBlockingQueue<>(config.queueSize);
+        for (int i = 0; i < config.threads; i++) {
+            final Thread thread = new Thread(this::sendLoop, THREAD_NAME + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    PayloadBufferPool pool() {
+        return pool;
+    }
+
+    /**
+     * Queues a payload for sending. Ownership of the payload passes to the sender.
+     *
+     * @param payload the payload
+     */
+    void send(PayloadBuffer payload) {
+        if (!accepting) {
+            dropped.increment();
+            pool.release(payload);
+            return;
+        }
+        switch (config.overflow) {
+            case DROP_OLDEST:
+                while (!queue.offer(payload)) {
+                    final PayloadBuffer oldest = queue.poll();
+                    if (oldest != null) {
+                        drop(oldest);
+                    }
+                }
+                break;
+            case BLOCK:
+                try {
+                    if (!queue.offer(payload, config.blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                        drop(payload);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    drop(payload);
+                }
+                break;
+        }
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    int getQueued() {
+        return queue.size();
+    }
+
+    long getRetries() {
+        return retries.sum();
+    }
+
+    CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    long getSpooledBytes() {
+        return spool == null ? 0 : spool.usedBytes();
+    }
+
+    /**
+     * Stops accepting payloads and waits for the senders to post the queued ones. Senders still busy when the
+     * drain timeout expires are interrupted, and waited for until their current post times out. The payloads
+     * left in the queue are then spooled, or dropped, and the spool is closed.
+     */
+    void shutdown() {
+        accepting = false;
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.drainTimeoutMillis);
+        try {
+            for (int i = 0; i < threads.size(); i++) {
+                if (!queue.offer(STOP, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    break;
+                }
+            }
+            for (Thread thread : threads) {
+                TimeUnit.NANOSECONDS.timedJoin(thread, Math.max(1, deadline - System.nanoTime()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        running = false;
+        for (Thread thread : threads) {
+            if (thread.isAlive()) {
+                thread.interrupt();
+            }
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join(poster.timeoutMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (thread.isAlive()) {
+                LOG.warn("Sender thread {} did not stop", thread.getName());
+            }
+        }
+
+        int remaining = 0;
+        PayloadBuffer payload;
+        while ((payload = queue.poll()) != null) {
+            if (payload == STOP) {
+                continue;
+            }
+            remaining++;
+            if (spool != null) {
+                spool(payload);
+            } else {
+                dropped.increment();
+            }
+            pool.release(payload);
+        }
+        if (remaining > 0) {
+            LOG.warn("Send queue was not drained in {} ms, {} {} payloads", config.drainTimeoutMillis,
+                    spool != null ? "spooled" : "dropped", remaining);
+        }
+        if (spool != null) {
+            try {
+                spool.close();
+            } catch (IOException e) {
+                LOG.error("Unable to close the payload spool", e);
+            }
+        }
+    }
+
+    private void drop(PayloadBuffer payload) {
+        if (payload == STOP) {
+            return;
+        }
+        dropped.increment();
+        if (spool != null) {
+            LOG.warn("Send queue is full, spooling a payload of {} measurements", payload.count);
+            spool(payload);
+        } else {
+            LOG.warn("Send queue is full, dropping a payload of {} measurements", payload.count);
+        }
+        pool.release(payload);
+    }
+
+    private void spool(PayloadBuffer payload) {
+        if (spool != null && !spool.append(payload)) {
+            LOG.warn("Payload of {} bytes is larger than the spool, dropping it", payload.size());
+        }
+    }
+
+    private void sendLoop() {
+        try {
+            while (running) {
+                final PayloadBuffer payload;
+                try {
+                    payload = spool == null ? queue.take() : queue.poll(nanosUntilReplay(), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (payload == null) {
+                    maybeReplay();
+                    continue;
+                }
+                if (payload == STOP) {
+                    break;
+                }
+                try {
+                    if (!breaker.allowRequest()) {
+                        refuse(payload);
+                    } else if (postWithRetries(payload)) {
+                        maybeReplay();
+                    } else {
+                        giveUp(payload);
+                    }
+                } finally {
+                    pool.release(payload);
+                }
+            }
+        } finally {
+            poster.closeCompressor();
+        }
+    }
+
+    private void refuse(PayloadBuffer payload) {
+        if (spool != null) {
+            spool(payload);
+        } else {
+            dropped.increment();
+            LOG.warn("Circuit breaker is open, dropping a payload of {} measurements", payload.count);
+        }
+    }
+
+    private void giveUp(PayloadBuffer payload) {
+        if (spool != null) {
+            spool(payload);
+        } else {
+            dropped.increment();
+            LOG.warn("Post failed, dropping a payload of {} measurements", payload.count);
+        }
+    }
+
+    /**
+     * Posts a payload, retrying failures that may succeed later for as long as the retry policy and the circuit
+     * breaker allow.
+     *
+     * @return false if the payload was not delivered but may be later
+     */
+    private boolean postWithRetries(PayloadBuffer payload) {
+        for (int attempt = 1; ; attempt++) {
+            final long retryAfterMillis = post(payload);
+            if (retryAfterMillis == SENT) {
+                return true;
+            }
+            if (attempt >= retryPolicy.maxAttempts || !running) {
+                return false;
+            }
+            final long delay = retryPolicy.delayMillis(attempt, retryAfterMillis);
+            if (delay < 0) {
+                return false;
+            }
+            retries.increment();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            if (!breaker.allowRequest()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Posts a payload once and reports the outcome to the circuit breaker.
+     *
+     * @return {@link #SENT} if the payload was delivered or rejected for good, otherwise the delay in milliseconds
+     * requested by the endpoint before trying again (zero if none)
+     */
+    private long post(PayloadBuffer payload) {
+        final long start = ReporterStats.start();
+        try {
+            HttpPoster.Response response = poster.post(payload);
+            if (response.isError()) {
+                stats.postFailed();
+                LOG.error("error attempting to post measurements to librato, {}", response);
+                if (response.isRetryable()) {
+                    breaker.onFailure();
+                    return response.retryAfterMillis;
+                }
+            } else {
+                stats.payloadSent(response.sentBytes);
+            }
+            breaker.onSuccess();
+            return SENT;
+        } catch (IOException e) {
+            stats.postFailed();
+            LOG.error("error attempting to post measurements to librato", e);
+            breaker.onFailure();
+            return 0;
+        } catch (Exception e) {
+            // not an endpoint failure and would happen again, so neither retried nor counted by the breaker
+            stats.postFailed();
+            dropped.increment();
+            LOG.error("APPOPTICS post failed, dropping the payload: ", e);
+            breaker.onAbandoned();
+            return SENT;
+        } finally {
+            stats.stop(ReporterStats.Stage.POST, start);
+        }
+    }
+
+    /**
+     * @return how long a sender may wait for a live payload before the next spooled payload is due
+     */
+    private long nanosUntilReplay() {
+        if (spool.isEmpty()) {
+            return IDLE_POLL_NANOS;
+        }
+        return Math.max(TimeUnit.MILLISECONDS.toNanos(1), nextReplayNanos.get() - System.nanoTime());
+    }
+
+    /**
+     * Replays the oldest spooled payload if the replay rate and the circuit breaker allow it and no other sender
+     * is replaying.
+     */
+    private void maybeReplay() {
+        if (spool == null || !accepting || spool.isEmpty()) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final long next = nextReplayNanos.get();
+        if (now - next < 0 || !replaying.compareAndSet(false, true)) {
+            return;
+        }
+        nextReplayNanos.set(now + TimeUnit.SECONDS.toNanos(1) / config.replayPerSecond);
+        if (!breaker.allowRequest()) {
+            replaying.set(false);
+            return;
+        }
+        final PayloadBuffer payload = pool.acquire();
+        try {
+            final long position = spool.peek(payload);
+            if (position >= 0 && post(payload) == SENT) {
+                spool.commit(position);
+            }
+        } finally {
+            pool.release(payload);
+            replaying.set(false);
+        }
+    }
+
+    enum Overflow {
+        DROP_OLDEST,
+        BLOCK
+    }
+
+    /**
+     * Configures the send queue and the number of concurrent posts.
+     */
+    static class SenderConfig {
+        static final int DEFAULT_THREADS = 2;
+        static final int DEFAULT_QUEUE_SIZE = 64;
+        static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 5000;
+        static final int DEFAULT_REPLAY_PER_SECOND = 5;
+        static final long DEFAULT_DRAIN_TIMEOUT_MILLIS = 5000;
+
+        final int threads;
+        final int queueSize;
+        final Overflow overflow;
+        final long blockTimeoutMillis;
+        final int replayPerSecond;
+        final long drainTimeoutMillis;
+
+        SenderConfig(int threads, int queueSize, Overflow overflow, long blockTimeoutMillis, int replayPerSecond,
+                     long drainTimeoutMillis) {
+            if (threads < 1 || queueSize < 1 || replayPerSecond < 1) {
+                throw new IllegalArgumentException("Sender threads, queue size and replay rate must be positive");
+            }
+            this.threads = threads;
+            this.queueSize = queueSize;
+            this.overflow = overflow;
+            this.blockTimeoutMillis = blockTimeoutMillis;
+            this.replayPerSecond = replayPerSecond;
+            this.drainTimeoutMillis = drainTimeoutMillis;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.appoptics.integrations.kafka.broker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A fixed-size ring of payloads that could not be sent, kept in a memory-mapped file so that it survives
+ * broker restarts. When the ring is full the oldest payloads are overwritten.
+ * <p/>
+ * File layout: a header holding the magic, version, capacity and the head and tail positions, followed by
+ * {@code capacity} bytes of records. Positions are logical offsets that only ever grow; the physical offset is
+ * the position modulo the capacity. Each record is a magic, the payload length, a CRC32 of the payload and the
+ * payload itself. A record that does not fit before the end of the ring is preceded by padding up to the end.
+ * The tail is only moved once the record is fully written, and records whose checksum does not match are
+ * skipped, so a record torn by a crash is never replayed.
+ */
+final class PayloadSpool implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(PayloadSpool.class);
+    static final String FILE_NAME = "appoptics-spool.dat";
+
+    private static final int MAGIC = 0x4b415350;
+    private static final int VERSION = 1;
+    private static final int RECORD_MAGIC = 0x52454331;
+    private static final int PADDING_MAGIC = 0x50414431;
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int HEAD_OFFSET = 16;
+    private static final int TAIL_OFFSET = 24;
+    private static final int RECORD_HEADER_SIZE = 12;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final ByteBuffer data;
+    private final long capacity;
+    private final CRC32 crc = new CRC32();
+    private long head;
+    private long tail;
+
+    private PayloadSpool(RandomAccessFile file, MappedByteBuffer map, long capacity) {
+        this.file = file;
+        this.map = map;
+        this.capacity = capacity;
+        this.data = map.duplicate();
+    }
+
+    /**
+     * Opens the spool in the given directory, creating it if needed. An existing spool with a different capacity
+     * or an unreadable header is discarded.
+     *
+     * @param directory the directory holding the spool file
+     * @param capacity  the number of bytes available for records
+     * @return the spool
+     * @throws IOException if the file could not be created or mapped
+     */
+    static PayloadSpool open(File directory, long capacity) throws IOException {
+        if (capacity < RECORD_HEADER_SIZE || capacity > Integer.MAX_VALUE - HEADER_SIZE) {
+            throw new IllegalArgumentException("Invalid spool capacity " + capacity);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + directory);
+        }
+        final RandomAccessFile file = new RandomAccessFile(new File(directory, FILE_NAME), "rw");
+        try {
+            file.setLength(HEADER_SIZE + capacity);
+            final MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+            final PayloadSpool spool = new PayloadSpool(file, map, capacity);
+            spool.load();
+            return spool;
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends a payload, overwriting the oldest payloads if there is not enough room.
+     *
+     * @param payload the payload
+     * @return false if the payload is larger than the whole spool
+     */
+    synchronized boolean append(PayloadBuffer payload) {
+        final int length = payload.size();
+        final long needed = RECORD_HEADER_SIZE + (long) length;
+        if (needed > capacity) {
+            return false;
+        }
+        final long toEnd = capacity - offset(tail);
+        long padding = toEnd < needed ? toEnd : 0;
+        while (head < tail && tail + padding + needed - head > capacity) {
+            dropOldest();
+        }
+        if (head == tail && padding > 0) {
+            // nothing left to keep, start the record at the beginning of the ring
+            tail += padding;
+            head = tail;
+            padding = 0;
+        }
+        if (padding > 0) {
+            if (padding >= 4) {
+                data.putInt(physical(tail), PADDING_MAGIC);
+            }
+            tail += padding;
+        }
+        final int at = physical(tail);
+        crc.reset();
+        crc.update(payload.array(), 0, length);
+        data.position(at + RECORD_HEADER_SIZE);
+        data.put(payload.array(), 0, length);
+        data.putInt(at + 4, length);
+        data.putInt(at + 8, (int) crc.getValue());
+        data.putInt(at, RECORD_MAGIC);
+        tail += needed;
+        writePositions();
+        return true;
+    }
+
+    /**
+     * Reads the oldest payload without removing it.
+     *
+     * @param into the buffer to read the payload into
+     * @return the position of the payload, to be passed to {@link #commit(long)} once it has been sent, or -1 if
+     * the spool is empty
+     */
+    synchronized long peek(PayloadBuffer into) {
+        while (head < tail) {
+            if (skipPadding()) {
+                continue;
+            }
+            final int at = physical(head);
+            final int length = data.getInt(at + 4);
+            if (data.getInt(at) != RECORD_MAGIC || length < 0 || head + RECORD_HEADER_SIZE + length > tail) {
+                LOG.warn("Discarding {} bytes of unreadable spooled payloads", tail - head);
+                head = tail;
+                writePositions();
+                return -1;
+            }
+            into.reset();
+            into.ensureCapacity(length);
+            data.position(at + RECORD_HEADER_SIZE);
+            data.get(into.array(), 0, length);
+            into.advance(length);
+            crc.reset();
+            crc.update(into.array(), 0, length);
+            if ((int) crc.getValue() == data.getInt(at + 8)) {
+                return head;
+            }
+            LOG.warn("Skipping a spooled payload of {} bytes with a bad checksum", length);
+            head += RECORD_HEADER_SIZE + length;
+            writePositions();
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the payload returned by {@link #peek(PayloadBuffer)}, unless it has been overwritten since.
+     *
+     * @param position the position of the payload
+     */
+    synchronized void commit(long position) {
+        if (position == head && head < tail) {
+            dropOldest();
+            writePositions();
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return head == tail;
+    }
+
+    synchronized long usedBytes() {
+        return tail - head;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        map.force();
+        file.close();
+    }
+
+    private void load() {
+        if (map.getInt(MAGIC_OFFSET) == MAGIC
+                && map.getInt(VERSION_OFFSET) == VERSION
+                && map.getLong(CAPACITY_OFFSET) == capacity) {
+            head = map.getLong(HEAD_OFFSET);
+            tail = map.getLong(TAIL_OFFSET);
+            if (head >= 0 && head <= tail && tail - head <= capacity) {
+                if (head < tail) {
+                    LOG.info("Found {} bytes of spooled payloads to replay", tail - head);
+                }
+                return;
+            }
+            LOG.warn("Spool positions are invalid, discarding spooled payloads");
+        }
+        head = 0;
+        tail = 0;
+        map.putInt(MAGIC_OFFSET, MAGIC);
+        map.putInt(VERSION_OFFSET, VERSION);
+        map.putLong(CAPACITY_OFFSET, capacity);
+        writePositions();
+    }
+
+    /**
+     * Moves the head past the padding at the end of the ring, if there is any.
+     *
+     * @return true if padding was skipped
+     */
+    private boolean skipPadding() {
+        final long toEnd = capacity - offset(head);
+        if (toEnd < RECORD_HEADER_SIZE || data.getInt(physical(head)) == PADDING_MAGIC) {
+            head += toEnd;
+            return true;
+        }
+        return false;
+    }
+
+    private void dropOldest() {
+        if (skipPadding()) {
+            return;
+        }
+        final int at = physical(head);
+        final int length = data.getInt(at + 4);
+        if (data.getInt(at) != RECORD_MAGIC || length < 0 || head + RECORD_HEADER_SIZE + length > tail) {
+            head = tail;
+        } else {
+            head += RECORD_HEADER_SIZE + length;
+        }
+    }
+
+    private void writePositions() {
+        map.putLong(HEAD_OFFSET, head);
+        map.putLong(TAIL_OFFSET, tail);
+    }
+
+    private long offset(long position) {
+        return position % capacity;
+    }
+
+    private int physical(long position) {
+        return (int) (HEADER_SIZE + offset(position));
+    }
+}
@@ -0,0 +1,286 @@
+package com.appoptics.integrations.kafka.broker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * A minimal HTTP server for Prometheus scrapes, on a single thread with non-blocking I/O. A scrape is answered
+ * with the last {@link PrometheusExposition} as it is, gzipped if the scraper accepts it, so any number of
+ * scrapes never touch the registry or the collection. Each connection serves one request and is then closed.
+ * <p/>
+ * As a sink, it renders each batch it is sent and publishes the exposition once the collection is complete.
+ */
+class PrometheusEndpoint implements MeasurementSink {
+    private static final Logger LOG = LoggerFactory.getLogger(PrometheusEndpoint.class);
+    private static final String THREAD_NAME = "kafkaappoptics-prometheus";
+    private static final int MAX_REQUEST_BYTES = 8192;
+    private static final long IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final byte[] END_OF_HEADERS = "\r\n\r\n".getBytes(US_ASCII);
+
+    private final PrometheusExposition exposition;
+    private final ReporterStats stats;
+    private final String path;
+    private final ServerSocketChannel server;
+    private final InetSocketAddress address;
+    private final Selector selector;
+    private final Thread thread;
+    private final LongAdder scrapes = new LongAdder();
+    private volatile boolean running = true;
+
+    /**
+     * @param address    where to listen, port 0 for any free port
+     * @param path       the path of the exposition, other paths are not found
+     * @param exposition the exposition to serve
+     * @param stats      the stats rendering is timed in
+     */
+    PrometheusEndpoint(InetSocketAddress address, String path, PrometheusExposition exposition, ReporterStats stats)
+            throws IOException {
+        this.exposition = exposition;
+        this.stats = stats;
+        this.path = path;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        try {
+            server.bind(address);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            this.address = (InetSocketAddress) server.getLocalAddress();
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+        this.thread = new Thread(this::serve, THREAD_NAME);
+        thread.setDaemon(true);
+    }
+
+    InetSocketAddress address() {
+        return address;
+    }
+
+    long getScrapes() {
+        return scrapes.sum();
+    }
+
+    @Override
+    public void send(int tier, KafkaMetricsBatch batch, long epoch, int period) {
+        final long renderStart = ReporterStats.start();
+        exposition.render(tier, batch);
+        stats.stop(ReporterStats.Stage.RENDER, renderStart);
+    }
+
+    @Override
+    public void flush() {
+        final long publishStart = ReporterStats.start();
+        exposition.publish();
+        stats.stop(ReporterStats.Stage.RENDER, publishStart);
+    }
+
+    @Override
+    public void start() {
+        thread.start();
+        LOG.info("serving Prometheus metrics on {}{}", address, path);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (thread.isAlive()) {
+            selector.wakeup();
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            // never started, the serving thread did not get to close them
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                LOG.debug("Failed to close the Prometheus endpoint", e);
+            }
+        }
+        exposition.close();
+    }
+
+    private void serve() {
+        long lastSweep = System.currentTimeMillis();
+        try {
+            while (running) {
+                selector.select(1000);
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            read(key);
+                        } else if (key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException e) {
+                        LOG.debug("Prometheus connection failed", e);
+                        closeConnection(key);
+                    }
+                }
+                final long now = System.currentTimeMillis();
+                if (now - lastSweep >= 1000) {
+                    closeIdle(now);
+                    lastSweep = now;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Prometheus endpoint stopped", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeConnection(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOG.debug("Failed to close the Prometheus selector", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = server.accept();
+        if (channel != null) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Connection());
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        final Connection connection = (Connection) key.attachment();
+        final SocketChannel channel = (SocketChannel) key.channel();
+        if (channel.read(connection.request) < 0) {
+            closeConnection(key);
+            return;
+        }
+        connection.lastActive = System.currentTimeMillis();
+        final int end = indexOf(connection.request, END_OF_HEADERS);
+        if (end >= 0) {
+            connection.response = respond(new String(connection.request.array(), 0, end, US_ASCII));
+        } else if (!connection.request.hasRemaining()) {
+            connection.response = status(431, "Request Header Fields Too Large");
+        } else {
+            return;
+        }
+        key.interestOps(SelectionKey.OP_WRITE);
+        write(key);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        final Connection connection = (Connection) key.attachment();
+        final SocketChannel channel = (SocketChannel) key.channel();
+        channel.write(connection.response);
+        connection.lastActive = System.currentTimeMillis();
+        if (!connection.response[connection.response.length - 1].hasRemaining()) {
+            closeConnection(key);
+        }
+    }
+
+    private ByteBuffer[] respond(String request) {
+        final int lineEnd = request.indexOf("\r\n");
+        final String[] requestLine = (lineEnd < 0 ? request : request.substring(0, lineEnd)).split(" ");
+        if (requestLine.length != 3) {
+            return status(400, "Bad Request");
+        }
+        final boolean head = "HEAD".equals(requestLine[0]);
+        if (!head && !"GET".equals(requestLine[0])) {
+            return status(405, "Method Not Allowed");
+        }
+        final int query = requestLine[1].indexOf('?');
+        if (!path.equals(query < 0 ? requestLine[1] : requestLine[1].substring(0, query))) {
+            return status(404, "Not Found");
+        }
+        scrapes.increment();
+        final PrometheusExposition.Snapshot snapshot = exposition.snapshot();
+        final boolean gzip = snapshot.isGzipped(acceptsGzip(request));
+        final ByteBuffer body = snapshot.body(gzip);
+        final ByteBuffer headers = headers(200, "OK", PrometheusExposition.CONTENT_TYPE, body.remaining(), gzip);
+        return head ? new ByteBuffer[]{headers} : new ByteBuffer[]{headers, body};
+    }
+
+    private static boolean acceptsGzip(String request) {
+        for (String line : request.split("\r\n")) {
+            final int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Accept-Encoding")
+                    && line.substring(colon + 1).toLowerCase().contains("gzip")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ByteBuffer[] status(int status, String reason) {
+        return new ByteBuffer[]{headers(status, reason, "text/plain", 0, false)};
+    }
+
+    private static ByteBuffer headers(int status, String reason, String contentType, int length, boolean gzip) {
+        final StringBuilder headers = new StringBuilder(160)
+                .append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n")
+                .append("Content-Type: ").append(contentType).append("\r\n")
+                .append("Content-Length: ").append(length).append("\r\n");
+        if (gzip) {
+            headers.append("Content-Encoding: gzip\r\n");
+        }
+        headers.append("Connection: close\r\n\r\n");
+        return ByteBuffer.wrap(headers.toString().getBytes(US_ASCII));
+    }
+
+    private void closeIdle(long now) {
+        for (SelectionKey key : selector.keys()) {
+            final Object connection = key.attachment();
+            if (connection != null && now - ((Connection) connection).lastActive > IDLE_TIMEOUT_MILLIS) {
+                closeConnection(key);
+            }
+        }
+    }
+
+    private static void closeConnection(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            LOG.debug("Failed to close a Prometheus connection", e);
+        }
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte[] token) {
+        final byte[] bytes = buffer.array();
+        for (int i = 0; i <= buffer.position() - token.length; i++) {
+            int j = 0;
+            while (j < token.length && bytes[i + j] == token[j]) {
+                j++;
+            }
+            if (j == token.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static final class Connection {
+        final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        ByteBuffer[] response;
+        long lastActive = System.currentTimeMillis();
+    }
+}
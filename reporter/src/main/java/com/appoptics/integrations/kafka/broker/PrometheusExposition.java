@@ -0,0 +1,321 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.appoptics.metrics.client.Tag;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Renders the batches the reporter sends into the Prometheus text format, once per collection, so that scrapes
+ * are served straight from the last rendering (see {@link PrometheusEndpoint}).
+ * <p/>
+ * Every series is a gauge, with the same values as sent to AppOptics: counts are the deltas of the last period.
+ * Names and labels are the {@link NameAndTags} ones with the characters Prometheus does not allow replaced by
+ * underscores, plus the static tags; multi-sample series become {@code _samples}, {@code _sum}, {@code _min} and
+ * {@code _max} gauges. The lines of each metric are kept per tier, so that a tier that is not due keeps its last
+ * values and the lines of a metric stay together whichever tiers its series are in.
+ * <p/>
+ * Series whose unchanged values are left out of batches, by gauge suppression or idle sampling suppression, keep
+ * their last values for up to {@code retainedRenders} renders of their tier, long enough to reach their next
+ * heartbeat, so that they do not vanish from scrapes in between.
+ */
+class PrometheusExposition {
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final byte[] TYPE = "# TYPE ".getBytes(US_ASCII);
+    private static final byte[] GAUGE = " gauge\n".getBytes(US_ASCII);
+    // not _count, which is taken by the count of meters and timers
+    private static final String[] SAMPLE_SUFFIXES = {"_samples", "_sum", "_min", "_max"};
+    private static final int LINES_INITIAL_CAPACITY = 128;
+
+    private final int tiers;
+    private final int retainedRenders;
+    private final List<Tag> staticTags;
+    private final PayloadCompressor compressor;
+    // by Prometheus name, only touched by the rendering thread
+    private final Map<String, Family> families = new HashMap<>();
+    private final PayloadBuffer body = new PayloadBuffer(64 * 1024);
+    // per tier, the series rendered recently with their last values, and how many times the tier was rendered
+    private final List<Map<NameAndTags, Series>> series = new ArrayList<>();
+    private final int[] renders;
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    /**
+     * @param tiers           the number of tiers, including the default one
+     * @param staticTags      tags added to every series
+     * @param gzip            also keep a gzipped rendering for scrapers that accept it
+     * @param retainedRenders how many renders of its tier a series missing from the batches is still served for,
+     *                        0 to serve only the series of the latest batch
+     */
+    PrometheusExposition(int tiers, List<Tag> staticTags, boolean gzip, int retainedRenders) {
+        this.tiers = tiers;
+        this.retainedRenders = retainedRenders;
+        this.renders = new int[tiers];
+        for (int i = 0; i < tiers; i++) {
+            series.add(new HashMap<>());
+        }
+        this.staticTags = staticTags;
+        this.compressor = gzip
+                ? new PayloadCompressor(new PayloadCompressor.CompressionConfig(PayloadCompressor.Encoding.GZIP,
+                        Deflater.DEFAULT_COMPRESSION, 0), 16 * 1024)
+                : null;
+    }
+
+    /**
+     * Replaces the lines of a tier with the series of its latest batch, and the retained series missing from it.
+     * The result is only served after {@link #publish()}.
+     *
+     * @param tier  the index of the tier, 0 for the default tier
+     * @param batch the tier's batch, with its rollups flushed
+     */
+    void render(int tier, KafkaMetricsBatch batch) {
+        for (Family family : families.values()) {
+            family.lines[tier].reset();
+        }
+        final int render = ++renders[tier];
+        final Map<NameAndTags, Series> tierSeries = series.get(tier);
+        for (int i = 0; i < batch.size(); i++) {
+            final Series rendered = series(tierSeries, batch.name(i));
+            rendered.set(batch, i);
+            rendered.lastRendered = render;
+            write(tier, rendered);
+        }
+        final Iterator<Series> iterator = tierSeries.values().iterator();
+        while (iterator.hasNext()) {
+            final Series rendered = iterator.next();
+            if (rendered.lastRendered == render) {
+                continue;
+            }
+            if (render - rendered.lastRendered > retainedRenders) {
+                // gone, or its heartbeat would have come by now
+                iterator.remove();
+            } else {
+                write(tier, rendered);
+            }
+        }
+    }
+
+    private void write(int tier, Series series) {
+        if (series.type == KafkaMetricsBatch.SAMPLES) {
+            family(series.name, SAMPLE_SUFFIXES[0]).line(tier, series.labels).writeLong(series.count).writeByte('\n');
+            family(series.name, SAMPLE_SUFFIXES[1]).line(tier, series.labels).writeDouble(series.value).writeByte('\n');
+            family(series.name, SAMPLE_SUFFIXES[2]).line(tier, series.labels).writeDouble(series.min).writeByte('\n');
+            family(series.name, SAMPLE_SUFFIXES[3]).line(tier, series.labels).writeDouble(series.max).writeByte('\n');
+        } else {
+            final PayloadBuffer line = family(series.name, null).line(tier, series.labels);
+            if (series.type == KafkaMetricsBatch.LONG || series.type == KafkaMetricsBatch.COUNT) {
+                line.writeLong(series.count);
+            } else {
+                line.writeDouble(series.value);
+            }
+            line.writeByte('\n');
+        }
+    }
+
+    /**
+     * @return the rendering of a series in a tier, rendering its name and labels if it is not there yet
+     */
+    private Series series(Map<NameAndTags, Series> tierSeries, NameAndTags nameAndTags) {
+        Series rendered = tierSeries.get(nameAndTags);
+        if (rendered == null) {
+            rendered = new Series(sanitize(nameAndTags.getName(), true), labels(nameAndTags));
+            tierSeries.put(nameAndTags, rendered);
+        }
+        return rendered;
+    }
+
+    /**
+     * Joins the lines of all tiers into the exposition served from now on, and gzips it.
+     */
+    void publish() {
+        body.reset();
+        final Iterator<Family> iterator = families.values().iterator();
+        while (iterator.hasNext()) {
+            final Family family = iterator.next();
+            if (family.isEmpty()) {
+                // not seen in any tier's latest batch
+                iterator.remove();
+                continue;
+            }
+            body.write(TYPE).write(family.name).write(GAUGE);
+            for (PayloadBuffer lines : family.lines) {
+                body.write(lines.array(), 0, lines.size());
+            }
+        }
+        final byte[] plain = Arrays.copyOf(body.array(), body.size());
+        byte[] gzipped = null;
+        if (compressor != null) {
+            final PayloadBuffer compressed = compressor.compress(body);
+            gzipped = Arrays.copyOf(compressed.array(), compressed.size());
+        }
+        snapshot = new Snapshot(plain, gzipped);
+    }
+
+    /**
+     * @return the last published exposition
+     */
+    Snapshot snapshot() {
+        return snapshot;
+    }
+
+    void close() {
+        if (compressor != null) {
+            compressor.close();
+        }
+    }
+
+    private Family family(String name, String suffix) {
+        final String key = suffix == null ? name : name + suffix;
+        Family family = families.get(key);
+        if (family == null) {
+            family = new Family(key, tiers);
+            families.put(key, family);
+        }
+        return family;
+    }
+
+    /**
+     * @return the labels of a series including the braces, empty if it has none
+     */
+    private byte[] labels(NameAndTags nameAndTags) {
+        final PayloadBuffer labels = new PayloadBuffer(64);
+        for (Tag tag : nameAndTags.tagsWith(staticTags)) {
+            writeLabel(labels, labelName(tag.name), tag.value);
+        }
+        if (labels.size() > 0) {
+            labels.writeByte('}');
+        }
+        return Arrays.copyOf(labels.array(), labels.size());
+    }
+
+    private static void writeLabel(PayloadBuffer out, String name, String value) {
+        out.writeByte(out.size() == 0 ? '{' : ',').writeAscii(name).writeAscii("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.writeByte('\\').writeByte(c);
+            } else if (c == '\n') {
+                out.writeByte('\\').writeByte('n');
+            } else {
+                out.writeByte(c);
+            }
+        }
+        out.writeByte('"');
+    }
+
+    private static String labelName(String tagName) {
+        return sanitize(tagName, false);
+    }
+
+    /**
+     * Replaces the characters that are not allowed in a Prometheus metric or label name by underscores.
+     */
+    static String sanitize(String name, boolean metricName) {
+        final StringBuilder builder = new StringBuilder(name.length() + 1);
+        if (name.isEmpty() || Character.isDigit(name.charAt(0))) {
+            builder.append('_');
+        }
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            final boolean allowed = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '_' || (metricName && c == ':');
+            builder.append(allowed ? c : '_');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The lines of one Prometheus metric, per tier.
+     */
+    private static final class Family {
+        final byte[] name;
+        final PayloadBuffer[] lines;
+
+        Family(String name, int tiers) {
+            this.name = name.getBytes(US_ASCII);
+            this.lines = new PayloadBuffer[tiers];
+            for (int i = 0; i < tiers; i++) {
+                lines[i] = new PayloadBuffer(LINES_INITIAL_CAPACITY);
+            }
+        }
+
+        /**
+         * Starts a line of this metric in the given tier, up to and including the space before the value.
+         */
+        PayloadBuffer line(int tier, byte[] labels) {
+            return lines[tier].write(name).write(labels).writeByte(' ');
+        }
+
+        boolean isEmpty() {
+            for (PayloadBuffer tierLines : lines) {
+                if (tierLines.size() > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A series of one tier: its rendered name and labels, and its last values as they were in its batch.
+     */
+    private static final class Series {
+        final String name;
+        final byte[] labels;
+        byte type;
+        long count;
+        double value;
+        double min;
+        double max;
+        int lastRendered;
+
+        Series(String name, byte[] labels) {
+            this.name = name;
+            this.labels = labels;
+        }
+
+        void set(KafkaMetricsBatch batch, int index) {
+            type = batch.type(index);
+            count = batch.count(index);
+            value = batch.value(index);
+            min = batch.min(index);
+            max = batch.max(index);
+        }
+    }
+
+    /**
+     * A published exposition. The buffers are shared by all scrapers, each reads its own duplicate.
+     */
+    static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new byte[0], null);
+
+        private final ByteBuffer plain;
+        private final ByteBuffer gzipped;
+
+        Snapshot(byte[] plain, byte[] gzipped) {
+            this.plain = ByteBuffer.wrap(plain).asReadOnlyBuffer();
+            this.gzipped = gzipped == null ? null : ByteBuffer.wrap(gzipped).asReadOnlyBuffer();
+        }
+
+        /**
+         * @param acceptsGzip whether the scraper accepts a gzipped body
+         * @return a view of the body, gzipped if possible; {@link #isGzipped(boolean)} tells which
+         */
+        ByteBuffer body(boolean acceptsGzip) {
+            return (isGzipped(acceptsGzip) ? gzipped : plain).duplicate();
+        }
+
+        boolean isGzipped(boolean acceptsGzip) {
+            return acceptsGzip && gzipped != null;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistryListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A live index of the metrics that should be reported, kept up to date by registry callbacks so that a poll
+ * is a plain iteration over a prebuilt array instead of a regroup of the whole registry.
+ * <p/>
+ * Metrics are grouped by group+type+name. Inside any group with more than one metric, the metrics with a null
+ * scope are dropped, as the scoped metrics can be aggregated as needed in AppOptics.
+ * <p/>
+ * Each metric is also assigned to its {@link Tier} when it is added: 0 for the default tier, or one more than
+ * the index of the first tier that matches it.
+ */
+class ReportableMetrics implements MetricsRegistryListener {
+    private static final Entry[] EMPTY = new Entry[0];
+
+    private final MetricPredicate predicate;
+    private final List<Tier> tiers;
+    private final Map<GroupKey, List<Entry>> groups = new HashMap<>();
+    private int size = 0;
+
+    // rebuilt on the next poll after any change, null while stale
+    private volatile Entry[] entries = EMPTY;
+
+    ReportableMetrics(MetricPredicate predicate) {
+        this(predicate, Collections.emptyList());
+    }
+
+    ReportableMetrics(MetricPredicate predicate, List<Tier> tiers) {
+        this.predicate = predicate;
+        this.tiers = tiers;
+    }
+
+    static final class Entry {
+        final MetricName name;
+        final Metric metric;
+        final int tier;
+
+        Entry(MetricName name, Metric metric, int tier) {
+            this.name = name;
+            this.metric = metric;
+            this.tier = tier;
+        }
+    }
+
+    /**
+     * @return the metrics to report, must not be modified by the caller
+     */
+    Entry[] entries() {
+        final Entry[] current = entries;
+        return current != null ? current : rebuild();
+    }
+
+    @Override
+    public synchronized void onMetricAdded(MetricName name, Metric metric) {
+        if (metric == null || !predicate.matches(name, metric)) {
+            return;
+        }
+        final List<Entry> members = groups.computeIfAbsent(new GroupKey(name), k -> new ArrayList<>(1));
+        members.removeIf(e -> e.name.equals(name));
+        members.add(new Entry(name, metric, tierOf(name, metric)));
+        entries = null;
+    }
+
+    @Override
+    public synchronized void onMetricRemoved(MetricName name) {
+        final GroupKey key = new GroupKey(name);
+        final List<Entry> members = groups.get(key);
+        if (members != null && members.removeIf(e -> e.name.equals(name))) {
+            if (members.isEmpty()) {
+                groups.remove(key);
+            }
+            entries = null;
+        }
+    }
+
+    private int tierOf(MetricName name, Metric metric) {
+        for (int i = 0; i < tiers.size(); i++) {
+            if (tiers.get(i).predicate.matches(name, metric)) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private synchronized Entry[] rebuild() {
+        if (entries != null) {
+            return entries;
+        }
+        final List<Entry> output = new ArrayList<>(size);
+        for (List<Entry> members : groups.values()) {
+            if (members.size() == 1) {
+                output.addAll(members);
+            } else {
+                for (Entry entry : members) {
+                    if (entry.name.getScope() != null) {
+                        output.add(entry);
+                    }
+                }
+            }
+        }
+        size = output.size();
+        final Entry[] rebuilt = output.toArray(new Entry[0]);
+        entries = rebuilt;
+        return rebuilt;
+    }
+
+    private static final class GroupKey {
+        private final String group;
+        private final String type;
+        private final String name;
+        private final int hash;
+
+        GroupKey(MetricName metricName) {
+            this.group = metricName.getGroup();
+            this.type = metricName.getType();
+            this.name = metricName.getName();
+            this.hash = Objects.hash(group, type, name);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            GroupKey that = (GroupKey) o;
+            return Objects.equals(group, that.group) &&
+                    Objects.equals(type, that.type) &&
+                    Objects.equals(name, that.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
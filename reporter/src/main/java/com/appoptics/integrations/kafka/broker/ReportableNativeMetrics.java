@@ -0,0 +1,96 @@
+package com.appoptics.integrations.kafka.broker;
+
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.KafkaMetric;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@link ReportableMetrics} of Kafka's own metrics: the metrics that pass the filter, each with its name and
+ * tags built once when it is added and its {@link Tier}, kept in an array that is only rebuilt after a change.
+ * <p/>
+ * Kafka tags every metric in a group the same way, so unlike Yammer metrics there is no untagged duplicate to
+ * drop.
+ */
+class ReportableNativeMetrics implements NativeMetrics.Listener {
+    private static final Entry[] EMPTY = new Entry[0];
+
+    private final MetricFilter filter;
+    private final List<Tier> tiers;
+    private final Map<MetricName, Entry> metrics = new LinkedHashMap<>();
+
+    // rebuilt on the next poll after any change, null while stale
+    private volatile Entry[] entries = EMPTY;
+
+    ReportableNativeMetrics(MetricFilter filter) {
+        this(filter, Collections.emptyList());
+    }
+
+    ReportableNativeMetrics(MetricFilter filter, List<Tier> tiers) {
+        this.filter = filter;
+        this.tiers = tiers;
+    }
+
+    static final class Entry {
+        final NameAndTags name;
+        final KafkaMetric metric;
+        final int tier;
+
+        Entry(NameAndTags name, KafkaMetric metric, int tier) {
+            this.name = name;
+            this.metric = metric;
+            this.tier = tier;
+        }
+    }
+
+    /**
+     * @return the metrics to report, must not be modified by the caller
+     */
+    Entry[] entries() {
+        final Entry[] current = entries;
+        return current != null ? current : rebuild();
+    }
+
+    @Override
+    public synchronized void onMetricAdded(KafkaMetric metric) {
+        final MetricName name = metric.metricName();
+        if (!filter.matches(name)) {
+            return;
+        }
+        final Entry existing = metrics.get(name);
+        // Kafka replaces a metric by adding it again under the same name, which does not need to be parsed again
+        final NameAndTags nameAndTags = existing != null ? existing.name : new NameAndTags(name);
+        nameAndTags.jsonName();
+        nameAndTags.jsonTags();
+        metrics.put(name, new Entry(nameAndTags, metric, tierOf(name)));
+        entries = null;
+    }
+
+    @Override
+    public synchronized void onMetricRemoved(MetricName name) {
+        if (metrics.remove(name) != null) {
+            entries = null;
+        }
+    }
+
+    private int tierOf(MetricName name) {
+        for (int i = 0; i < tiers.size(); i++) {
+            if (tiers.get(i).predicate.matches(name)) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private synchronized Entry[] rebuild() {
+        if (entries != null) {
+            return entries;
+        }
+        final Entry[] rebuilt = metrics.values().toArray(EMPTY);
+        entries = rebuilt;
+        return rebuilt;
+    }
+}
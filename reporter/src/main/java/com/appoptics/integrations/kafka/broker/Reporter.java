@@ -0,0 +1,452 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.*;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.reporting.AbstractPollingReporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reporter for publishing metrics to <a href="https://appoptics.com/">Appoptics Metrics</a>
+ */
+public class Reporter extends AbstractPollingReporter implements MetricProcessor<KafkaMetricsBatch> {
+    private static final Logger LOG = LoggerFactory.getLogger(Reporter.class);
+    private static final String NAME = "kafkaappoptics-reporter";
+    private static final String COLLECTOR_THREAD_NAME = "kafkaappoptics-collector-";
+    // ranges per collection thread, so that a slow range does not leave the other threads idle
+    private static final int TASKS_PER_COLLECTION_THREAD = 4;
+    private static final int STRIPES_PER_COLLECTION_THREAD = 4;
+    // below this many metrics collection stays on the polling thread
+    private static final int MIN_PARALLEL_METRICS = 1000;
+
+    private final Rollup rollup;
+    private final List<Tier> tierConfigs;
+    // the default tier first, then the configured tiers, created when the reporter starts and read by the MBean
+    private volatile TierState[] tiers;
+    private long tick;
+    private long ticks = 0;
+    private final NameCache nameCache;
+    private final ReportableMetrics reportable;
+    private final ReportableNativeMetrics reportableNative;
+    private final List<MeasurementSink> sinks;
+    // the sender of the AppOptics sink for the self-metrics, null without one
+    private final PayloadSender sender;
+
+    private final JvmMetrics jvmMetrics;
+    private final ExpandedMetric.ExpandedMetricConfig expansionConfig;
+
+    private final int collectionParallelism;
+    private final ForkJoinPool collectionPool;
+    private final int deltaIdleCycles;
+    private final SamplingCache samplingCache;
+    private final GaugeSuppressor gaugeSuppressor;
+    private final CardinalityLimiter limiter;
+    private final ReporterStats stats;
+    private final boolean reportStats;
+
+    private long interval = 30;
+
+    public Reporter(List<MeasurementSink> sinks,
+                    ExpandedMetric.ExpandedMetricConfig expansionConfig,
+                    int deltaIdleCycles,
+                    int collectionThreads,
+                    SamplingCache samplingCache,
+                    GaugeSuppressor gaugeSuppressor,
+                    MetricFilter predicate,
+                    Rollup rollup,
+                    CardinalityLimiter limiter,
+                    List<Tier> tiers,
+                    JvmMetrics jvmMetrics,
+                    ReporterStats stats,
+                    boolean reportStats) {
+        super(Metrics.defaultRegistry(), NAME);
+        this.sinks = sinks;
+        this.sender = appopticsSender(sinks);
+        this.stats = stats;
+        this.reportStats = reportStats;
+        this.expansionConfig = expansionConfig;
+        this.samplingCache = samplingCache;
+        this.gaugeSuppressor = gaugeSuppressor;
+        this.rollup = rollup;
+        this.limiter = limiter;
+        this.deltaIdleCycles = deltaIdleCycles;
+        this.tierConfigs = tiers;
+        this.jvmMetrics = jvmMetrics;
+        this.nameCache = new NameCache(getMetricsRegistry());
+        this.reportable = new ReportableMetrics(predicate, tiers);
+        getMetricsRegistry().addListener(nameCache);
+        getMetricsRegistry().addListener(reportable);
+        this.reportableNative = new ReportableNativeMetrics(predicate, tiers);
+        NativeMetrics.SHARED.addListener(reportableNative);
+        this.collectionParallelism = collectionParallelism(collectionThreads);
+        this.collectionPool = collectionParallelism > 1 ? newCollectionPool(collectionParallelism) : null;
+    }
+
+    /**
+     * The state of a tier that must not be shared with other tiers: deltas and idle tracking count the tier's
+     * own reports.
+     */
+    private final class TierState {
+        final String name;
+        final long period;
+        final long ticksPerPeriod;
+        final DeltaTracker deltaTracker;
+        final SamplingCache samplingCache;
+        final GaugeSuppressor gaugeSuppressor;
+        final CardinalityLimiter limiter;
+        // reused for every report of the tier
+        private KafkaMetricsBatch batch;
+
+        TierState(String name, long period, int index) {
+            final boolean first = index == 0;
+            this.name = name;
+            this.period = period;
+            this.ticksPerPeriod = period / tick;
+            this.deltaTracker = new DeltaTracker(
+                    new DeltaMetricSupplier(reportable, nameCache, index),
+                    deltaIdleCycles,
+                    collectionStripes(collectionParallelism));
+            this.samplingCache = first ? Reporter.this.samplingCache : Reporter.this.samplingCache.newInstance();
+            this.gaugeSuppressor = first ? Reporter.this.gaugeSuppressor : Reporter.this.gaugeSuppressor.newInstance();
+            this.limiter = first ? Reporter.this.limiter : Reporter.this.limiter.newInstance();
+        }
+
+        boolean isDue() {
+            return ticks % ticksPerPeriod == 0;
+        }
+
+        /**
+         * @return the tier's batch, emptied
+         */
+        KafkaMetricsBatch batch() {
+            if (batch == null) {
+                batch = new KafkaMetricsBatch(expansionConfig, deltaTracker, samplingCache, gaugeSuppressor, rollup, limiter);
+            } else {
+                batch.reset();
+            }
+            return batch;
+        }
+
+        void endCycle() {
+            deltaTracker.endCycle();
+            samplingCache.endCycle();
+            gaugeSuppressor.endCycle();
+            limiter.endCycle();
+        }
+    }
+
+    /**
+     * @return the number of threads collection runs on for the configured number, at most one per CPU
+     */
+    static int collectionParallelism(int collectionThreads) {
+        return Math.min(Math.max(1, collectionThreads), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return the number of independently locked stripes of state that every collection thread updates
+     */
+    static int collectionStripes(int collectionThreads) {
+        final int parallelism = collectionParallelism(collectionThreads);
+        return parallelism > 1 ? parallelism * STRIPES_PER_COLLECTION_THREAD : 1;
+    }
+
+    private static ForkJoinPool newCollectionPool(int parallelism) {
+        final AtomicInteger threadIds = new AtomicInteger();
+        return new ForkJoinPool(parallelism, pool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(COLLECTOR_THREAD_NAME + threadIds.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    @Override
+    public void run() {
+        try {
+            // align the measurement time with the start of collection, not with how long collection took
+            final long now = Instant.now().getEpochSecond();
+            // one batch per tier that is due on this tick, all filled by a single pass over the metrics
+            final KafkaMetricsBatch[] batches = new KafkaMetricsBatch[tiers.length];
+            for (int i = 0; i < tiers.length; i++) {
+                if (tiers[i].isDue()) {
+                    batches[i] = tiers[i].batch();
+                }
+            }
+            ticks++;
+            final long collectStart = ReporterStats.start();
+            if (batches[0] != null) {
+                reportVmMetrics(batches[0]);
+                if (reportStats) {
+                    stats.report(batches[0], sender);
+                }
+            }
+            reportRegularMetrics(batches);
+            stats.stop(ReporterStats.Stage.COLLECT, collectStart);
+
+            for (int i = 0; i < tiers.length; i++) {
+                final KafkaMetricsBatch batch = batches[i];
+                if (batch != null) {
+                    final TierState tier = tiers[i];
+                    batch.flushRollups(stats);
+                    tier.endCycle();
+                    for (MeasurementSink sink : sinks) {
+                        try {
+                            sink.send(i, batch, getEpoch(now, tier.period), (int) tier.period);
+                        } catch (Exception e) {
+                            // the other sinks still get the batch
+                            LOG.error("Sending to " + sink.getClass().getSimpleName() + " failed: ", e);
+                        }
+                    }
+                }
+            }
+            for (MeasurementSink sink : sinks) {
+                sink.flush();
+            }
+        } catch (Exception e) {
+            LOG.error("APPOPTICS post failed: ", e);
+        }
+    }
+
+    private static long getEpoch(long epochSecond, long period) {
+        return (epochSecond / period) * period;
+    }
+
+    /**
+     * Starts the reporter polling at the given period, the period of the metrics that are not in any tier. The
+     * reporter ticks at the greatest common divisor of all the tier periods.
+     *
+     * @param period the amount of time between polls
+     * @param unit   the unit for {@code period}
+     */
+    @Override
+    public void start(long period, TimeUnit unit) {
+        this.interval = unit.toSeconds(period);
+        long gcd = interval;
+        long shortest = interval;
+        for (Tier tier : tierConfigs) {
+            gcd = gcd(gcd, tier.periodSeconds);
+            shortest = Math.min(shortest, tier.periodSeconds);
+        }
+        // otherwise the reporter would wake up more often than any tier is due, e.g. every second for 7 and 30
+        if (gcd != shortest) {
+            throw new IllegalArgumentException("Every interval must be a multiple of the shortest one, " + shortest
+                    + " seconds, but the reporter interval is " + interval + " seconds and the tiers are " + tierConfigs);
+        }
+        this.tick = gcd;
+        final TierState[] states = new TierState[tierConfigs.size() + 1];
+        states[0] = new TierState("default", interval, 0);
+        for (int i = 0; i < tierConfigs.size(); i++) {
+            states[i + 1] = new TierState(tierConfigs.get(i).name, tierConfigs.get(i).periodSeconds, i + 1);
+        }
+        this.tiers = states;
+        for (MeasurementSink sink : sinks) {
+            sink.start();
+        }
+        LOG.debug("Reporter starting at fixed rate of every {} seconds, tiers {}", tick, tierConfigs);
+        super.start(tick, TimeUnit.SECONDS);
+    }
+
+    private static long gcd(long a, long b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    double getGaugeSuppressionRatio() {
+        long checked = 0;
+        long suppressed = 0;
+        for (TierState tier : currentTiers()) {
+            checked += tier.gaugeSuppressor.getChecked();
+            suppressed += tier.gaugeSuppressor.getSuppressed();
+        }
+        return checked == 0 ? 0 : (double) suppressed / checked;
+    }
+
+    long getFoldedSeries() {
+        long folded = 0;
+        for (TierState tier : currentTiers()) {
+            folded += tier.limiter.getFoldedSeries();
+        }
+        return folded;
+    }
+
+    long getFoldedSeriesTotal() {
+        long folded = 0;
+        for (TierState tier : currentTiers()) {
+            folded += tier.limiter.getFoldedSeriesTotal();
+        }
+        return folded;
+    }
+
+    private TierState[] currentTiers() {
+        final TierState[] current = tiers;
+        return current == null ? new TierState[0] : current;
+    }
+
+    @Override
+    public void shutdown() {
+        getMetricsRegistry().removeListener(reportable);
+        getMetricsRegistry().removeListener(nameCache);
+        NativeMetrics.SHARED.removeListener(reportableNative);
+        super.shutdown();
+        if (collectionPool != null) {
+            collectionPool.shutdownNow();
+        }
+        for (MeasurementSink sink : sinks) {
+            sink.close();
+        }
+    }
+
+    private static PayloadSender appopticsSender(List<MeasurementSink> sinks) {
+        for (MeasurementSink sink : sinks) {
+            if (sink instanceof AppopticsSink) {
+                return ((AppopticsSink) sink).sender();
+            }
+        }
+        return null;
+    }
+
+    private void reportVmMetrics(KafkaMetricsBatch batch) {
+        jvmMetrics.report(batch);
+    }
+
+    /**
+     * Adds the registry's metrics and Kafka's own metrics to the batches of their tiers, skipping the tiers whose
+     * batch is null.
+     */
+    void reportRegularMetrics(KafkaMetricsBatch[] batches) {
+        final long scanStart = ReporterStats.start();
+        final ReportableMetrics.Entry[] entries = reportable.entries();
+        final ReportableNativeMetrics.Entry[] nativeEntries = reportableNative.entries();
+        stats.stop(ReporterStats.Stage.SCAN, scanStart);
+        LOG.debug("Preparing batch of {} measurements", entries.length + nativeEntries.length);
+
+        if (collectionPool == null || entries.length < MIN_PARALLEL_METRICS) {
+            processEntries(entries, 0, entries.length, batches);
+        } else {
+            reportInParallel(entries, batches);
+        }
+        processNativeEntries(nativeEntries, batches);
+    }
+
+    /**
+     * Splits the metrics into ranges collected by the collection pool, each into its own batches, and merges the
+     * worker batches into the given ones.
+     */
+    private void reportInParallel(ReportableMetrics.Entry[] entries, KafkaMetricsBatch[] batches) {
+        final int tasks = collectionParallelism * TASKS_PER_COLLECTION_THREAD;
+        final int rangeSize = (entries.length + tasks - 1) / tasks;
+        final List<ForkJoinTask<KafkaMetricsBatch[]>> workers = new ArrayList<>(tasks);
+        for (int from = 0, task = 0; from < entries.length; from += rangeSize, task++) {
+            final int start = from;
+            final int end = Math.min(entries.length, from + rangeSize);
+            // the worker batches are taken on this thread, the owner of the batches
+            final KafkaMetricsBatch[] worker = new KafkaMetricsBatch[batches.length];
+            for (int i = 0; i < batches.length; i++) {
+                worker[i] = batches[i] == null ? null : batches[i].workerBatch(task);
+            }
+            workers.add(collectionPool.submit(() -> {
+                processEntries(entries, start, end, worker);
+                return worker;
+            }));
+        }
+        for (ForkJoinTask<KafkaMetricsBatch[]> worker : workers) {
+            final KafkaMetricsBatch[] result = worker.join();
+            for (int i = 0; i < batches.length; i++) {
+                if (batches[i] != null) {
+                    batches[i].merge(result[i]);
+                }
+            }
+        }
+    }
+
+    private void processEntries(ReportableMetrics.Entry[] entries, int from, int to, KafkaMetricsBatch[] batches) {
+        for (int i = from; i < to; i++) {
+            final ReportableMetrics.Entry entry = entries[i];
+            final KafkaMetricsBatch batch = batches[entry.tier];
+            if (batch == null) {
+                // the metric's tier is not due on this tick
+                continue;
+            }
+            try {
+                entry.metric.processWith(this, entry.name, batch);
+            } catch (Exception e) {
+                stats.processingFailed();
+                LOG.error("Error processing regular metrics:", e);
+            }
+        }
+        recordTallies(batches);
+    }
+
+    private void recordTallies(KafkaMetricsBatch[] batches) {
+        for (KafkaMetricsBatch batch : batches) {
+            if (batch != null) {
+                stats.record(batch.tally());
+            }
+        }
+    }
+
+    /**
+     * Kafka's own metrics are all read as gauges. There are a few hundred of them on a broker, so they are read on
+     * the polling thread.
+     */
+    private void processNativeEntries(ReportableNativeMetrics.Entry[] entries, KafkaMetricsBatch[] batches) {
+        for (ReportableNativeMetrics.Entry entry : entries) {
+            final KafkaMetricsBatch batch = batches[entry.tier];
+            if (batch == null) {
+                continue;
+            }
+            final long start = ReporterStats.start();
+            try {
+                batch.addGauge(entry.name, entry.metric.value());
+            } catch (Exception e) {
+                stats.processingFailed();
+                LOG.error("Error processing Kafka metrics:", e);
+            }
+            batch.tally().stop(ReporterStats.Stage.GAUGE, start);
+        }
+        recordTallies(batches);
+    }
+
+    public void processGauge(MetricName name, Gauge<?> gauge, KafkaMetricsBatch batch) {
+        final long start = ReporterStats.start();
+        NameAndTags nameAndTags = nameCache.get(name);
+        batch.addGauge(nameAndTags, gauge);
+        batch.tally().stop(ReporterStats.Stage.GAUGE, start);
+    }
+
+    public void processCounter(MetricName name, Counter counter, KafkaMetricsBatch batch) {
+        final long start = ReporterStats.start();
+        NameAndTags nameAndTags = nameCache.get(name);
+        batch.addCounter(nameAndTags, counter);
+        batch.tally().stop(ReporterStats.Stage.COUNTER, start);
+    }
+
+    public void processHistogram(MetricName name, Histogram histogram, KafkaMetricsBatch batch) {
+        final long start = ReporterStats.start();
+        NameAndTags nameAndTags = nameCache.get(name);
+        batch.addHistogram(nameAndTags, histogram);
+        batch.tally().stop(ReporterStats.Stage.HISTOGRAM, start);
+    }
+
+    public void processMeter(MetricName name, Metered meter, KafkaMetricsBatch batch) {
+        final long start = ReporterStats.start();
+        NameAndTags nameAndTags = nameCache.get(name);
+        batch.addMetered(nameAndTags, meter);
+        batch.tally().stop(ReporterStats.Stage.METER, start);
+    }
+
+    public void processTimer(MetricName name, Timer timer, KafkaMetricsBatch batch) {
+        final long start = ReporterStats.start();
+        NameAndTags nameAndTags = nameCache.get(name);
+        batch.addTimer(nameAndTags, timer);
+        batch.tally().stop(ReporterStats.Stage.TIMER, start);
+    }
+}
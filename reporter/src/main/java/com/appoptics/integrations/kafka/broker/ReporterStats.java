@@ -0,0 +1,261 @@
+package com.appoptics.integrations.kafka.broker;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The reporter's own cost: how long each stage takes, how much is sent and how often things fail. Recording does
+ * not allocate, so it can stay on in production; the stage timings keep a fixed-size reservoir of their latest
+ * samples for percentiles. The stages that run once per metric are added up in a {@link Tally} by each collector
+ * and recorded once per range of metrics, so their samples are the mean durations of a range.
+ * <p/>
+ * The stats can also be reported along with the broker metrics as {@code kafka.reporter.*} measurements, with the
+ * values of the interval since they were last reported.
+ */
+class ReporterStats {
+    static final String PREFIX = "kafka.reporter.";
+
+    enum Stage {
+        // one collection pass over the registry
+        COLLECT("collect"),
+        // getting the list of metrics to report
+        SCAN("scan"),
+        GAUGE("process.gauge"),
+        COUNTER("process.counter"),
+        HISTOGRAM("process.histogram"),
+        METER("process.meter"),
+        TIMER("process.timer"),
+        // snapshots and percentiles of histograms and timers, part of their processing
+        SNAPSHOT("snapshot"),
+        // serializing a batch into payloads
+        ENCODE("encode"),
+        // rendering a batch into the Prometheus exposition
+        RENDER("render"),
+        // posting a payload, including compression and retries of a single attempt
+        POST("post");
+
+        final String displayName;
+
+        Stage(String displayName) {
+            this.displayName = displayName;
+        }
+    }
+
+    private final Timing[] timings = new Timing[Stage.values().length];
+    private final LongAdder payloads = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder postErrors = new LongAdder();
+    private final LongAdder processingErrors = new LongAdder();
+    private final LongAdder encodingErrors = new LongAdder();
+
+    // the values when the stats were last reported, only touched by the reporting thread
+    private final long[] reportedCounts = new long[timings.length];
+    private final long[] reportedNanos = new long[timings.length];
+    private final long[] reportedTotals = new long[5];
+    private final NameAndTags[] countNames = new NameAndTags[timings.length];
+    private final NameAndTags[] timeNames = new NameAndTags[timings.length];
+    private final NameAndTags[] maxNames = new NameAndTags[timings.length];
+    private final NameAndTags[] totalNames = {
+            new NameAndTags(PREFIX + "payloads"),
+            new NameAndTags(PREFIX + "bytes"),
+            new NameAndTags(PREFIX + "errors.post"),
+            new NameAndTags(PREFIX + "errors.processing"),
+            new NameAndTags(PREFIX + "errors.encoding")
+    };
+    private final NameAndTags retriesName = new NameAndTags(PREFIX + "retries");
+    private final NameAndTags droppedName = new NameAndTags(PREFIX + "dropped");
+    private long reportedRetries;
+    private long reportedDropped;
+
+    ReporterStats() {
+        for (Stage stage : Stage.values()) {
+            final int i = stage.ordinal();
+            timings[i] = new Timing();
+            countNames[i] = new NameAndTags(PREFIX + stage.displayName + ".count");
+            timeNames[i] = new NameAndTags(PREFIX + stage.displayName + ".time_ms");
+            maxNames[i] = new NameAndTags(PREFIX + stage.displayName + ".max_ms");
+        }
+    }
+
+    /**
+     * @return the start time of a stage, to hand back to {@link #stop(Stage, long)}
+     */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    void stop(Stage stage, long startNanos) {
+        final long duration = System.nanoTime() - startNanos;
+        timings[stage.ordinal()].update(1, duration, duration);
+    }
+
+    /**
+     * Records the durations added up by a tally and empties it.
+     */
+    void record(Tally tally) {
+        for (int i = 0; i < timings.length; i++) {
+            if (tally.counts[i] > 0) {
+                timings[i].update(tally.counts[i], tally.nanos[i], tally.max[i]);
+                tally.counts[i] = 0;
+                tally.nanos[i] = 0;
+                tally.max[i] = 0;
+            }
+        }
+    }
+
+    void payloadSent(int size) {
+        payloads.increment();
+        bytes.add(size);
+    }
+
+    void postFailed() {
+        postErrors.increment();
+    }
+
+    void processingFailed() {
+        processingErrors.increment();
+    }
+
+    void encodingFailed() {
+        encodingErrors.increment();
+    }
+
+    long getCount(Stage stage) {
+        return timings[stage.ordinal()].count.sum();
+    }
+
+    long getTotalMillis(Stage stage) {
+        return TimeUnit.NANOSECONDS.toMillis(timings[stage.ordinal()].nanos.sum());
+    }
+
+    /**
+     * @return the latest duration of the stage
+     */
+    double getLastMillis(Stage stage) {
+        return timings[stage.ordinal()].last / 1e6;
+    }
+
+    /**
+     * @return a percentile of the stage's recent durations
+     */
+    double getPercentileMillis(Stage stage, double quantile) {
+        return timings[stage.ordinal()].percentile(quantile) / 1e6;
+    }
+
+    long getPayloads() {
+        return payloads.sum();
+    }
+
+    long getBytes() {
+        return bytes.sum();
+    }
+
+    long getPostErrors() {
+        return postErrors.sum();
+    }
+
+    long getProcessingErrors() {
+        return processingErrors.sum();
+    }
+
+    long getEncodingErrors() {
+        return encodingErrors.sum();
+    }
+
+    /**
+     * Adds the stats of the interval since the last call to a batch. Must only be called by one thread.
+     *
+     * @param sender the sender whose retries and drops are reported, null if there is none
+     */
+    void report(KafkaMetricsBatch batch, PayloadSender sender) {
+        for (int i = 0; i < timings.length; i++) {
+            final Timing timing = timings[i];
+            final long count = timing.count.sum();
+            final long nanos = timing.nanos.sum();
+            final long max = timing.max.getAndSet(0);
+            batch.addCountMeasurement(countNames[i], count - reportedCounts[i]);
+            batch.addGaugeMeasurement(timeNames[i], (nanos - reportedNanos[i]) / 1e6);
+            batch.addGaugeMeasurement(maxNames[i], max / 1e6);
+            reportedCounts[i] = count;
+            reportedNanos[i] = nanos;
+        }
+        reportTotal(batch, 0, payloads.sum());
+        reportTotal(batch, 1, bytes.sum());
+        reportTotal(batch, 2, postErrors.sum());
+        reportTotal(batch, 3, processingErrors.sum());
+        reportTotal(batch, 4, encodingErrors.sum());
+
+        if (sender == null) {
+            return;
+        }
+        final long retries = sender.getRetries();
+        final long dropped = sender.getDropped();
+        batch.addCountMeasurement(retriesName, retries - reportedRetries);
+        batch.addCountMeasurement(droppedName, dropped - reportedDropped);
+        reportedRetries = retries;
+        reportedDropped = dropped;
+    }
+
+    private void reportTotal(KafkaMetricsBatch batch, int i, long total) {
+        batch.addCountMeasurement(totalNames[i], total - reportedTotals[i]);
+        reportedTotals[i] = total;
+    }
+
+    /**
+     * Stage durations added up by one collector, without any synchronization, until they are recorded.
+     */
+    static final class Tally {
+        private final long[] counts = new long[Stage.values().length];
+        private final long[] nanos = new long[counts.length];
+        private final long[] max = new long[counts.length];
+
+        void stop(Stage stage, long startNanos) {
+            final int i = stage.ordinal();
+            final long duration = System.nanoTime() - startNanos;
+            counts[i]++;
+            nanos[i] += duration;
+            max[i] = Math.max(max[i], duration);
+        }
+    }
+
+    private static final class Timing {
+        // a power of two
+        private static final int RESERVOIR_SIZE = 1024;
+
+        final LongAdder count = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        // the maximum since the stats were last reported
+        final AtomicLong max = new AtomicLong();
+        final AtomicLongArray samples = new AtomicLongArray(RESERVOIR_SIZE);
+        final AtomicLong next = new AtomicLong();
+        volatile long last;
+
+        void update(long updates, long total, long longest) {
+            count.add(updates);
+            nanos.add(total);
+            final long mean = total / updates;
+            last = mean;
+            samples.set((int) (next.getAndIncrement() & (RESERVOIR_SIZE - 1)), mean);
+            long current = max.get();
+            while (longest > current && !max.compareAndSet(current, longest)) {
+                current = max.get();
+            }
+        }
+
+        long percentile(double quantile) {
+            final int size = (int) Math.min(next.get(), RESERVOIR_SIZE);
+            if (size == 0) {
+                return 0;
+            }
+            final long[] sorted = new long[size];
+            for (int i = 0; i < size; i++) {
+                sorted[i] = samples.get(i);
+            }
+            Arrays.sort(sorted);
+            return sorted[(int) Math.min(size - 1, Math.floor(quantile * size))];
+        }
+    }
+}
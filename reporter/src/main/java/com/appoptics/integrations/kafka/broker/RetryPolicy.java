@@ -0,0 +1,41 @@
+package com.appoptics.integrations.kafka.broker;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides how often and after how long a failed post is retried. Delays grow exponentially from
+ * {@code baseDelayMillis} up to {@code maxDelayMillis}, with full jitter so that brokers that failed at the same
+ * time do not retry in lockstep. A delay requested by the endpoint (e.g. {@code Retry-After}) takes precedence.
+ */
+class RetryPolicy {
+    static final int DEFAULT_MAX_ATTEMPTS = 3;
+    static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+    static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+
+    final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        if (maxAttempts < 1 || baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("Invalid retry policy");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @param attempt          the number of attempts made so far, starting at 1
+     * @param retryAfterMillis the delay requested by the endpoint, or zero
+     * @return the delay before the next attempt, or -1 if the endpoint asked for more than {@code maxDelayMillis}
+     */
+    long delayMillis(int attempt, long retryAfterMillis) {
+        if (retryAfterMillis > maxDelayMillis) {
+            return -1;
+        }
+        final long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 30));
+        final long jittered = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        return Math.max(retryAfterMillis, jittered);
+    }
+}
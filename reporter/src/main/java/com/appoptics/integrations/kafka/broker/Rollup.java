@@ -0,0 +1,301 @@
+package com.appoptics.integrations.kafka.broker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Rules that aggregate series across one of their tags before they are sent, e.g. partition level log sizes
+ * into one series per topic.
+ * <p/>
+ * A rule has the form {@code <metric name glob>:<tag>:<aggregation>}, where the aggregation (sum, max, min or
+ * count) applies to gauges. Counter and meter counts and rates are always summed, percentiles and means are
+ * rolled up as their maximum, and the sum, count, min and max of histograms and timers are merged exactly.
+ * The first rule whose name matches and whose tag the series has applies.
+ * <p/>
+ * The rolled up series replaces the raw ones, or if the raw series are kept it is reported under the name
+ * suffixed with {@code .rollup} so that the two are not summed together.
+ */
+class Rollup {
+    static final Rollup NONE = new Rollup(Collections.emptyList(), false);
+    static final String KEEP_RAW_SUFFIX = "rollup";
+
+    enum Aggregation {SUM, MAX, MIN, COUNT}
+
+    private final List<Rule> rules;
+    private final boolean keepRaw;
+    // rolled up names are shared by all the series that roll into them, until no batch aggregates them anymore
+    private final ConcurrentHashMap<NameAndTags, NameAndTags> rolledNames = new ConcurrentHashMap<>();
+
+    Rollup(List<Rule> rules, boolean keepRaw) {
+        this.rules = rules;
+        this.keepRaw = keepRaw;
+    }
+
+    /**
+     * @param rules comma separated rules, may be empty
+     * @param mode  {@code replace} to report only the rolled up series, {@code both} to keep the raw ones too
+     * @return the rollup stage
+     * @throws IllegalArgumentException if a rule or the mode is invalid
+     */
+    static Rollup parse(String rules, String mode) {
+        final boolean keepRaw;
+        if ("both".equalsIgnoreCase(mode)) {
+            keepRaw = true;
+        } else if ("replace".equalsIgnoreCase(mode)) {
+            keepRaw = false;
+        } else {
+            throw new IllegalArgumentException("Unknown rollup mode " + mode);
+        }
+        final List<Rule> parsed = new ArrayList<>();
+        for (String rule : MetricFilter.split(rules)) {
+            final String[] parts = rule.split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Invalid rollup rule " + rule + ", expected name:tag:aggregation");
+            }
+            parsed.add(new Rule(MetricFilter.globToPattern(parts[0].trim()), parts[1].trim(),
+                    Aggregation.valueOf(parts[2].trim().toUpperCase())));
+        }
+        return parsed.isEmpty() ? NONE : new Rollup(parsed, keepRaw);
+    }
+
+    /**
+     * @return true if the raw series are reported along with the rolled up ones
+     */
+    boolean keepsRaw() {
+        return keepRaw;
+    }
+
+    boolean hasRules() {
+        return !rules.isEmpty();
+    }
+
+    /**
+     * Resolves where a series rolls up to. The answer does not change, so batches keep it while the series is
+     * reported.
+     *
+     * @param nameAndTags a series, without an expanded stat suffix
+     * @return where the series rolls up to, {@link Target#NONE} if no rule applies
+     */
+    Target target(NameAndTags nameAndTags) {
+        for (Rule rule : rules) {
+            if (rule.name.matcher(nameAndTags.getName()).matches()) {
+                final NameAndTags rolled = nameAndTags.withoutTag(rule.tag, keepRaw ? KEEP_RAW_SUFFIX : null);
+                if (rolled != null) {
+                    return new Target(rolledNames.computeIfAbsent(rolled, k -> k), rule.aggregation, keepRaw);
+                }
+            }
+        }
+        return Target.NONE;
+    }
+
+    /**
+     * @param nameAndTags a series
+     * @return how the gauge is aggregated when it is folded by the {@link CardinalityLimiter}: like the first rule
+     * whose name matches, whatever its tag, otherwise as the maximum
+     */
+    Aggregation foldAggregation(NameAndTags nameAndTags) {
+        for (Rule rule : rules) {
+            if (rule.name.matcher(nameAndTags.getName()).matches()) {
+                return rule.aggregation;
+            }
+        }
+        return Aggregation.MAX;
+    }
+
+    /**
+     * Forgets a rolled up name that a batch stopped aggregating. Series that still roll into it keep their
+     * {@link Target}; a series resolved later shares a new instance.
+     */
+    void forget(NameAndTags rolled) {
+        rolledNames.remove(rolled);
+    }
+
+    int getRolledNames() {
+        return rolledNames.size();
+    }
+
+    /**
+     * @return how an expanded stat of a meter, histogram or timer is rolled up
+     */
+    static Aggregation aggregation(ExpandedMetric metric) {
+        switch (metric) {
+            case COUNT:
+            case RATE_MEAN:
+            case RATE_1_MINUTE:
+            case RATE_5_MINUTE:
+            case RATE_15_MINUTE:
+                return Aggregation.SUM;
+            default:
+                return Aggregation.MAX;
+        }
+    }
+
+    /**
+     * Where a series is aggregated into, see also {@link CardinalityLimiter}.
+     */
+    static final class Target {
+        // a series that no rule applies to
+        static final Target NONE = new Target(null, null, true);
+
+        final NameAndTags name;
+        final Aggregation aggregation;
+        // whether the series itself is still reported
+        final boolean keepRaw;
+
+        Target(NameAndTags name, Aggregation aggregation, boolean keepRaw) {
+            this.name = name;
+            this.aggregation = aggregation;
+            this.keepRaw = keepRaw;
+        }
+    }
+
+    private static final class Rule {
+        final Pattern name;
+        final String tag;
+        final Aggregation aggregation;
+
+        Rule(Pattern name, String tag, Aggregation aggregation) {
+            this.name = name;
+            this.tag = tag;
+            this.aggregation = aggregation;
+        }
+    }
+
+    /**
+     * The running aggregate of one rolled up series within a batch. Aggregates are kept by their batch and reset
+     * each cycle rather than allocated again.
+     */
+    static final class Aggregate {
+        private final Aggregation aggregation;
+        private double value;
+        private long samples;
+        private boolean integral = true;
+        // whether every reading was the change of a count
+        private boolean counts = true;
+        // merged multi-sample values, only used when samplesCount > 0
+        private long samplesCount;
+        private double samplesSum;
+        private double samplesMax = Double.NEGATIVE_INFINITY;
+        private double samplesMin = Double.POSITIVE_INFINITY;
+
+        Aggregate(Aggregation aggregation) {
+            this.aggregation = aggregation;
+        }
+
+        Aggregation aggregation() {
+            return aggregation;
+        }
+
+        void add(Number reading) {
+            add(reading.doubleValue(), reading instanceof Long || reading instanceof Integer, false);
+        }
+
+        void add(double reading) {
+            add(reading, false, false);
+        }
+
+        /**
+         * Adds the change of a count over the period.
+         */
+        void addCount(long delta) {
+            add(delta, true, true);
+        }
+
+        private void add(double v, boolean integralReading, boolean countReading) {
+            integral &= integralReading;
+            counts &= countReading;
+            if (samples == 0) {
+                value = aggregation == Aggregation.COUNT ? 1 : v;
+            } else {
+                switch (aggregation) {
+                    case SUM:
+                        value += v;
+                        break;
+                    case MAX:
+                        value = Math.max(value, v);
+                        break;
+                    case MIN:
+                        value = Math.min(value, v);
+                        break;
+                    case COUNT:
+                        value++;
+                        break;
+                }
+            }
+            samples++;
+        }
+
+        void addSamples(long count, double sum, double max, double min) {
+            samplesCount += count;
+            samplesSum += sum;
+            samplesMax = Math.max(samplesMax, max);
+            samplesMin = Math.min(samplesMin, min);
+        }
+
+        void merge(Aggregate other) {
+            if (other.samples > 0) {
+                if (samples == 0) {
+                    value = other.value;
+                    integral = other.integral;
+                    counts = other.counts;
+                } else {
+                    switch (aggregation) {
+                        case SUM:
+                        case COUNT:
+                            value += other.value;
+                            break;
+                        case MAX:
+                            value = Math.max(value, other.value);
+                            break;
+                        case MIN:
+                            value = Math.min(value, other.value);
+                            break;
+                    }
+                    integral &= other.integral;
+                    counts &= other.counts;
+                }
+                samples += other.samples;
+            }
+            if (other.samplesCount > 0) {
+                addSamples(other.samplesCount, other.samplesSum, other.samplesMax, other.samplesMin);
+            }
+        }
+
+        /**
+         * @return true if nothing was added since the last reset
+         */
+        boolean isEmpty() {
+            return samples == 0 && samplesCount == 0;
+        }
+
+        void reset() {
+            value = 0;
+            samples = 0;
+            integral = true;
+            counts = true;
+            samplesCount = 0;
+            samplesSum = 0;
+            samplesMax = Double.NEGATIVE_INFINITY;
+            samplesMin = Double.POSITIVE_INFINITY;
+        }
+
+        /**
+         * Adds the aggregate to a batch as a measurement of the rolled up series.
+         */
+        void addTo(KafkaMetricsBatch batch, NameAndTags name) {
+            if (samplesCount > 0) {
+                batch.addSamplesMeasurement(name, samplesCount, samplesSum, samplesMax, samplesMin);
+            } else if (counts && aggregation == Aggregation.SUM) {
+                // a sum of count changes is the change of the sum
+                batch.addCountMeasurement(name, (long) value);
+            } else if (integral || aggregation == Aggregation.COUNT) {
+                batch.addGaugeMeasurement(name, (long) value);
+            } else {
+                batch.addGaugeMeasurement(name, value);
+            }
+        }
+    }
+}
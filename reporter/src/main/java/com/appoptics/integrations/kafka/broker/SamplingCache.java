@@ -0,0 +1,152 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.yammer.metrics.core.Sampling;
+import com.yammer.metrics.stats.Snapshot;
+
+import java.util.Arrays;
+
+/**
+ * Avoids snapshot and percentile work for histograms and timers whose count has not changed since the last
+ * report. Taking a snapshot copies and sorts the whole reservoir, and most partition-level histograms are idle in
+ * any given interval.
+ * <ul>
+ * <li>{@link Mode#REPORT} always takes a fresh snapshot</li>
+ * <li>{@link Mode#CACHE} reports the percentiles of the last snapshot while the metric is idle</li>
+ * <li>{@link Mode#SUPPRESS} reports nothing for an idle metric, except a heartbeat with the cached percentiles
+ * every {@code heartbeatIntervals} idle intervals so that the series does not go stale</li>
+ * </ul>
+ */
+class SamplingCache {
+    static final int DEFAULT_HEARTBEAT_INTERVALS = 10;
+    static final ExpandedMetric[] PERCENTILES = {
+            ExpandedMetric.MEDIAN,
+            ExpandedMetric.PCT_75,
+            ExpandedMetric.PCT_95,
+            ExpandedMetric.PCT_98,
+            ExpandedMetric.PCT_99,
+            ExpandedMetric.PCT_999
+    };
+
+    enum Mode {
+        REPORT,
+        CACHE,
+        SUPPRESS
+    }
+
+    private final Mode mode;
+    private final int heartbeatIntervals;
+    private final int maxIdleCycles;
+    private final SeriesIndex index = new SeriesIndex();
+    // id -> PERCENTILES.length values of the last snapshot
+    private double[] values = new double[index.capacity() * PERCENTILES.length];
+    // id -> whether values holds a snapshot
+    private boolean[] cached = new boolean[index.capacity()];
+    // id -> consecutive idle intervals
+    private int[] idleIntervals = new int[index.capacity()];
+
+    SamplingCache(Mode mode, int heartbeatIntervals, int maxIdleCycles) {
+        if (heartbeatIntervals < 1) {
+            throw new IllegalArgumentException("Heartbeat interval must be positive");
+        }
+        this.mode = mode;
+        this.heartbeatIntervals = heartbeatIntervals;
+        this.maxIdleCycles = maxIdleCycles;
+    }
+
+    /**
+     * @return an empty cache with the same configuration
+     */
+    SamplingCache newInstance() {
+        return new SamplingCache(mode, heartbeatIntervals, maxIdleCycles);
+    }
+
+    /**
+     * @param nameAndTags the sampling metric
+     * @param countDelta  the change of its count since the last report
+     * @return true if nothing should be reported for the metric in this interval
+     */
+    boolean isSuppressed(NameAndTags nameAndTags, long countDelta) {
+        if (mode != Mode.SUPPRESS) {
+            return false;
+        }
+        synchronized (this) {
+            int id = index.get(nameAndTags);
+            if (id == SeriesIndex.ABSENT) {
+                // always report a metric the first time it is seen
+                add(nameAndTags);
+                return false;
+            }
+            if (countDelta != 0) {
+                idleIntervals[id] = 0;
+                return false;
+            }
+            // heartbeats go out on every heartbeatIntervals-th idle interval
+            return ++idleIntervals[id] % heartbeatIntervals != 0;
+        }
+    }
+
+    /**
+     * Fills {@code out} with the percentiles of the metric, in {@link #PERCENTILES} order, taking a snapshot only if
+     * the metric changed or nothing is cached for it.
+     */
+    void percentiles(NameAndTags nameAndTags, Sampling sampling, long countDelta, double[] out,
+                     ReporterStats.Tally tally) {
+        if (mode == Mode.REPORT) {
+            snapshot(sampling, out, tally);
+            return;
+        }
+        int id;
+        synchronized (this) {
+            id = index.get(nameAndTags);
+            if (id == SeriesIndex.ABSENT) {
+                id = add(nameAndTags);
+            } else if (countDelta == 0 && cached[id]) {
+                System.arraycopy(values, id * PERCENTILES.length, out, 0, PERCENTILES.length);
+                return;
+            }
+        }
+        // sort outside of the lock, the reservoir is not ours
+        snapshot(sampling, out, tally);
+        synchronized (this) {
+            // the id is stable until the next endCycle, which does not run during collection
+            System.arraycopy(out, 0, values, id * PERCENTILES.length, PERCENTILES.length);
+            cached[id] = true;
+        }
+    }
+
+    /**
+     * Marks the end of a reporting cycle, forgetting the metrics that have not been reported recently.
+     */
+    synchronized void endCycle() {
+        if (mode != Mode.REPORT) {
+            index.advance(maxIdleCycles);
+        }
+    }
+
+    private int add(NameAndTags nameAndTags) {
+        final int id = index.add(nameAndTags);
+        if (cached.length < index.capacity()) {
+            cached = Arrays.copyOf(cached, index.capacity());
+            idleIntervals = Arrays.copyOf(idleIntervals, index.capacity());
+            values = Arrays.copyOf(values, index.capacity() * PERCENTILES.length);
+        }
+        cached[id] = false;
+        idleIntervals[id] = 0;
+        return id;
+    }
+
+    private static void snapshot(Sampling sampling, double[] out, ReporterStats.Tally tally) {
+        final long start = ReporterStats.start();
+        fill(sampling.getSnapshot(), out);
+        tally.stop(ReporterStats.Stage.SNAPSHOT, start);
+    }
+
+    private static void fill(Snapshot snapshot, double[] out) {
+        out[0] = snapshot.getMedian();
+        out[1] = snapshot.get75thPercentile();
+        out[2] = snapshot.get95thPercentile();
+        out[3] = snapshot.get98thPercentile();
+        out[4] = snapshot.get99thPercentile();
+        out[5] = snapshot.get999thPercentile();
+    }
+}
@@ -0,0 +1,57 @@
+package com.appoptics.integrations.kafka.broker;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Values derived from series, such as where they roll up to or how a sink renders their names, kept by whoever
+ * derives them rather than by the {@link NameAndTags}. A value is kept while its series is used: like the rolled
+ * up series of a batch, a series that was not looked up during a cycle is forgotten when the cycle ends.
+ * <p/>
+ * Collection threads may look up and add values concurrently; cycles are ended once they are done.
+ *
+ * @param <V> the type of the values
+ */
+final class SeriesCache<V> {
+    private final ConcurrentHashMap<NameAndTags, Entry<V>> entries = new ConcurrentHashMap<>();
+    private int cycle;
+
+    /**
+     * @param series a series
+     * @return the value of the series, or null if it has none
+     */
+    V get(NameAndTags series) {
+        final Entry<V> entry = entries.get(series);
+        if (entry == null) {
+            return null;
+        }
+        entry.lastUsed = cycle;
+        return entry.value;
+    }
+
+    void put(NameAndTags series, V value) {
+        entries.put(series, new Entry<>(value, cycle));
+    }
+
+    /**
+     * Ends a cycle, forgetting the series that were not used during it.
+     */
+    void endCycle() {
+        final int ended = cycle++;
+        entries.values().removeIf(entry -> entry.lastUsed != ended);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        // written by the threads that use the entry, read when the cycle ends after they are done
+        int lastUsed;
+
+        Entry(V value, int lastUsed) {
+            this.value = value;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
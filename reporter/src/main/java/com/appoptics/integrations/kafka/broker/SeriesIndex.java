@@ -0,0 +1,145 @@
+package com.appoptics.integrations.kafka.broker;
+
+import java.util.Arrays;
+
+/**
+ * Assigns dense int ids to series so that per-series state can be kept in primitive arrays indexed by id.
+ * Lookups go through an open-addressing table keyed by {@link NameAndTags}, which caches its hash code.
+ * <p/>
+ * Every lookup marks the series as seen in the current generation. {@link #advance(int)} closes a generation and
+ * evicts the series that have not been seen for the given number of generations, so series that leave the
+ * registry (deleted topics, reassigned partitions) do not accumulate. Ids of evicted series are reused.
+ * <p/>
+ * Not thread safe.
+ */
+final class SeriesIndex {
+    static final int ABSENT = -1;
+    private static final int MIN_CAPACITY = 64;
+
+    // hash slot -> id, ABSENT when the slot is empty
+    private int[] table;
+    // id -> key, null for free ids
+    private NameAndTags[] keys;
+    // id -> generation in which the series was last looked up
+    private int[] lastSeen;
+    private int[] freeIds;
+    private int freeCount;
+    private int nextId;
+    private int size;
+    private int generation;
+
+    SeriesIndex() {
+        this(MIN_CAPACITY);
+    }
+
+    SeriesIndex(int expectedSize) {
+        final int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, expectedSize) - 1) << 1);
+        table = new int[capacity * 2];
+        Arrays.fill(table, ABSENT);
+        keys = new NameAndTags[capacity];
+        lastSeen = new int[capacity];
+        freeIds = new int[capacity];
+    }
+
+    /**
+     * @param key the series
+     * @return the id of the series, or {@link #ABSENT} if it is not indexed
+     */
+    int get(NameAndTags key) {
+        final int mask = table.length - 1;
+        for (int slot = spread(key.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+            final int id = table[slot];
+            if (id == ABSENT) {
+                return ABSENT;
+            }
+            final NameAndTags candidate = keys[id];
+            if (candidate == key || candidate.equals(key)) {
+                lastSeen[id] = generation;
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Indexes a series that is not already indexed.
+     *
+     * @param key the series
+     * @return the id assigned to the series
+     */
+    int add(NameAndTags key) {
+        if (nextId == keys.length && freeCount == 0) {
+            grow();
+        }
+        final int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+        keys[id] = key;
+        lastSeen[id] = generation;
+        insert(id);
+        size++;
+        return id;
+    }
+
+    /**
+     * @return the exclusive upper bound of the ids handed out so far; arrays indexed by id must be at least this long
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Closes the current generation and evicts the series not seen for more than {@code maxIdle} generations.
+     *
+     * @param maxIdle the number of generations a series may go unseen before it is evicted
+     * @return the number of evicted series
+     */
+    int advance(int maxIdle) {
+        generation++;
+        int evicted = 0;
+        for (int id = 0; id < nextId; id++) {
+            if (keys[id] != null && generation - lastSeen[id] > maxIdle) {
+                keys[id] = null;
+                freeIds[freeCount++] = id;
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            size -= evicted;
+            rehash();
+        }
+        return evicted;
+    }
+
+    private void insert(int id) {
+        final int mask = table.length - 1;
+        int slot = spread(keys[id].hashCode()) & mask;
+        while (table[slot] != ABSENT) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id;
+    }
+
+    private void grow() {
+        final int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        lastSeen = Arrays.copyOf(lastSeen, capacity);
+        freeIds = new int[capacity];
+        table = new int[capacity * 2];
+        rehash();
+    }
+
+    private void rehash() {
+        Arrays.fill(table, ABSENT);
+        for (int id = 0; id < nextId; id++) {
+            if (keys[id] != null) {
+                insert(id);
+            }
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,256 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.appoptics.metrics.client.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Sends batches to a local StatsD or DogStatsD agent, packed into datagrams of at most {@code maxPacketBytes}: the
+ * changes of counts as counters, everything else as gauges. Datagrams are written from a reused direct buffer to a non-blocking channel, fire and
+ * forget: a datagram the socket cannot take right away is dropped and counted, never waited for.
+ * <p/>
+ * With the dogstatsd format, tags and the static tags are sent as DogStatsD tags; plain StatsD has no tags, so
+ * series that only differ by their tags are sent under the same name. Multi-sample series are sent as
+ * {@code .samples}, {@code .sum}, {@code .min} and {@code .max} gauges.
+ */
+class StatsdSink implements MeasurementSink {
+    private static final Logger LOG = LoggerFactory.getLogger(StatsdSink.class);
+    static final int DEFAULT_PORT = 8125;
+    // fits an Ethernet MTU with the IP and UDP headers
+    static final int DEFAULT_MAX_PACKET_BYTES = 1432;
+
+    private static final byte[] GAUGE = "|g".getBytes(US_ASCII);
+    private static final byte[] COUNTER = "|c".getBytes(US_ASCII);
+    private static final byte[] ZERO_GAUGE = ":0|g\n".getBytes(US_ASCII);
+    private static final byte[][] SAMPLE_SUFFIXES = {
+            ".samples".getBytes(US_ASCII),
+            ".sum".getBytes(US_ASCII),
+            ".min".getBytes(US_ASCII),
+            ".max".getBytes(US_ASCII)};
+
+    enum Format {
+        STATSD,
+        DOGSTATSD
+    }
+
+    private final InetSocketAddress address;
+    private final Format format;
+    private final DatagramChannel channel;
+    private final ByteBuffer packet;
+    private final PayloadBuffer line = new PayloadBuffer(256);
+    // the static tags as DogStatsD tags
+    private final List<Tag> staticTags;
+    // per tier, the names and tags of the series sent recently
+    private final List<SeriesCache<Series>> series = new ArrayList<>();
+
+    private final LongAdder datagrams = new LongAdder();
+    private final LongAdder droppedDatagrams = new LongAdder();
+    private final LongAdder droppedMeasurements = new LongAdder();
+
+    /**
+     * @param address        the agent
+     * @param format         the protocol of the agent
+     * @param maxPacketBytes the size of the largest datagram, measurements are never split across datagrams
+     * @param staticTags     tags added to every measurement, with the dogstatsd format
+     */
+    StatsdSink(InetSocketAddress address, Format format, int maxPacketBytes, List<Tag> staticTags) throws IOException {
+        if (maxPacketBytes < 64) {
+            throw new IllegalArgumentException("The maximum packet size must be at least 64 bytes");
+        }
+        if (address.isUnresolved()) {
+            throw new IOException("Unable to resolve " + address);
+        }
+        this.address = address;
+        this.format = format;
+        this.packet = ByteBuffer.allocateDirect(maxPacketBytes);
+        this.staticTags = staticTags;
+        this.channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+    }
+
+    long getDatagrams() {
+        return datagrams.sum();
+    }
+
+    long getDroppedDatagrams() {
+        return droppedDatagrams.sum();
+    }
+
+    long getDroppedMeasurements() {
+        return droppedMeasurements.sum();
+    }
+
+    @Override
+    public void send(int tier, KafkaMetricsBatch batch, long epoch, int period) {
+        final SeriesCache<Series> tierSeries = tierSeries(tier);
+        for (int i = 0; i < batch.size(); i++) {
+            final Series series = series(tierSeries, batch.name(i));
+            switch (batch.type(i)) {
+                case KafkaMetricsBatch.COUNT:
+                    // a counter adds up what it is sent, so a negative change needs no reset
+                    writeLine(series, null, false).writeLong(batch.count(i));
+                    add(series, COUNTER);
+                    break;
+                case KafkaMetricsBatch.LONG:
+                    writeLine(series, null, batch.count(i) < 0).writeLong(batch.count(i));
+                    add(series, GAUGE);
+                    break;
+                case KafkaMetricsBatch.DOUBLE:
+                    writeLine(series, null, batch.value(i) < 0).writeDouble(batch.value(i));
+                    add(series, GAUGE);
+                    break;
+                default:
+                    writeLine(series, SAMPLE_SUFFIXES[0], false).writeLong(batch.count(i));
+                    add(series, GAUGE);
+                    writeLine(series, SAMPLE_SUFFIXES[1], batch.value(i) < 0).writeDouble(batch.value(i));
+                    add(series, GAUGE);
+                    writeLine(series, SAMPLE_SUFFIXES[2], batch.min(i) < 0).writeDouble(batch.min(i));
+                    add(series, GAUGE);
+                    writeLine(series, SAMPLE_SUFFIXES[3], batch.max(i) < 0).writeDouble(batch.max(i));
+                    add(series, GAUGE);
+            }
+        }
+        sendPacket();
+        tierSeries.endCycle();
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.debug("Failed to close the StatsD channel", e);
+        }
+    }
+
+    /**
+     * Starts a line up to the value. In plain StatsD a signed gauge is a change of the current value, so a
+     * negative value is preceded by a reset to zero.
+     */
+    private PayloadBuffer writeLine(Series series, byte[] suffix, boolean negative) {
+        final byte[] name = series.name;
+        line.reset();
+        if (negative && format == Format.STATSD) {
+            line.write(name);
+            if (suffix != null) {
+                line.write(suffix);
+            }
+            line.write(ZERO_GAUGE);
+        }
+        line.write(name);
+        if (suffix != null) {
+            line.write(suffix);
+        }
+        return line.writeByte(':');
+    }
+
+    /**
+     * Ends the line and adds it to the packet, sending the packet first if the line does not fit.
+     */
+    private void add(Series series, byte[] type) {
+        line.write(type);
+        if (format == Format.DOGSTATSD) {
+            line.write(series.tags);
+        }
+        final int separator = packet.position() > 0 ? 1 : 0;
+        if (line.size() + separator > packet.remaining()) {
+            sendPacket();
+            if (line.size() > packet.remaining()) {
+                droppedMeasurements.increment();
+                LOG.debug("Dropped a measurement larger than a packet: {}", series.nameAndTags);
+                return;
+            }
+        } else if (separator > 0) {
+            packet.put((byte) '\n');
+        }
+        packet.put(line.array(), 0, line.size());
+    }
+
+    private void sendPacket() {
+        if (packet.position() == 0) {
+            return;
+        }
+        packet.flip();
+        try {
+            if (channel.send(packet, address) == 0) {
+                // the socket buffer is full
+                droppedDatagrams.increment();
+            } else {
+                datagrams.increment();
+            }
+        } catch (IOException e) {
+            droppedDatagrams.increment();
+            LOG.debug("Failed to send a StatsD datagram", e);
+        }
+        packet.clear();
+    }
+
+    private SeriesCache<Series> tierSeries(int tier) {
+        while (series.size() <= tier) {
+            series.add(new SeriesCache<>());
+        }
+        return series.get(tier);
+    }
+
+    private Series series(SeriesCache<Series> tierSeries, NameAndTags nameAndTags) {
+        Series rendered = tierSeries.get(nameAndTags);
+        if (rendered == null) {
+            rendered = new Series(nameAndTags, sanitize(nameAndTags.getName(), ":|@#,\n").getBytes(US_ASCII),
+                    format == Format.DOGSTATSD ? tags(nameAndTags) : null);
+            tierSeries.put(nameAndTags, rendered);
+        }
+        return rendered;
+    }
+
+    /**
+     * @return the DogStatsD tags of a series, starting with {@code |#}, empty if it has none
+     */
+    private byte[] tags(NameAndTags nameAndTags) {
+        final StringBuilder tags = new StringBuilder();
+        for (Tag tag : nameAndTags.tagsWith(staticTags)) {
+            tags.append(tags.length() == 0 ? "|#" : ",").append(sanitize(tag.name, ":|@#,\n")).append(':')
+                    .append(sanitize(tag.value, "|@#,\n"));
+        }
+        return tags.toString().getBytes(US_ASCII);
+    }
+
+    private static String sanitize(String s, String reserved) {
+        final char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (reserved.indexOf(chars[i]) >= 0 || chars[i] > 0x7f) {
+                chars[i] = '_';
+            }
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        return "StatsdSink{" + format.name().toLowerCase() + " " + address + '}';
+    }
+
+    /**
+     * A series as it is sent: its name and, with the dogstatsd format, its tags.
+     */
+    private static final class Series {
+        final NameAndTags nameAndTags;
+        final byte[] name;
+        final byte[] tags;
+
+        Series(NameAndTags nameAndTags, byte[] name, byte[] tags) {
+            this.nameAndTags = nameAndTags;
+            this.name = name;
+            this.tags = tags;
+        }
+    }
+}
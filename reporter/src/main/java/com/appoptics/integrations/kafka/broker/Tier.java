@@ -0,0 +1,30 @@
+package com.appoptics.integrations.kafka.broker;
+
+/**
+ * A group of metrics reported at their own period, e.g. request latencies every 10 seconds and partition log
+ * sizes every 5 minutes. Metrics that are not in any tier are reported at the reporter's interval.
+ */
+class Tier {
+    final String name;
+    final long periodSeconds;
+    final MetricFilter predicate;
+
+    /**
+     * @param name          the name of the tier, for logging
+     * @param periodSeconds how often the metrics of the tier are reported
+     * @param predicate     the metrics in the tier; a metric belongs to the first tier that matches it
+     */
+    Tier(String name, long periodSeconds, MetricFilter predicate) {
+        if (periodSeconds < 1) {
+            throw new IllegalArgumentException("The period of tier " + name + " must be at least 1 second");
+        }
+        this.name = name;
+        this.periodSeconds = periodSeconds;
+        this.predicate = predicate;
+    }
+
+    @Override
+    public String toString() {
+        return name + "/" + periodSeconds + "s";
+    }
+}
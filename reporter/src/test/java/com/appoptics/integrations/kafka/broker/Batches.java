@@ -0,0 +1,52 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.yammer.metrics.core.MetricName;
+
+import java.util.Collections;
+import java.util.EnumSet;
+
+/**
+ * Builds batches and series for tests.
+ */
+final class Batches {
+    static final ExpandedMetric.ExpandedMetricConfig EXPANSIONS = new ExpandedMetric.ExpandedMetricConfig(EnumSet.of(
+            ExpandedMetric.COUNT, ExpandedMetric.MEDIAN, ExpandedMetric.PCT_99));
+
+    private Batches() {
+    }
+
+    static KafkaMetricsBatch batch(Rollup rollup, CardinalityLimiter limiter, GaugeSuppressor gaugeSuppressor) {
+        return new KafkaMetricsBatch(EXPANSIONS, new DeltaTracker(Collections::emptyMap),
+                new SamplingCache(SamplingCache.Mode.REPORT, SamplingCache.DEFAULT_HEARTBEAT_INTERVALS,
+                        DeltaTracker.DEFAULT_MAX_IDLE_CYCLES),
+                gaugeSuppressor, rollup, limiter);
+    }
+
+    static KafkaMetricsBatch batch(Rollup rollup, CardinalityLimiter limiter) {
+        return batch(rollup, limiter, new GaugeSuppressor(false, 0, 1, DeltaTracker.DEFAULT_MAX_IDLE_CYCLES, 1));
+    }
+
+    static KafkaMetricsBatch batch() {
+        return batch(Rollup.NONE, CardinalityLimiter.NONE);
+    }
+
+    /**
+     * @return the size of a partition's log, tagged with its topic and partition
+     */
+    static NameAndTags logSize(String topic, int partition) {
+        return new NameAndTags(new MetricName("kafka.log", "Log", "Size",
+                "topic." + topic + ".partition." + partition));
+    }
+
+    /**
+     * @return the index of the first row of a series, -1 if it is not in the batch
+     */
+    static int find(KafkaMetricsBatch batch, NameAndTags series) {
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.name(i).equals(series)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,91 @@
+package com.appoptics.integrations.kafka.broker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class CardinalityLimiterTest {
+    @Test
+    public void mostActiveSeriesAreKept() {
+        final CardinalityLimiter limiter = new CardinalityLimiter(2, 0, 10);
+        // the quiet series is offered first, so it is admitted while the name has room
+        limiter.fold(Batches.logSize("quiet", 0), 1, Rollup.NONE);
+        limiter.fold(Batches.logSize("busy", 0), 100, Rollup.NONE);
+        assertNotNull(limiter.fold(Batches.logSize("busier", 0), 200, Rollup.NONE));
+        limiter.endCycle();
+
+        assertNull(limiter.fold(Batches.logSize("busy", 0), 100, Rollup.NONE));
+        assertNull(limiter.fold(Batches.logSize("busier", 0), 200, Rollup.NONE));
+        assertNotNull(limiter.fold(Batches.logSize("quiet", 0), 1, Rollup.NONE));
+    }
+
+    @Test
+    public void foldedGaugesAreNotSummedByDefault() {
+        final CardinalityLimiter limiter = new CardinalityLimiter(1, 0, 10);
+        final KafkaMetricsBatch batch = Batches.batch(Rollup.NONE, limiter);
+        batch.addGauge(Batches.logSize("a", 0), 1000);
+        batch.addGauge(Batches.logSize("b", 0), 40);
+        batch.addGauge(Batches.logSize("c", 0), 30);
+        batch.flushRollups(new ReporterStats());
+
+        final NameAndTags other = Batches.logSize("b", 0).withTagValues(CardinalityLimiter.OTHER);
+        assertEquals(40, batch.value(Batches.find(batch, other)), 0);
+    }
+
+    @Test
+    public void foldedGaugesFollowTheRollupRuleOfTheirName() {
+        final CardinalityLimiter limiter = new CardinalityLimiter(1, 0, 10);
+        // the rule does not apply as a rollup, the series have no broker tag
+        final Rollup rollup = Rollup.parse("kafka.log.Log.Size:broker:sum", "replace");
+        final KafkaMetricsBatch batch = Batches.batch(rollup, limiter);
+        batch.addGauge(Batches.logSize("a", 0), 1000);
+        batch.addGauge(Batches.logSize("b", 0), 40);
+        batch.addGauge(Batches.logSize("c", 0), 30);
+        batch.flushRollups(new ReporterStats());
+
+        final NameAndTags other = Batches.logSize("b", 0).withTagValues(CardinalityLimiter.OTHER);
+        assertEquals(70, batch.value(Batches.find(batch, other)), 0);
+    }
+
+    @Test
+    public void totalCapIsShared() {
+        final CardinalityLimiter limiter = new CardinalityLimiter(10, 3, 10);
+        int reported = 0;
+        for (int i = 0; i < 5; i++) {
+            if (limiter.fold(Batches.logSize("t" + i, 0), 1, Rollup.NONE) == null) {
+                reported++;
+            }
+        }
+        assertEquals(3, reported);
+        limiter.endCycle();
+
+        // the ranking keeps 3 of the 5 series, which fills the cap
+        reported = 0;
+        for (int i = 0; i < 5; i++) {
+            if (limiter.fold(Batches.logSize("t" + i, 0), 1, Rollup.NONE) == null) {
+                reported++;
+            }
+        }
+        assertEquals(3, reported);
+    }
+
+    @Test
+    public void seriesThatLeftAreEvicted() {
+        final CardinalityLimiter limiter = new CardinalityLimiter(2, 0, 2);
+        for (int i = 0; i < 6; i++) {
+            limiter.fold(Batches.logSize("t" + i, 0), 10, Rollup.NONE);
+        }
+        limiter.endCycle();
+        assertEquals(6, limiter.getTrackedSeries());
+
+        for (int cycle = 0; cycle < 3; cycle++) {
+            limiter.fold(Batches.logSize("t0", 0), 10, Rollup.NONE);
+            limiter.endCycle();
+        }
+
+        assertEquals(1, limiter.getTrackedSeries());
+        assertNull(limiter.fold(Batches.logSize("t0", 0), 10, Rollup.NONE));
+    }
+}
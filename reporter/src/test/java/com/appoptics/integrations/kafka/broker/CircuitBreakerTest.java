@@ -0,0 +1,55 @@
+package com.appoptics.integrations.kafka.broker;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        final CircuitBreaker breaker = new CircuitBreaker(3, 60000);
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.onFailure();
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void letsOneProbeThroughAfterTheOpenPeriod() throws InterruptedException {
+        final CircuitBreaker breaker = new CircuitBreaker(1, 50);
+        breaker.onFailure();
+        TimeUnit.MILLISECONDS.sleep(60);
+
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getTimesOpened());
+    }
+
+    @Test
+    public void abandonedProbeIsGivenBack() throws InterruptedException {
+        final CircuitBreaker breaker = new CircuitBreaker(1, 50);
+        breaker.onFailure();
+        TimeUnit.MILLISECONDS.sleep(60);
+        assertTrue(breaker.allowRequest());
+
+        breaker.onAbandoned();
+
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(1, breaker.getTimesOpened());
+    }
+}
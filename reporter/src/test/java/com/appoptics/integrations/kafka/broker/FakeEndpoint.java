@@ -0,0 +1,80 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local measurements endpoint for tests. Answers 202 unless failures are queued with {@link #fail(int, int)},
+ * and waits {@code latencyMillis} before each answer.
+ */
+class FakeEndpoint implements AutoCloseable {
+    private final HttpServer server;
+    private final ConcurrentLinkedQueue<Integer> failures = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger accepted = new AtomicInteger();
+    private volatile long latencyMillis;
+
+    FakeEndpoint() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/v1/measurements", exchange -> {
+            requests.incrementAndGet();
+            try (InputStream body = exchange.getRequestBody()) {
+                while (body.read() != -1) {
+                    // drain the request so that the connection can be reused
+                }
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            final Integer failure = failures.poll();
+            if (failure == null) {
+                accepted.incrementAndGet();
+            }
+            exchange.sendResponseHeaders(failure == null ? 202 : failure, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    URL url() throws IOException {
+        return new URL("http://localhost:" + server.getAddress().getPort() + "/v1/measurements");
+    }
+
+    /**
+     * Answers the next {@code times} requests with {@code code}.
+     */
+    FakeEndpoint fail(int times, int code) {
+        for (int i = 0; i < times; i++) {
+            failures.add(code);
+        }
+        return this;
+    }
+
+    FakeEndpoint latency(long millis) {
+        this.latencyMillis = millis;
+        return this;
+    }
+
+    int requests() {
+        return requests.get();
+    }
+
+    int accepted() {
+        return accepted.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,127 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HttpPosterTest {
+    private HttpServer server;
+    private URL url;
+    private volatile String contentEncoding;
+    private volatile byte[] received;
+    private volatile int contentLength;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/v1/measurements", exchange -> {
+            contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            contentLength = Integer.parseInt(exchange.getRequestHeaders().getFirst("Content-Length"));
+            InputStream body = exchange.getRequestBody();
+            if ("gzip".equals(contentEncoding)) {
+                body = new GZIPInputStream(body);
+            } else if ("deflate".equals(contentEncoding)) {
+                body = new InflaterInputStream(body);
+            }
+            received = readFully(body);
+            exchange.sendResponseHeaders(202, -1);
+            exchange.close();
+        });
+        server.start();
+        url = new URL("http://localhost:" + server.getAddress().getPort() + "/v1/measurements");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void gzipBodyInflatesToThePayload() throws IOException {
+        assertRoundTrip(PayloadCompressor.Encoding.GZIP, "gzip");
+    }
+
+    @Test
+    public void deflateBodyInflatesToThePayload() throws IOException {
+        assertRoundTrip(PayloadCompressor.Encoding.DEFLATE, "deflate");
+    }
+
+    @Test
+    public void smallPayloadIsSentAsIs() throws IOException {
+        final HttpPoster poster = poster(new PayloadCompressor.CompressionConfig(
+                PayloadCompressor.Encoding.GZIP, Deflater.DEFAULT_COMPRESSION, 1 << 20));
+        final PayloadBuffer payload = payload(10);
+
+        final HttpPoster.Response response = poster.post(payload);
+        assertEquals(202, response.code);
+        assertEquals(payload.size(), response.sentBytes);
+        assertNull(contentEncoding);
+        assertArrayEquals(Arrays.copyOf(payload.array(), payload.size()), received);
+        poster.closeCompressor();
+    }
+
+    private void assertRoundTrip(PayloadCompressor.Encoding encoding, String expectedEncoding) throws IOException {
+        final PayloadCompressor.CompressionConfig config =
+                new PayloadCompressor.CompressionConfig(encoding, Deflater.DEFAULT_COMPRESSION, 0);
+        final HttpPoster poster = poster(config);
+        // the compressor and its output buffer are reused, so post twice with different sizes
+        for (int measurements : new int[]{500, 20}) {
+            final PayloadBuffer payload = payload(measurements);
+
+            final HttpPoster.Response response = poster.post(payload);
+            assertEquals(202, response.code);
+            assertEquals(expectedEncoding, contentEncoding);
+            // the compressed size, as written
+            assertEquals(contentLength, response.sentBytes);
+            assertTrue(response.sentBytes < payload.size());
+            assertArrayEquals(Arrays.copyOf(payload.array(), payload.size()), received);
+        }
+        assertEquals(2, config.stats.getPayloads());
+        poster.closeCompressor();
+    }
+
+    private HttpPoster poster(PayloadCompressor.CompressionConfig compression) {
+        return new HttpPoster(url, "token", 1000, 1000, compression);
+    }
+
+    private static PayloadBuffer payload(int measurements) {
+        final PayloadBuffer payload = new PayloadBuffer(1024);
+        payload.writeAscii("{\"time\":1500000000,\"period\":60,\"measurements\":[");
+        for (int i = 0; i < measurements; i++) {
+            if (i > 0) {
+                payload.writeByte(',');
+            }
+            payload.writeAscii("{\"name\":\"kafka.server.BrokerTopicMetrics.BytesInPerSec\",\"tags\":{\"topic\":\"t")
+                    .writeLong(i).writeAscii("\"},\"value\":").writeLong(i * 31L).writeByte('}');
+        }
+        payload.writeAscii("]}");
+        return payload;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[4096];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            out.write(chunk, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,70 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.appoptics.metrics.client.Tag;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class MappedFileSinkTest {
+    private static final List<Tag> STATIC_TAGS = Collections.singletonList(new Tag("topic", "static"));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void linesAreMeasurementsJson() throws IOException {
+        final MappedFileSink sink = sink(24);
+        final KafkaMetricsBatch batch = Batches.batch();
+        batch.addGaugeMeasurement(Batches.logSize("t", 0), 7);
+        sink.send(0, batch, 60, 30);
+        sink.close();
+
+        final String segment = new String(Files.readAllBytes(segments()[0].toPath()), US_ASCII);
+        assertTrue(segment, segment.startsWith("{\"time\":60,\"period\":30,\"name\":\"kafka.log.Log.Size\","
+                + "\"tags\":{\"topic\":\"t\",\"partition\":\"0\"},\"value\":7}\n\0"));
+    }
+
+    @Test
+    public void deletedSegmentsAreUnmapped() throws Exception {
+        final File maps = new File("/proc/self/maps");
+        assumeTrue(maps.canRead());
+        final MappedFileSink sink = sink(2);
+        final KafkaMetricsBatch batch = Batches.batch();
+        for (int i = 0; i < 200; i++) {
+            batch.addGaugeMeasurement(Batches.logSize("t", i), i);
+        }
+        for (int i = 0; i < 10; i++) {
+            sink.send(0, batch, 60L * i, 30);
+        }
+        sink.close();
+
+        assertEquals(2, segments().length);
+        final String mappings = new String(Files.readAllBytes(Paths.get("/proc/self/maps")), US_ASCII);
+        assertFalse(mappings, mappings.contains(folder.getRoot().getPath() + "/measurements-00000000000000000000"));
+    }
+
+    private MappedFileSink sink(int maxSegments) throws IOException {
+        return new MappedFileSink(folder.getRoot(), MappedFileSink.Format.NDJSON, 4096, 3_600_000, maxSegments, 0,
+                STATIC_TAGS);
+    }
+
+    private File[] segments() {
+        final File[] segments = folder.getRoot().listFiles((dir, name) -> name.endsWith(".ndjson"));
+        Arrays.sort(segments);
+        return segments;
+    }
+}
@@ -0,0 +1,55 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.appoptics.metrics.client.Tag;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class MeasurementsEncoderTest {
+    private static final List<Tag> STATIC_TAGS = Arrays.asList(new Tag("topic", "static"), new Tag("host", "h1"));
+
+    @Test
+    public void seriesTagsWinOverStaticTags() {
+        final NameAndTags series = Batches.logSize("t", 0);
+
+        assertEquals(Arrays.asList(new Tag("topic", "t"), new Tag("partition", "0"), new Tag("host", "h1")),
+                series.tagsWith(STATIC_TAGS));
+        assertSame(series.tagsWith(STATIC_TAGS), series.tagsWith(STATIC_TAGS));
+        assertSame(series.getTags(), series.tagsWith(new ArrayList<>()));
+    }
+
+    @Test
+    public void tagsAreWrittenOnce() {
+        final KafkaMetricsBatch batch = Batches.batch();
+        batch.addGaugeMeasurement(Batches.logSize("t", 0), 1);
+        batch.addGaugeMeasurement(new NameAndTags("kafka.untagged"), 2);
+
+        assertEquals("{\"time\":60,\"period\":30,\"measurements\":["
+                        + "{\"name\":\"kafka.log.Log.Size\",\"tags\":{\"topic\":\"t\",\"partition\":\"0\",\"host\":\"h1\"},"
+                        + "\"value\":1},"
+                        + "{\"name\":\"kafka.untagged\",\"tags\":{\"topic\":\"static\",\"host\":\"h1\"},\"value\":2}]}",
+                encode(batch, false));
+        assertEquals("{\"time\":60,\"period\":30,\"tags\":{\"topic\":\"static\",\"host\":\"h1\"},\"measurements\":["
+                        + "{\"name\":\"kafka.log.Log.Size\",\"tags\":{\"topic\":\"t\",\"partition\":\"0\",\"host\":\"h1\"},"
+                        + "\"value\":1},"
+                        + "{\"name\":\"kafka.untagged\",\"value\":2}]}",
+                encode(batch, true));
+    }
+
+    private static String encode(KafkaMetricsBatch batch, boolean payloadTags) {
+        final MeasurementsEncoder encoder = new MeasurementsEncoder(new PayloadBufferPool(1024, 1, 1 << 20),
+                STATIC_TAGS, payloadTags, MeasurementsEncoder.DEFAULT_BATCH_SIZE, new ReporterStats());
+        final StringBuilder json = new StringBuilder();
+        encoder.encode(batch, 60, 30, payload -> {
+            json.append(new String(payload.array(), 0, payload.size(), UTF_8));
+            encoder.release(payload);
+        });
+        return json.toString();
+    }
+}
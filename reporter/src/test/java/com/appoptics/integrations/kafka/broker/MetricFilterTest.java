@@ -0,0 +1,141 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.yammer.metrics.core.MetricName;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MetricFilterTest {
+
+    @Test
+    public void emptyIncludesMatchEverything() {
+        assertTrue(MetricFilter.ALL.matches(yammer("kafka.server", "ReplicaManager", "LeaderCount", null), null));
+    }
+
+    @Test
+    public void exactRulesMatchOnlyTheirName() {
+        final MetricFilter filter = MetricFilter.compile("kafka.server.ReplicaManager.LeaderCount", "");
+
+        assertTrue(filter.matches(yammer("kafka.server", "ReplicaManager", "LeaderCount", null), null));
+        assertFalse(filter.matches(yammer("kafka.server", "ReplicaManager", "LeaderCounts", null), null));
+        assertFalse(filter.matches(yammer("kafka.server", "ReplicaManager", "PartitionCount", null), null));
+    }
+
+    @Test
+    public void trailingStarRulesMatchThePrefix() {
+        final MetricFilter filter = MetricFilter.compile("kafka.network.*,kafka.server.ReplicaManager.*", "");
+
+        assertTrue(filter.matches(yammer("kafka.network", "RequestMetrics", "RequestsPerSec", "request.Fetch"), null));
+        assertTrue(filter.matches(yammer("kafka.server", "ReplicaManager", "LeaderCount", null), null));
+        assertFalse(filter.matches(yammer("kafka.server", "BrokerTopicMetrics", "BytesInPerSec", null), null));
+    }
+
+    @Test
+    public void globRulesMatchTheWholeName() {
+        final MetricFilter filter = MetricFilter.compile("kafka.*.Log.Size,kafka.server.*Manager.Leader?ount", "");
+
+        assertTrue(filter.matches(yammer("kafka.log", "Log", "Size", null), null));
+        assertTrue(filter.matches(yammer("kafka.server", "ReplicaManager", "LeaderCount", null), null));
+        assertFalse(filter.matches(yammer("kafka.log", "Log", "SizeBytes", null), null));
+        assertFalse(filter.matches(yammer("kafka.server", "ReplicaManager", "LeaderCounts", null), null));
+    }
+
+    @Test
+    public void regexRulesMatchTheWholeName() {
+        final MetricFilter filter = MetricFilter.compile("/kafka\\.log\\.Log\\.(Size|LogEndOffset)/", "");
+
+        assertTrue(filter.matches(yammer("kafka.log", "Log", "Size", null), null));
+        assertTrue(filter.matches(yammer("kafka.log", "Log", "LogEndOffset", null), null));
+        assertFalse(filter.matches(yammer("kafka.log", "Log", "LogStartOffset", null), null));
+    }
+
+    @Test
+    public void regexRulesMayContainCommas() {
+        final MetricFilter filter = MetricFilter.compile("/kafka\\.log\\.Log\\.Siz{1,2}e/,kafka.server.*", "");
+
+        assertTrue(filter.matches(yammer("kafka.log", "Log", "Size", null), null));
+        assertTrue(filter.matches(yammer("kafka.log", "Log", "Sizze", null), null));
+        assertTrue(filter.matches(yammer("kafka.server", "ReplicaManager", "LeaderCount", null), null));
+        assertFalse(filter.matches(yammer("kafka.log", "Log", "LogEndOffset", null), null));
+    }
+
+    @Test
+    public void conditionsMatchTheScopeTags() {
+        final MetricFilter filter = MetricFilter.compile(
+                "kafka.log.Log.*[topic=__consumer_*],kafka.network.RequestMetrics.*[scope=request.Fetch]", "");
+
+        assertTrue(filter.matches(yammer("kafka.log", "Log", "Size", "topic.__consumer_offsets.partition.0"), null));
+        assertFalse(filter.matches(yammer("kafka.log", "Log", "Size", "topic.orders.partition.0"), null));
+        assertFalse(filter.matches(yammer("kafka.log", "Log", "Size", null), null));
+        assertTrue(filter.matches(yammer("kafka.network", "RequestMetrics", "RequestsPerSec", "request.Fetch"), null));
+        assertFalse(filter.matches(yammer("kafka.network", "RequestMetrics", "RequestsPerSec", "request.Produce"),
+                null));
+    }
+
+    @Test
+    public void allConditionsMustMatch() {
+        final MetricFilter filter = MetricFilter.compile("/kafka\\.log\\..*/[topic=orders, partition=0]", "");
+
+        assertTrue(filter.matches(yammer("kafka.log", "Log", "Size", "topic.orders.partition.0"), null));
+        assertFalse(filter.matches(yammer("kafka.log", "Log", "Size", "topic.orders.partition.1"), null));
+    }
+
+    @Test
+    public void conditionsMatchNativeTags() {
+        final MetricFilter filter = MetricFilter.compile("kafka.socket-server-metrics.*[listener=SSL]", "");
+
+        assertTrue(filter.matches(kafka("socket-server-metrics", "connection-count", "listener", "SSL")));
+        assertFalse(filter.matches(kafka("socket-server-metrics", "connection-count", "listener", "PLAINTEXT")));
+        assertFalse(filter.matches(kafka("consumer-fetch-manager-metrics", "records-lag", "listener", "SSL")));
+    }
+
+    @Test
+    public void excludesWinOverIncludes() {
+        final MetricFilter filter = MetricFilter.compile("kafka.log.*", "kafka.log.Log.Size[topic=__*]");
+
+        assertTrue(filter.matches(yammer("kafka.log", "Log", "Size", "topic.orders.partition.0"), null));
+        assertFalse(filter.matches(yammer("kafka.log", "Log", "Size", "topic.__consumer_offsets.partition.0"), null));
+        assertFalse(filter.matches(yammer("kafka.server", "ReplicaManager", "LeaderCount", null), null));
+
+        final MetricFilter excludeOnly = MetricFilter.compile("", "kafka.network.*");
+        assertTrue(excludeOnly.matches(yammer("kafka.log", "Log", "Size", null), null));
+        assertFalse(excludeOnly.matches(yammer("kafka.network", "RequestMetrics", "RequestsPerSec", null), null));
+    }
+
+    @Test
+    public void splitKeepsConditionsBracesAndRegexesTogether() {
+        assertEquals(Arrays.asList("a", "b[x=1,y=2]", "/c{1,2}/", "/d,[e]/[f=g,h=i]", "j{1,2}"),
+                MetricFilter.split(" a, b[x=1,y=2] ,/c{1,2}/, /d,[e]/[f=g,h=i],,j{1,2} "));
+        assertEquals(Collections.singletonList("/a\\/b,c/"), MetricFilter.split("/a\\/b,c/"));
+        assertEquals(Collections.emptyList(), MetricFilter.split(" "));
+        assertEquals(Collections.emptyList(), MetricFilter.split(null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unterminatedRegexIsRejected() {
+        MetricFilter.compile("kafka.server.*,/kafka\\.log\\..*", "");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidRegexIsRejected() {
+        MetricFilter.compile("/kafka\\.log\\.(Size/", "");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unterminatedConditionsAreRejected() {
+        MetricFilter.compile("kafka.log.Log.*[topic=orders", "");
+    }
+
+    private static MetricName yammer(String group, String type, String name, String scope) {
+        return new MetricName(group, type, name, scope);
+    }
+
+    private static org.apache.kafka.common.MetricName kafka(String group, String name, String tag, String value) {
+        return new org.apache.kafka.common.MetricName(name, group, "", Collections.singletonMap(tag, value));
+    }
+}
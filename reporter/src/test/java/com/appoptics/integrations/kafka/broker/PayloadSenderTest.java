@@ -0,0 +1,239 @@
+package com.appoptics.integrations.kafka.broker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadSenderTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeEndpoint endpoint;
+    private PayloadSender sender;
+
+    @Before
+    public void startEndpoint() throws IOException {
+        endpoint = new FakeEndpoint();
+    }
+
+    @After
+    public void stop() {
+        if (sender != null) {
+            sender.shutdown();
+        }
+        endpoint.close();
+    }
+
+    @Test
+    public void spoolIsReplayedWithoutLivePayloads() throws Exception {
+        final PayloadSpool spool = PayloadSpool.open(folder.getRoot(), 1 << 20);
+        for (int i = 0; i < 5; i++) {
+            spool.append(payload());
+        }
+        sender = sender(new RetryPolicy(1, 0, 0), new CircuitBreaker(5, 60000), spool, 20);
+
+        waitFor(spool::isEmpty, 5000);
+        assertEquals(5, endpoint.accepted());
+    }
+
+    @Test
+    public void replayIsPaced() throws Exception {
+        final PayloadSpool spool = PayloadSpool.open(folder.getRoot(), 1 << 20);
+        for (int i = 0; i < 10; i++) {
+            spool.append(payload());
+        }
+        sender = sender(new RetryPolicy(1, 0, 0), new CircuitBreaker(5, 60000), spool, 4);
+
+        TimeUnit.MILLISECONDS.sleep(1100);
+        assertTrue("replayed " + endpoint.accepted(), endpoint.accepted() >= 2 && endpoint.accepted() <= 6);
+    }
+
+    @Test
+    public void retryableFailuresAreRetried() throws Exception {
+        endpoint.fail(1, 503).fail(1, 429);
+        sender = sender(new RetryPolicy(3, 1, 10), new CircuitBreaker(5, 60000), null, 1);
+
+        sender.send(payload());
+
+        waitFor(() -> endpoint.accepted() == 1, 5000);
+        assertEquals(3, endpoint.requests());
+        assertEquals(2, sender.getRetries());
+        assertEquals(CircuitBreaker.State.CLOSED, sender.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void rejectedPayloadsAreNotRetried() throws Exception {
+        endpoint.fail(1, 400);
+        sender = sender(new RetryPolicy(3, 1, 10), new CircuitBreaker(1, 60000), null, 1);
+
+        sender.send(payload());
+        sender.send(payload());
+
+        waitFor(() -> endpoint.requests() == 2, 5000);
+        assertEquals(1, endpoint.accepted());
+        assertEquals(0, sender.getRetries());
+        assertEquals(CircuitBreaker.State.CLOSED, sender.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void breakerOpensAndRefusesPosts() throws Exception {
+        endpoint.fail(100, 500);
+        sender = sender(new RetryPolicy(1, 0, 0), new CircuitBreaker(2, 60000), null, 1);
+
+        for (int i = 0; i < 5; i++) {
+            sender.send(payload());
+        }
+
+        // failed and refused payloads alike are dropped without a spool
+        waitFor(() -> sender.getDropped() == 5, 5000);
+        // with two sender threads, one more post may be in flight when the circuit opens
+        assertTrue(endpoint.requests() <= 3);
+        assertEquals(CircuitBreaker.State.OPEN, sender.getCircuitBreaker().getState());
+        assertEquals(1, sender.getCircuitBreaker().getTimesOpened());
+    }
+
+    @Test
+    public void probeClosesTheBreaker() throws Exception {
+        endpoint.fail(1, 500);
+        sender = sender(new RetryPolicy(1, 0, 0), new CircuitBreaker(1, 200), null, 1);
+
+        sender.send(payload());
+        waitFor(() -> sender.getCircuitBreaker().getState() == CircuitBreaker.State.OPEN, 5000);
+        TimeUnit.MILLISECONDS.sleep(250);
+        sender.send(payload());
+
+        waitFor(() -> endpoint.accepted() == 1, 5000);
+        assertEquals(CircuitBreaker.State.CLOSED, sender.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void slowEndpointIsSpooledThenReplayed() throws Exception {
+        endpoint.latency(1000);
+        final PayloadSpool spool = PayloadSpool.open(folder.getRoot(), 1 << 20);
+        sender = sender(new RetryPolicy(2, 1, 10), new CircuitBreaker(5, 60000), spool, 20);
+
+        sender.send(payload());
+
+        // both attempts time out reading the response
+        waitFor(() -> !spool.isEmpty(), 5000);
+        assertEquals(1, sender.getRetries());
+        endpoint.latency(0);
+        waitFor(spool::isEmpty, 5000);
+        assertTrue(endpoint.accepted() >= 1);
+    }
+
+    @Test
+    public void unexpectedFailureIsDroppedWithoutOpeningTheBreaker() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(1, 0);
+        final HttpPoster poster = new HttpPoster(endpoint.url(), "token", 1000, 1000,
+                PayloadCompressor.CompressionConfig.NONE) {
+            @Override
+            Response post(PayloadBuffer payload) {
+                throw new IllegalStateException("injected");
+            }
+        };
+        sender = sender(poster, new RetryPolicy(3, 1, 10), breaker, null, 1, 1000);
+
+        sender.send(payload());
+
+        waitFor(() -> sender.getDropped() == 1, 5000);
+        assertEquals(0, sender.getRetries());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getTimesOpened());
+    }
+
+    @Test
+    public void shutdownDrainsTheQueue() throws Exception {
+        endpoint.latency(50);
+        sender = sender(new RetryPolicy(1, 0, 0), new CircuitBreaker(5, 60000), null, 1);
+        for (int i = 0; i < 6; i++) {
+            sender.send(payload());
+        }
+
+        sender.shutdown();
+        assertEquals(6, endpoint.accepted());
+        assertEquals(0, sender.getDropped());
+
+        sender.send(payload());
+        sender = null;
+        assertEquals(6, endpoint.requests());
+    }
+
+    @Test
+    public void undrainedPayloadsAreCountedAsDropped() throws Exception {
+        endpoint.latency(200);
+        sender = sender(new RetryPolicy(1, 0, 0), new CircuitBreaker(5, 60000), null, 1, 100);
+        for (int i = 0; i < 8; i++) {
+            sender.send(payload());
+        }
+
+        sender.shutdown();
+        final long dropped = sender.getDropped();
+        sender = null;
+        assertTrue("dropped " + dropped, dropped > 0);
+        assertEquals(8, endpoint.accepted() + dropped);
+    }
+
+    @Test
+    public void undrainedPayloadsAreSpooledBeforeClosingTheSpool() throws Exception {
+        endpoint.latency(200);
+        final PayloadSpool spool = PayloadSpool.open(folder.getRoot(), 1 << 20);
+        sender = sender(new RetryPolicy(1, 0, 0), new CircuitBreaker(5, 60000), spool, 1, 100);
+        for (int i = 0; i < 8; i++) {
+            sender.send(payload());
+        }
+
+        sender.shutdown();
+        sender = null;
+        final int accepted = endpoint.accepted();
+        assertTrue("accepted " + accepted, accepted < 8);
+        try (PayloadSpool reopened = PayloadSpool.open(folder.getRoot(), 1 << 20)) {
+            assertTrue("spooled " + reopened.usedBytes(), reopened.usedBytes() > 0);
+        }
+    }
+
+    private PayloadSender sender(RetryPolicy retryPolicy, CircuitBreaker breaker, PayloadSpool spool,
+                                 int replayPerSecond) throws IOException {
+        return sender(retryPolicy, breaker, spool, replayPerSecond, 5000);
+    }
+
+    private PayloadSender sender(RetryPolicy retryPolicy, CircuitBreaker breaker, PayloadSpool spool,
+                                 int replayPerSecond, long drainTimeoutMillis) throws IOException {
+        // the read timeout is below the latency of slowEndpointIsSpooledThenReplayed
+        final HttpPoster poster = new HttpPoster(endpoint.url(), "token", 1000, 300,
+                PayloadCompressor.CompressionConfig.NONE);
+        return sender(poster, retryPolicy, breaker, spool, replayPerSecond, drainTimeoutMillis);
+    }
+
+    private static PayloadSender sender(HttpPoster poster, RetryPolicy retryPolicy, CircuitBreaker breaker,
+                                        PayloadSpool spool, int replayPerSecond, long drainTimeoutMillis) {
+        return new PayloadSender(poster, new PayloadBufferPool(1024, 4, 1 << 20),
+                new PayloadSender.SenderConfig(2, 8, PayloadSender.Overflow.DROP_OLDEST, 0, replayPerSecond,
+                        drainTimeoutMillis),
+                retryPolicy, breaker, spool, new ReporterStats());
+    }
+
+    static PayloadBuffer payload() {
+        final PayloadBuffer payload = new PayloadBuffer(128);
+        payload.writeAscii("{\"time\":1500000000,\"period\":60,\"measurements\":[{\"name\":\"m\",\"value\":1}]}");
+        payload.count = 1;
+        return payload;
+    }
+
+    static void waitFor(BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+}
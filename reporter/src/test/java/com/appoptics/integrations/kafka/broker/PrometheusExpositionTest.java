@@ -0,0 +1,90 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.appoptics.metrics.client.Tag;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PrometheusExpositionTest {
+    private static final NameAndTags CHANGING = Batches.logSize("t", 0);
+    private static final NameAndTags STEADY = Batches.logSize("t", 1);
+
+    @Test
+    public void suppressedGaugeKeepsItsLastValue() {
+        final GaugeSuppressor suppressor = new GaugeSuppressor(true, 0, 3, DeltaTracker.DEFAULT_MAX_IDLE_CYCLES, 1);
+        final KafkaMetricsBatch batch = Batches.batch(Rollup.NONE, CardinalityLimiter.NONE, suppressor);
+        final PrometheusExposition exposition = new PrometheusExposition(1, Collections.emptyList(), false, 3);
+
+        for (int cycle = 0; cycle < 5; cycle++) {
+            batch.reset();
+            batch.addGauge(CHANGING, cycle);
+            batch.addGauge(STEADY, 42);
+            exposition.render(0, batch);
+            exposition.publish();
+
+            assertEquals(cycle == 0 || cycle == 3, Batches.find(batch, STEADY) >= 0);
+            final String text = text(exposition);
+            assertTrue(text, text.contains("partition=\"1\"} 42"));
+            assertTrue(text, text.contains("partition=\"0\"} " + cycle));
+        }
+    }
+
+    @Test
+    public void missingSeriesIsEvictedAfterTheRetainedRenders() {
+        final KafkaMetricsBatch batch = Batches.batch();
+        final PrometheusExposition exposition = new PrometheusExposition(1, Collections.emptyList(), false, 2);
+        batch.addGaugeMeasurement(CHANGING, 1);
+        batch.addGaugeMeasurement(STEADY, 2);
+        exposition.render(0, batch);
+
+        batch.reset();
+        batch.addGaugeMeasurement(CHANGING, 1);
+        for (int render = 1; render <= 3; render++) {
+            exposition.render(0, batch);
+            exposition.publish();
+            assertEquals(render <= 2, text(exposition).contains("partition=\"1\"}"));
+        }
+    }
+
+    @Test
+    public void withoutRetentionOnlyTheLatestBatchIsServed() {
+        final KafkaMetricsBatch batch = Batches.batch();
+        final PrometheusExposition exposition = new PrometheusExposition(1, Collections.emptyList(), false, 0);
+        batch.addGaugeMeasurement(CHANGING, 1);
+        batch.addGaugeMeasurement(STEADY, 2);
+        exposition.render(0, batch);
+
+        batch.reset();
+        batch.addGaugeMeasurement(CHANGING, 1);
+        exposition.render(0, batch);
+        exposition.publish();
+        assertFalse(text(exposition).contains("partition=\"1\"}"));
+    }
+
+    @Test
+    public void eachExpositionHasItsOwnStaticTags() {
+        final KafkaMetricsBatch batch = Batches.batch();
+        batch.addGaugeMeasurement(CHANGING, 1);
+        final PrometheusExposition first = new PrometheusExposition(1,
+                Collections.singletonList(new Tag("cluster", "a")), false, 0);
+        final PrometheusExposition second = new PrometheusExposition(1,
+                Collections.singletonList(new Tag("cluster", "b")), false, 0);
+
+        first.render(0, batch);
+        first.publish();
+        second.render(0, batch);
+        second.publish();
+
+        assertTrue(text(first), text(first).contains("cluster=\"a\""));
+        assertTrue(text(second), text(second).contains("cluster=\"b\""));
+    }
+
+    private static String text(PrometheusExposition exposition) {
+        return UTF_8.decode(exposition.snapshot().body(false)).toString();
+    }
+}
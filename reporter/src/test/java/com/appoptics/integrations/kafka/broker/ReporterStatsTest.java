@@ -0,0 +1,27 @@
+package com.appoptics.integrations.kafka.broker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReporterStatsTest {
+    @Test
+    public void tallyIsRecordedOncePerRange() {
+        final ReporterStats stats = new ReporterStats();
+        final ReporterStats.Tally tally = new ReporterStats.Tally();
+        for (int i = 0; i < 100; i++) {
+            tally.stop(ReporterStats.Stage.GAUGE, ReporterStats.start());
+        }
+        tally.stop(ReporterStats.Stage.TIMER, ReporterStats.start());
+        assertEquals(0, stats.getCount(ReporterStats.Stage.GAUGE));
+
+        stats.record(tally);
+        assertEquals(100, stats.getCount(ReporterStats.Stage.GAUGE));
+        assertEquals(1, stats.getCount(ReporterStats.Stage.TIMER));
+        assertEquals(0, stats.getCount(ReporterStats.Stage.COUNTER));
+
+        // the tally is emptied, so recording it again adds nothing
+        stats.record(tally);
+        assertEquals(100, stats.getCount(ReporterStats.Stage.GAUGE));
+    }
+}
@@ -0,0 +1,25 @@
+package com.appoptics.integrations.kafka.broker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+    @Test
+    public void delaysStayUnderTheExponentialCeiling() {
+        final RetryPolicy policy = new RetryPolicy(10, 100, 1000);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(policy.delayMillis(1, 0) <= 100);
+            assertTrue(policy.delayMillis(3, 0) <= 400);
+            assertTrue(policy.delayMillis(30, 0) <= 1000);
+        }
+    }
+
+    @Test
+    public void requestedDelayTakesPrecedence() {
+        final RetryPolicy policy = new RetryPolicy(10, 100, 1000);
+        assertTrue(policy.delayMillis(1, 700) >= 700);
+        assertEquals(-1, policy.delayMillis(1, 1001));
+    }
+}
@@ -0,0 +1,70 @@
+package com.appoptics.integrations.kafka.broker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RollupTest {
+    private final ReporterStats stats = new ReporterStats();
+
+    @Test
+    public void gaugesAreAggregatedAcrossTheTag() {
+        final Rollup rollup = Rollup.parse("kafka.log.Log.*:partition:max", "replace");
+        final KafkaMetricsBatch batch = Batches.batch(rollup, CardinalityLimiter.NONE);
+
+        batch.addGauge(Batches.logSize("a", 0), 10);
+        batch.addGauge(Batches.logSize("a", 1), 30);
+        batch.addGauge(Batches.logSize("b", 0), 5);
+        batch.flushRollups(stats);
+
+        assertEquals(2, batch.size());
+        final NameAndTags topicA = Batches.logSize("a", 0).withoutTag("partition", null);
+        assertEquals(30, batch.value(Batches.find(batch, topicA)), 0);
+    }
+
+    @Test
+    public void rawSeriesAreKeptUnderTheirOwnName() {
+        final Rollup rollup = Rollup.parse("kafka.log.Log.*:partition:sum", "both");
+        final KafkaMetricsBatch batch = Batches.batch(rollup, CardinalityLimiter.NONE);
+
+        batch.addGauge(Batches.logSize("a", 0), 10);
+        batch.addGauge(Batches.logSize("a", 1), 30);
+        batch.flushRollups(stats);
+
+        assertEquals(3, batch.size());
+        final NameAndTags rolled = Batches.logSize("a", 0).withoutTag("partition", Rollup.KEEP_RAW_SUFFIX);
+        assertEquals(40, batch.value(Batches.find(batch, rolled)), 0);
+    }
+
+    @Test
+    public void namesNoLongerAggregatedAreForgotten() {
+        final Rollup rollup = Rollup.parse("kafka.log.Log.*:partition:sum", "replace");
+        final KafkaMetricsBatch batch = Batches.batch(rollup, CardinalityLimiter.NONE);
+        for (int topic = 0; topic < 10; topic++) {
+            batch.addGauge(Batches.logSize("t" + topic, 0), 1);
+        }
+        batch.flushRollups(stats);
+        assertEquals(10, rollup.getRolledNames());
+
+        batch.reset();
+        batch.addGauge(Batches.logSize("t0", 0), 1);
+        batch.flushRollups(stats);
+        batch.reset();
+
+        assertEquals(1, rollup.getRolledNames());
+    }
+
+    @Test
+    public void unreportableAggregatesAreCounted() {
+        final Rollup rollup = Rollup.parse("kafka.log.Log.*:partition:sum", "replace");
+        final KafkaMetricsBatch batch = Batches.batch(rollup, CardinalityLimiter.NONE);
+
+        batch.addGauge(Batches.logSize("a", 0), Double.MAX_VALUE);
+        batch.addGauge(Batches.logSize("a", 1), Double.MAX_VALUE);
+        batch.flushRollups(stats);
+
+        assertEquals(0, batch.size());
+        assertTrue(stats.getProcessingErrors() > 0);
+    }
+}
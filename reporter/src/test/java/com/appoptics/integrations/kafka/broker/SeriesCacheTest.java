@@ -0,0 +1,24 @@
+package com.appoptics.integrations.kafka.broker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SeriesCacheTest {
+
+    @Test
+    public void seriesUsedDuringACycleAreKept() {
+        final SeriesCache<String> cache = new SeriesCache<>();
+        cache.put(Batches.logSize("a", 0), "a");
+        cache.put(Batches.logSize("b", 0), "b");
+        cache.endCycle();
+
+        assertEquals("a", cache.get(Batches.logSize("a", 0)));
+        cache.endCycle();
+
+        assertEquals(1, cache.size());
+        assertEquals("a", cache.get(Batches.logSize("a", 0)));
+        assertNull(cache.get(Batches.logSize("b", 0)));
+    }
+}
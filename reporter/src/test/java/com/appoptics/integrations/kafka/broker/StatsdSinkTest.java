@@ -0,0 +1,57 @@
+package com.appoptics.integrations.kafka.broker;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricsRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.assertEquals;
+
+public class StatsdSinkTest {
+    private DatagramChannel agent;
+    private StatsdSink sink;
+
+    @Before
+    public void open() throws IOException {
+        agent = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        sink = new StatsdSink((InetSocketAddress) agent.getLocalAddress(), StatsdSink.Format.STATSD,
+                StatsdSink.DEFAULT_MAX_PACKET_BYTES, Collections.emptyList());
+    }
+
+    @After
+    public void close() throws IOException {
+        sink.close();
+        agent.close();
+    }
+
+    @Test
+    public void countsAreCountersAndGaugesAreGauges() throws IOException {
+        final Counter counter = new MetricsRegistry().newCounter(StatsdSinkTest.class, "requests");
+        final KafkaMetricsBatch batch = Batches.batch();
+        final NameAndTags requests = new NameAndTags("kafka.requests");
+        batch.addCounter(requests, counter);
+        counter.inc(5);
+        batch.reset();
+        batch.addCounter(requests, counter);
+        batch.addGaugeMeasurement(new NameAndTags("kafka.size"), -2);
+
+        sink.send(0, batch, 60, 30);
+        assertEquals("kafka.requests:5|c\nkafka.size:0|g\nkafka.size:-2|g", receive());
+    }
+
+    private String receive() throws IOException {
+        final ByteBuffer datagram = ByteBuffer.allocate(StatsdSink.DEFAULT_MAX_PACKET_BYTES);
+        agent.receive(datagram);
+        datagram.flip();
+        return US_ASCII.decode(datagram).toString();
+    }
+}
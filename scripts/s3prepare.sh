@@ -20,7 +20,7 @@ fi
 
 GIT_VERSION=`git describe`
 
-for FILE in `ls target/$PROJECT_NAME*.jar`; do
+for FILE in `ls reporter/target/$PROJECT_NAME*.jar`; do
 	BASE=`basename $FILE`
 	DEPLOY_DIR="deploy/$PROJECT_NAME/$GIT_BRANCH/$GIT_VERSION/"
 	mkdir -p $DEPLOY_DIR
@@ -1,6 +0,0 @@
-package com.appoptics.integrations.kafka.broker;
-
-import kafka.metrics.KafkaMetricsReporterMBean;
-
-public interface KafkaAppopticsReporterMBean extends KafkaMetricsReporterMBean {
-}